@@ -0,0 +1,108 @@
+package be.ntmn.inficam;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+
+import java.nio.ByteBuffer;
+
+/* Keeps the last so many bytes of encoder output in memory, for SurfaceRecorder's buffered mode
+ *   where the video (and audio) from before pressing record ends up in the file too.
+ *
+ * Everything is allocated up front: one array for the data which is used as a ring, samples are
+ *   always stored in one piece so if one doesn't fit at the end it goes at the start, and arrays
+ *   for where each sample is. When there's no room the oldest samples are forgotten. Writing it
+ *   out starts at the oldest key frame of track 0 (video), so that's what should be there often
+ *   enough, other tracks start at the same time.
+ *
+ * Not thread safe, SurfaceRecorder only uses it on it's own thread.
+ */
+public class EncodedRing {
+	private static final int AVG_SAMPLE_SIZE = 256; /* For how many samples to make room. */
+
+	private final byte[] data;
+	private final ByteBuffer dataBuffer;
+	private final int[] offset, size, flags, track;
+	private final long[] pts;
+	private int head = 0, count = 0; /* Oldest sample and amount of them. */
+	private int writePos = 0; /* Where the next sample's data goes, if it fits. */
+	private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+	public EncodedRing(int capacity) {
+		data = new byte[capacity];
+		dataBuffer = ByteBuffer.wrap(data);
+		int samples = Math.max(capacity / AVG_SAMPLE_SIZE, 64);
+		offset = new int[samples];
+		size = new int[samples];
+		flags = new int[samples];
+		track = new int[samples];
+		pts = new long[samples];
+	}
+
+	public int getCapacity() { return data.length; }
+
+	public void clear() {
+		head = count = writePos = 0;
+	}
+
+	/* Copy a sample from the encoder's output buffer, leaves the position of buf changed. */
+	public void add(int trk, ByteBuffer buf, MediaCodec.BufferInfo bi) {
+		int len = bi.size;
+		if (len > data.length)
+			return; /* It'll never fit. */
+		while (count > 0) {
+			int oldest = offset[head];
+			if (count < offset.length) {
+				if (writePos > oldest) { /* Used is oldest to writePos, free at both ends. */
+					if (data.length - writePos >= len)
+						break;
+					if (oldest >= len) {
+						writePos = 0;
+						break;
+					}
+				} else if (oldest - writePos >= len) /* Used wraps around, free in between. */
+					break;
+			}
+			head = (head + 1) % offset.length;
+			--count;
+		}
+		if (count == 0)
+			writePos = 0;
+		int i = (head + count) % offset.length;
+		buf.position(bi.offset);
+		buf.get(data, writePos, len);
+		offset[i] = writePos;
+		size[i] = len;
+		flags[i] = bi.flags;
+		track[i] = trk;
+		pts[i] = bi.presentationTimeUs;
+		writePos += len;
+		++count;
+	}
+
+	private int firstKeyFrame() {
+		for (int n = 0; n < count; ++n) {
+			int i = (head + n) % offset.length;
+			if (track[i] == 0 && (flags[i] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+				return i;
+		}
+		return -1;
+	}
+
+	/* Write everything from the first key frame, trackMap translates our track numbers to the
+	 *   muxer's. Then it's empty again.
+	 */
+	public void writeTo(MediaMuxer muxer, int[] trackMap) {
+		int first = firstKeyFrame();
+		if (first >= 0) {
+			long start = pts[first];
+			for (int n = (first - head + offset.length) % offset.length; n < count; ++n) {
+				int i = (head + n) % offset.length;
+				if (pts[i] < start || track[i] >= trackMap.length || trackMap[track[i]] < 0)
+					continue; /* Audio from before the video starts. */
+				info.set(offset[i], size[i], pts[i], flags[i]);
+				muxer.writeSampleData(trackMap[track[i]], dataBuffer, info);
+			}
+		}
+		clear();
+	}
+}
@@ -0,0 +1,160 @@
+package be.ntmn.inficam;
+
+import static java.lang.Math.cbrt;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.pow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/* A palette made of colour stops, read from a text file so users can make their own. Like the
+ *   built in ones it's turned into the table for InfiCam once (see Palette.getData()), so it costs
+ *   nothing per frame. The files look like this:
+ *
+ *   # Lines starting with # are comments.
+ *   name Hot metal
+ *   space oklab
+ *   0    #000000
+ *   0.6  #C00000
+ *   1    #FFFFFF
+ *
+ *   name is what's shown in the settings, the file name without extension if it's not there.
+ *   space is how to blend between stops, rgb (the default) or oklab, which looks more even to
+ *   the eye. Stops are a position from 0 (coldest) to 1 (hottest) and a colour, at least two.
+ */
+public class GradientPalette extends Palette {
+	public static final String EXT = ".txt";
+
+	private final boolean oklab;
+	private final double[] pos;
+	private final double[][] color; /* sRGB, or OKLab if oklab. */
+	private final double[] lab = new double[3]; /* For func(), only ever called by getData(). */
+
+	private GradientPalette(String title, boolean oklab, double[] pos, double[][] color) {
+		super(0);
+		this.title = title;
+		this.oklab = oklab;
+		this.pos = pos;
+		this.color = color;
+	}
+
+	@Override
+	void func(double x, double[] out) {
+		int i = 1;
+		while (i < pos.length - 1 && x > pos[i])
+			++i;
+		double span = pos[i] - pos[i - 1];
+		double t = (span > 0) ? (x - pos[i - 1]) / span : 1;
+		t = min(max(t, 0), 1);
+		double[] a = color[i - 1], b = color[i];
+		double[] dst = oklab ? lab : out;
+		for (int c = 0; c < 3; ++c)
+			dst[c] = a[c] + (b[c] - a[c]) * t;
+		if (oklab)
+			oklabToSrgb(lab, out);
+	}
+
+	/* Throws IOException with the file and line in the message if it makes no sense. */
+	public static GradientPalette load(File file) throws IOException {
+		String title = file.getName();
+		if (title.endsWith(EXT))
+			title = title.substring(0, title.length() - EXT.length());
+		boolean oklab = false;
+		ArrayList<double[]> stops = new ArrayList<>(); /* { pos, r, g, b } */
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int num = 0;
+			while ((line = in.readLine()) != null) {
+				++num;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] parts = line.split("\\s+", 2);
+				if (parts.length != 2)
+					throw error(file, num);
+				if (parts[0].equals("name")) {
+					title = parts[1];
+				} else if (parts[0].equals("space")) {
+					if (parts[1].equals("oklab"))
+						oklab = true;
+					else if (parts[1].equals("rgb"))
+						oklab = false;
+					else throw error(file, num);
+				} else {
+					String hex = parts[1].startsWith("#") ? parts[1].substring(1) : parts[1];
+					double p;
+					int rgb;
+					try {
+						p = Double.parseDouble(parts[0]);
+						rgb = Integer.parseInt(hex, 16);
+					} catch (NumberFormatException e) {
+						throw error(file, num);
+					}
+					if (hex.length() != 6 || !(p >= 0 && p <= 1))
+						throw error(file, num);
+					stops.add(new double[] {
+							p, (rgb >> 16 & 0xFF) / 255.0, (rgb >> 8 & 0xFF) / 255.0,
+							(rgb & 0xFF) / 255.0
+					});
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (stops.size() < 2)
+			throw new IOException(file.getName() + ": needs at least two colour stops.");
+		Collections.sort(stops, (a, b) -> Double.compare(a[0], b[0]));
+		double[] pos = new double[stops.size()];
+		double[][] color = new double[stops.size()][3];
+		for (int i = 0; i < pos.length; ++i) {
+			double[] s = stops.get(i);
+			pos[i] = s[0];
+			System.arraycopy(s, 1, color[i], 0, 3);
+			if (oklab)
+				srgbToOklab(color[i], color[i]);
+		}
+		return new GradientPalette(title, oklab, pos, color);
+	}
+
+	private static IOException error(File file, int line) {
+		return new IOException(file.getName() + ":" + line + ": not understood.");
+	}
+
+	/* OKLab as by Björn Ottosson, in and out may be the same array. */
+	private static void srgbToOklab(double[] in, double[] out) {
+		double r = toLinear(in[0]), g = toLinear(in[1]), b = toLinear(in[2]);
+		double l = cbrt(0.4122214708 * r + 0.5363325363 * g + 0.0514459929 * b);
+		double m = cbrt(0.2119034982 * r + 0.6806995451 * g + 0.1073969566 * b);
+		double s = cbrt(0.0883024619 * r + 0.2817188376 * g + 0.6299787005 * b);
+		out[0] = 0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s;
+		out[1] = 1.9779984951 * l - 2.4285922050 * m + 0.4505937099 * s;
+		out[2] = 0.0259040371 * l + 0.7827717662 * m - 0.8086757660 * s;
+	}
+
+	private static void oklabToSrgb(double[] in, double[] out) {
+		double l = in[0] + 0.3963377774 * in[1] + 0.2158037573 * in[2];
+		double m = in[0] - 0.1055613458 * in[1] - 0.0638541728 * in[2];
+		double s = in[0] - 0.0894841775 * in[1] - 1.2914855480 * in[2];
+		l = l * l * l;
+		m = m * m * m;
+		s = s * s * s;
+		out[0] = toSrgb(4.0767416621 * l - 3.3077115913 * m + 0.2309699292 * s);
+		out[1] = toSrgb(-1.2684380046 * l + 2.6097574011 * m - 0.3413193965 * s);
+		out[2] = toSrgb(-0.0041960863 * l - 0.7034186147 * m + 1.7076147010 * s);
+	}
+
+	private static double toLinear(double c) {
+		return (c <= 0.04045) ? c / 12.92 : pow((c + 0.055) / 1.055, 2.4);
+	}
+
+	private static double toSrgb(double c) {
+		c = min(max(c, 0), 1);
+		return (c <= 0.0031308) ? c * 12.92 : 1.055 * pow(c, 1 / 2.4) - 0.055;
+	}
+}
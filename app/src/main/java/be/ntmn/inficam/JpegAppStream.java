@@ -0,0 +1,118 @@
+package be.ntmn.inficam;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* Passes a JPEG through to another stream and puts our data in APP9 segments after the start of
+ *   image marker and the APP0 (JFIF) or APP1 (Exif) segments that have to come right after it,
+ *   so Bitmap.compress() can write straight to the file while we add to it. Viewers skip APP
+ *   segments they don't know, so the picture still shows anywhere.
+ *
+ * A segment can hold a little under 64KiB, so the data gets split over as many as needed, the
+ *   same way ICC profiles are in APP2. Every segment is:
+ *   uint8 0xFF, MARKER
+ *   uint16 length          big endian, of everything after the marker including this
+ *   char id[8]             "INFICAM\0"
+ *   uint16 seq, count      big endian, number of this segment starting at 1 and how many there are
+ *   data                   the next part of the data, put them together in order to get it back
+ */
+public class JpegAppStream extends FilterOutputStream {
+	public static final int MARKER = 0xE9; /* APP9. */
+	private static final byte[] ID = { 'I', 'N', 'F', 'I', 'C', 'A', 'M', 0 };
+	private static final int MAX_PART = 0xFFFF - 2 - ID.length - 4;
+
+	private final byte[] data;
+	private final int len;
+	private int seen = 0; /* Bytes of the start of image marker that passed. */
+	private boolean marker = false; /* Got the 0xFF of a marker, held back until we know which. */
+	private int lenLeft = 0, segLen; /* Length bytes of an APP0 or APP1 still to come. */
+	private int skip = 0; /* Rest of that segment, passed as it is. */
+	private boolean inserted = false; /* After that everything just passes. */
+
+	public JpegAppStream(OutputStream out, byte[] data, int len) {
+		super(out);
+		this.data = data;
+		this.len = len;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		b &= 0xFF;
+		if (inserted || skip > 0) {
+			out.write(b);
+			if (skip > 0)
+				--skip;
+		} else if (seen < 2) {
+			if (b != ((seen == 0) ? 0xFF : 0xD8))
+				throw new IOException("Not a JPEG.");
+			out.write(b);
+			++seen;
+		} else if (lenLeft > 0) {
+			out.write(b);
+			segLen = segLen << 8 | b;
+			if (--lenLeft == 0) {
+				if (segLen < 2)
+					throw new IOException("Not a JPEG.");
+				skip = segLen - 2;
+			}
+		} else if (!marker) {
+			if (b != 0xFF)
+				throw new IOException("Not a JPEG.");
+			marker = true;
+		} else if (b == 0xFF) { /* Fill byte, the last one is the marker's. */
+			out.write(0xFF);
+		} else if (b == 0xE0 || b == 0xE1) {
+			marker = false;
+			out.write(0xFF);
+			out.write(b);
+			lenLeft = 2;
+			segLen = 0;
+		} else { /* Whatever it is, ours go before it. */
+			marker = false;
+			writeSegments();
+			inserted = true;
+			out.write(0xFF);
+			out.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int n) throws IOException {
+		while (!inserted && n > 0) {
+			if (skip > 0) {
+				int part = Math.min(skip, n);
+				out.write(b, off, part);
+				skip -= part;
+				off += part;
+				n -= part;
+			} else {
+				write(b[off++]);
+				--n;
+			}
+		}
+		if (n > 0)
+			out.write(b, off, n);
+	}
+
+	private void writeSegments() throws IOException {
+		int count = Math.max(1, (len + MAX_PART - 1) / MAX_PART);
+		byte[] head = new byte[4 + ID.length + 4];
+		for (int seq = 1, pos = 0; seq <= count; ++seq) {
+			int part = Math.min(len - pos, MAX_PART);
+			int slen = 2 + ID.length + 4 + part;
+			head[0] = (byte) 0xFF;
+			head[1] = (byte) MARKER;
+			head[2] = (byte) (slen >> 8);
+			head[3] = (byte) slen;
+			System.arraycopy(ID, 0, head, 4, ID.length);
+			head[4 + ID.length] = (byte) (seq >> 8);
+			head[5 + ID.length] = (byte) seq;
+			head[6 + ID.length] = (byte) (count >> 8);
+			head[7 + ID.length] = (byte) count;
+			out.write(head);
+			out.write(data, pos, part);
+			pos += part;
+		}
+	}
+}
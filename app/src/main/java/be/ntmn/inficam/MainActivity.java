@@ -21,6 +21,7 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.view.Gravity;
 import android.view.ScaleGestureDetector;
 import android.view.Surface;
@@ -40,8 +41,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.List;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import be.ntmn.libinficam.InfiCam;
 
@@ -57,9 +58,15 @@ public class MainActivity extends BaseActivity {
 	private SurfaceMuxer.ThroughSurface thruSurface; /* We sharpen separately to do it lo-res. */
 	private SurfaceMuxer.InputSurface videoSurface; /* To draw video from the normal camera. */
 	private Overlay overlayScreen, overlayRecord, overlayPicture;
-	private SurfaceMuxer.OutputSurface outScreen, outRecord;
-	private final Overlay.Data overlayData = new Overlay.Data();
-	private int range = 0, iMode;
+	private SurfaceMuxer.OutputSurface outScreen, outRecord; /* Only changed on render thread. */
+	private SurfaceMuxer.OutputSurface outPicture; /* Kept around, resized when needed. */
+	private SurfaceMuxer.PixelReader pictureReader;
+	private final Overlay.Data overlayData = new Overlay.Data(); /* Settings, see frameCallback. */
+	private final TripleBuffer<Overlay.Data> frameBuffer =
+			new TripleBuffer<>(new Overlay.Data(), new Overlay.Data(), new Overlay.Data());
+	private final AtomicBoolean framePosted = new AtomicBoolean(false);
+	private int range = 0;
+	private volatile int iMode;
 	private long overTempTime = 0;
 	private long overTempLockTime = 0;
 	private int earlyFrame = 0;
@@ -67,12 +74,21 @@ public class MainActivity extends BaseActivity {
 	private UsbDevice device;
 	private UsbDeviceConnection usbConnection;
 	private final Object frameLock = new Object();
-	private int picWidth = 1024, picHeight = 768;
+	private volatile int picWidth = 1024, picHeight = 768;
 	private int vidWidth = 1024, vidHeight = 768;
-	private boolean takePic = false;
+	private final AtomicInteger picsWanted = new AtomicInteger(); /* Left to take this press. */
+	private int picsPerPress = 1;
+	private int burstTaken, burstSkipped; /* Render thread, for the message at the end. */
 	private volatile boolean disconnecting = false;
 	private final SurfaceRecorder recorder = new SurfaceRecorder();
 	private boolean recordAudio;
+	private boolean recordRadiometric;
+	private int timelapse = 1, timelapseMode = InfiCam.TIMELAPSE_AVERAGE; /* 1 frame is off. */
+	private boolean timelapseRealtime;
+	private boolean recordCompressed; /* Render thread, time-lapse with our own timestamps. */
+	private long recordFrames; /* Render thread, for those timestamps. */
+	private volatile float frameInterval; /* Seconds, as measured by InfiCam. */
+	private int preBufferSize = 0; /* Bytes, 0 if the recorder shouldn't run before recording. */
 	private final Rect rect = new Rect(); /* To use during frames, to avoid allocating it there. */
 
 	private CameraView cameraView;
@@ -87,61 +103,22 @@ public class MainActivity extends BaseActivity {
 	private SliderDouble rangeSlider;
 	private ImageButton buttonPhoto;
 	private boolean rotate = false;
-	private int orientation = 0;
+	private volatile int orientation = 0;
 	private boolean swapControls = false;
 	private float scale = 1.0f;
-	private int imgType;
-	private int imgQuality;
+	private float agcAttack, agcDecay, agcClip, agcHysteresis; /* Set by SettingsPalette. */
+	private volatile int imgType;
+	private volatile int imgQuality;
+	private volatile boolean exportTiff = false;
 
 	private boolean raw_cam = false;
     private boolean p2Pro = false;
 	private boolean first_connect = false;
 
-	private Bitmap imgCompressBitmap;
-
-	private class ImgCompressThread extends Thread {
-		private volatile boolean stop = false;
-		public final ReentrantLock lock = new ReentrantLock();
-		public final Condition cond = lock.newCondition();
-
-		@Override
-		public void run() {
-			lock.lock();
-			while (true) {
-				try {
-					cond.await();
-				} catch (Exception e) {
-					e.printStackTrace();
-					continue;
-				}
-				if (stop)
-					break;
-				try {
-					Util.writeImage(getApplicationContext(), imgCompressBitmap, imgType,
-							imgQuality);
-					imgCompressBitmap.recycle();
-				} catch (Exception e) {
-					handler.post(() -> messageView.showMessage(e.getMessage()));
-				}
-				handler.post(() -> {
-					buttonPhoto.setEnabled(true);
-					buttonPhoto.setColorFilter(null);
-				});
-			}
-			lock.unlock();
-		}
-
-		public void shutdown() {
-			lock.lock();
-			stop = true;
-			cond.signal();
-			lock.unlock();
-			try {
-				join();
-			} catch (Exception e) { e.printStackTrace(); }
-		}
-	}
-	private ImgCompressThread imgCompressThread;
+	/* Pictures go through here to be written in the background, see pollPicture(). */
+	private volatile PictureQueue pictureQueue;
+	private PictureQueue.Picture picture; /* Render thread, the one pictureReader reads into. */
+	private float drawnRangeMin = NaN, drawnRangeMax = NaN; /* Last frame drawn, frameLock. */
 
 	private long shutterIntervalInitial; /* These are set by Settings class later. */
 	private long shutterInterval; /* Xtherm does it 1 sec after connect and then every 380 sec. */
@@ -190,6 +167,7 @@ public class MainActivity extends BaseActivity {
 						usbConnection = conn;
 						disconnecting = false;
 						earlyFrame = 0;
+						frameBuffer.resetStats();
 						try {
                             infiCam.setP2Pro(p2Pro); // need to set p2Pro flag before connecting otherwise the resolution does not get set properly
 							infiCam.connect(conn.getFileDescriptor());
@@ -205,6 +183,7 @@ public class MainActivity extends BaseActivity {
 									dev.getProductName()));
 							settingsTherm.initializeSettings();
 							first_connect = true;
+							startBuffering();
 						} catch (Exception e) {
 							disconnect();
 							first_connect = false;
@@ -236,20 +215,25 @@ public class MainActivity extends BaseActivity {
 	private final SurfaceHolder.Callback surfaceHolderCallback = new SurfaceHolder.Callback() {
 		@Override
 		public void surfaceCreated(@NonNull SurfaceHolder surfaceHolder) {
-			outScreen =
-					new SurfaceMuxer.OutputSurface(surfaceMuxer, surfaceHolder.getSurface());
+			surfaceMuxer.runSync(() -> outScreen =
+					new SurfaceMuxer.OutputSurface(surfaceMuxer, surfaceHolder.getSurface()));
 		}
 
 		@Override
 		public void surfaceChanged(@NonNull SurfaceHolder surfaceHolder, int i, int w, int h) {
-			outScreen.setSize(w, h);
-			overlayScreen.setSize(w, h);
+			surfaceMuxer.runSync(() -> {
+				outScreen.setSize(w, h);
+				overlayScreen.setSize(w, h);
+			});
 		}
 
+		/* The render thread must be done with the surface before we return from this. */
 		@Override
 		public void surfaceDestroyed(@NonNull SurfaceHolder surfaceHolder) {
-			outScreen.release();
-			outScreen = null;
+			surfaceMuxer.runSync(() -> {
+				outScreen.release();
+				outScreen = null;
+			});
 		}
 	};
 
@@ -289,167 +273,65 @@ public class MainActivity extends BaseActivity {
 
 	/* This is called by infiCam to run every frame, it calls applyPalette which writes the surface
 	 *   we get the thermal image from, it's good to do the work like applying palette and doing
-	 *   complicated measurements here to avoid blocking the main thread. Once this is done we fill
-	 *   overlayData with the info needed to draw the overlays and then post handleFrame() to run
-	 *   on the main UI thread to do the work that should happen there (everyting involving the
-	 *   EGL context we've created there). After that we wait until handleFrame() signals we can
-	 *   continue and process another frame, so that we don't mess with overlayData while it is
-	 *   needed to draw the frame.
+	 *   complicated measurements here to avoid blocking the main thread. The frame and a copy of
+	 *   the settings in overlayData go into the back buffer of frameBuffer, which then gets
+	 *   published for handleFrame() to draw on the render thread of surfaceMuxer (everything
+	 *   involving the EGL context happens there). We never wait for the render thread, if it falls
+	 *   behind it just draws the latest frame and the ones in between are skipped (see
+	 *   frameBuffer's counters).
+	 *   The frameLock only guards overlayData while we copy it, it is never held while drawing.
 	 */
 	private final InfiCam.FrameCallback frameCallback = new InfiCam.FrameCallback() {
 		/* To avoid creating a new lambda object every frame we store one here. */
 		private final Runnable handleFrameRunnable = () -> handleFrame();
-		Overlay.MinMaxAvg mma = new Overlay.MinMaxAvg();
-
-		private boolean isFinite(float v) {
-			return !isNaN(v) && !isInfinite(v);
-		}
-
-		private void mmaDownsample(Overlay.MinMaxAvg out, float[] temp, int w, int h, int step) {
-			out.min = out.max = NaN;
-			out.avg = 0.0f;
-			out.min_x = out.min_y = out.max_x = out.max_y = 0;
-			int n = 0;
-			for (int y = 0; y < h; y += step) {
-				int row = y * w;
-				for (int x = 0; x < w; x += step) {
-					float t = temp[row + x];
-					if (t < out.min || isNaN(out.min)) {
-						out.min = t;
-						out.min_x = x;
-						out.min_y = y;
-					}
-					if (t > out.max || isNaN(out.max)) {
-						out.max = t;
-						out.max_x = x;
-						out.max_y = y;
-					}
-					out.avg += t;
-					++n;
-				}
-			}
-			if (n > 0)
-				out.avg /= n;
-		}
 
 		@Override
-		public void onFrame(InfiCam.FrameInfo fi, float[] temp) {
-			synchronized (frameLock) { /* Note this is called from another thread. */
-				overlayData.fi = fi;
-				overlayData.temp = temp;
-				float rangeMin = overlayData.rangeMin;
-				float rangeMax = overlayData.rangeMax;
-
-				if (overTempLockTime > 0 && !isNaN(fi.max) && overTempTime == 0 && fi.max > range
-					&& earlyFrame > 50) {
-					overTempTime = System.currentTimeMillis();
-					handler.post(() -> overTempLockout());
-				}
-				if (earlyFrame < 65535)
-					++earlyFrame;
-
-				/* If the range isn't locked and we're zoomed in, find the min/max. */
-				if ((isNaN(rangeMin) || isNaN(rangeMax)) && scale > 1.0f) {
-					float lost = (1.0f - 1.0f / scale) / 2.0f;
-					Overlay.mmaRect(mma, temp,
-							(int) (lost * fi.width),
-							(int) (lost * fi.height),
-							(int) ((1.0f - lost) * fi.width) + 1,
-							(int) ((1.0f - lost) * fi.height) + 1,
-							fi.width);
-					if (isNaN(rangeMin)) {
-						fi.min = mma.min;
-						fi.min_x = mma.min_x;
-						fi.min_y = mma.min_y;
-						rangeMin = mma.min;
-					}
-					if (isNaN(rangeMax)) {
-						fi.max = mma.max;
-						fi.max_x = mma.max_x;
-						fi.max_y = mma.max_y;
-						rangeMax = mma.max;
-					}
-				} else if (p2Pro) {
-                    // p2Pro does not report min and max through registers so use zoom logic to find min and max
-                    float lost = (1.0f - 1.0f / scale) / 2.0f;
-                    Overlay.mmaRect(mma, temp,
-                            (int) (lost * fi.width),
-                            (int) (lost * fi.height),
-                            (int) ((1.0f - lost) * fi.width),
-                            (int) ((1.0f - lost) * fi.height),
-                            fi.width);
-
-                    fi.min = mma.min;
-                    fi.min_x = mma.min_x;
-                    fi.min_y = mma.min_y;
-                    if (isNaN(rangeMin)) {
-                        rangeMin = mma.min;
-                    }
-
-                    fi.max = mma.max;
-                    fi.max_x = mma.max_x;
-                    fi.max_y = mma.max_y;
-                    if (isNaN(rangeMax)) {
-                        rangeMax = mma.max;
-                    }
-                }
-
-				/*
-				 * avoid passing NaN to native and fall back to computing min/max from the buffer when
-				 * the camera-provided range looks invalid (e.g. clamps everything to the minimum).
-				 */
-				final boolean autoMin = isNaN(overlayData.rangeMin) || isInfinite(overlayData.rangeMin);
-				final boolean autoMax = isNaN(overlayData.rangeMax) || isInfinite(overlayData.rangeMax);
-				if (autoMin && !isFinite(rangeMin))
-					rangeMin = fi.min;
-				if (autoMax && !isFinite(rangeMax))
-					rangeMax = fi.max;
-
-				boolean suspectRange = !isFinite(rangeMin) || !isFinite(rangeMax) || rangeMax <= rangeMin;
-				if (!suspectRange && (autoMin || autoMax) && temp != null && temp.length >= fi.width * fi.height
-						&& fi.width > 0 && fi.height > 0) {
-					int centerIdx = (fi.height / 2) * fi.width + (fi.width / 2);
-					float s0 = temp[0];
-					float sc = temp[centerIdx];
-					float s1 = temp[temp.length - 1];
-					float sampleMin = java.lang.Math.min(s0, java.lang.Math.min(sc, s1));
-					float sampleMax = java.lang.Math.max(s0, java.lang.Math.max(sc, s1));
-					/* If even a few samples fall entirely outside the palette range, it's likely wrong. */
-					if (rangeMin > sampleMax || rangeMax < sampleMin)
-						suspectRange = true;
-				}
-
-				if (suspectRange && (autoMin || autoMax) && temp != null && fi.width > 0 && fi.height > 0) {
-					/* Downsample to keep this cheap; good enough for palette scaling. */
-					mmaDownsample(mma, temp, fi.width, fi.height, 4);
-					if (isFinite(mma.min) && isFinite(mma.max) && mma.max > mma.min) {
-						fi.min = mma.min;
-						fi.min_x = mma.min_x;
-						fi.min_y = mma.min_y;
-						fi.max = mma.max;
-						fi.max_x = mma.max_x;
-						fi.max_y = mma.max_y;
-						if (autoMin)
-							rangeMin = mma.min;
-						if (autoMax)
-							rangeMax = mma.max;
-					}
-				}
-
-
-				infiCam.applyPalette(rangeMin, rangeMax);
-				handler.post(handleFrameRunnable);
-				if (disconnecting)
-					return;
-				/* Now we wait until the main thread has finished drawing the frame, so lastFi and
-				 *   lastTemp don't get overwritten before they've been used.
-				 */
-				try {
-					frameLock.wait();
-				} catch (Exception e) {
-					e.printStackTrace(); /* Not the end of the world, we do try to continue. */
-				}
+		public void onFrame(InfiCam.FrameInfo frameInfo, float[] frameTemp) {
+			/* Note this is called from another thread. */
+			Overlay.Data d = frameBuffer.getBack();
+			synchronized (frameLock) {
+				d.copySettings(overlayData);
+			}
+			d.copyFrame(frameInfo, frameTemp);
+			InfiCam.FrameInfo fi = d.fi;
+			/* Radiometric pictures need the raw frame, which can only be had right now. */
+			d.hasRaw = false;
+			d.timelapse = false;
+			if (wantRaw() && picsWanted.get() > 0) {
+				int len = infiCam.getRawLength();
+				if (d.raw == null || d.raw.length != len)
+					d.raw = new short[len];
+				if (d.rawInfo == null)
+					d.rawInfo = new byte[InfiCam.snapshotInfoLen];
+				d.hasRaw = infiCam.getSnapshot(d.raw, d.rawInfo);
+				d.timelapse = !d.hasRaw; /* Then it's a plain picture. */
+			}
+			if (d.showLatency) {
+				if (d.latency == null)
+					d.latency = new int[InfiCam.LATENCY_COUNT * InfiCam.latencyStride];
+				infiCam.getLatency(d.latency);
 			}
+			frameInterval = fi.interval;
+			recorder.setMotion(fi.motion);
+			if (overTempLockTime > 0 && !isNaN(fi.max) && overTempTime == 0 && fi.max > range
+				&& earlyFrame > 50) {
+				overTempTime = System.currentTimeMillis();
+				handler.post(() -> overTempLockout());
+			}
+			if (earlyFrame < 65535)
+				++earlyFrame;
+
+			/* NaN (not locked) is the automatic range, the native side takes care of that. */
+			infiCam.applyPalette(isInfinite(d.rangeMin) ? NaN : d.rangeMin,
+					isInfinite(d.rangeMax) ? NaN : d.rangeMax);
+			long overwritten = frameBuffer.getOverwritten();
+			frameBuffer.publish();
+			if (frameBuffer.getOverwritten() != overwritten) /* Render thread is behind. */
+				InfiCam.trace(InfiCam.TRACE_DROPPED, InfiCam.TRACE_INSTANT,
+						InfiCam.TRACE_DROP_RENDER);
+			/* One pending post is enough, handleFrame() always takes the latest frame. */
+			if (framePosted.compareAndSet(false, true))
+				surfaceMuxer.post(handleFrameRunnable);
 		}
 	};
 
@@ -468,67 +350,163 @@ public class MainActivity extends BaseActivity {
 				w / 2 - sw / 2 + sw, h / 2 - sh / 2 + sh);
 	}
 
-	private void drawFrame(SurfaceMuxer.OutputSurface os, Overlay overlay, boolean swap) {
+	private void drawFrame(SurfaceMuxer.OutputSurface os, Overlay overlay, Overlay.Data d) {
 		getRect(rect, os.width, os.height);
 		os.clear(0, 0, 0, 1);
 		thruSurface.draw(os, iMode, rect.left, rect.top, rect.width(), rect.height());
-		overlay.draw(overlayData, rect);
+		overlay.draw(d, rect);
 		overlay.surface.draw(os, SurfaceMuxer.DM_LINEAR);
 		// TODO draw normal video if needed
-		if (swap) {
-			os.setPresentationTime(inputSurface.surfaceTexture.getTimestamp());
-			os.swapBuffers();
-		}
 	}
 
+	/* Runs on the render thread, anything touching views has to be posted to the UI thread. */
 	private void handleFrame() {
-		synchronized (frameLock) {
-			if (disconnecting) { /* Don't try stuff when disconnected. */
-				frameLock.notify();
-				return;
+		framePosted.set(false); /* Before acquire(), so a frame published after it posts again. */
+		if (pictureReader.isBusy())
+			pollPicture();
+		if (disconnecting) /* Don't try stuff when disconnected. */
+			return;
+		if (!frameBuffer.acquire())
+			return; /* Nothing new since the last time. */
+		Overlay.Data d = frameBuffer.getFront(); /* Ours until the next acquire(). */
+		long drawStart = System.nanoTime();
+		synchronized (frameLock) { /* For the lock button, so it doesn't touch d. */
+			drawnRangeMin = d.fi.rangeMin;
+			drawnRangeMax = d.fi.rangeMax;
+		}
+		/* The overlay data is the latest complete frame and the SurfaceTexture will latch the
+		 *   latest image on updateTexImage(), so now we can do stuff like taking a picture.
+		 */
+		inputSurface.draw(thruSurface, SurfaceMuxer.DM_SHARPEN);
+		thruSurface.swapBuffers();
+
+		PictureQueue pq = pictureQueue;
+		if (picsWanted.get() > 0 && pq == null) {
+			picsWanted.set(0);
+			handler.post(() -> messageView.showMessage(R.string.msg_permdenied_storage));
+		} else if (picsWanted.get() > 0 && !pictureReader.isBusy() &&
+				(!wantRaw() || d.hasRaw || d.timelapse)) {
+			/* One per frame at most, when the reader is done with the last one. */
+			int w = picWidth, h = picHeight;
+			if (orientation == Surface.ROTATION_0 || orientation == Surface.ROTATION_180) {
+				h ^= w;
+				w ^= h;
+				h ^= w;
 			}
-
-			/* At this point we are certain the frame and the overlayData are matched up with
-			 *   eachother, so now we can do stuff like taking a picture, "the frame" here
-			 *   meaning what's in the SurfaceTexture buffers after the updateTexImage() calls
-			 *   surfaceMuxer should do.
-			 */
-			inputSurface.draw(thruSurface, SurfaceMuxer.DM_SHARPEN);
-			thruSurface.swapBuffers();
-
-			if (takePic && imgCompressThread == null) {
-				messageView.showMessage(R.string.msg_permdenied_storage);
-			} else if (takePic && imgCompressThread.lock.tryLock()) {
-				int w = picWidth, h = picHeight;
-				if (orientation == Surface.ROTATION_0 || orientation == Surface.ROTATION_180) {
-					h ^= w;
-					w ^= h;
-					h ^= w;
+			picture = pq.obtain(w, h);
+			if (picture == null) { /* Still writing the previous ones. */
+				++burstSkipped;
+				handler.post(() -> buttonPhoto.setColorFilter(Color.GRAY));
+			} else {
+				if (outPicture.width != w || outPicture.height != h) {
+					outPicture.setSize(w, h);
+					overlayPicture.setSize(w, h);
 				}
-				SurfaceMuxer.OutputSurface outPicture =
-						new SurfaceMuxer.OutputSurface(surfaceMuxer, null, w, h);
-				overlayPicture.setSize(w, h);
-				drawFrame(outPicture, overlayPicture, false);
-				imgCompressBitmap = outPicture.getBitmap();
-				outPicture.release();
-				imgCompressThread.cond.signal();
-				imgCompressThread.lock.unlock();
-				takePic = false;
-				messageView.shortMessage(R.string.msg_captured);
-				buttonPhoto.setEnabled(false);
-				buttonPhoto.setColorFilter(Color.GRAY);
+				drawFrame(outPicture, overlayPicture, d);
+				pictureReader.start(outPicture); /* We pick it up in pollPicture(). */
+				if (d.hasRaw) { /* Swap rather than copy, d gets the picture's old arrays. */
+					short[] raw = picture.raw;
+					byte[] rawInfo = picture.rawInfo;
+					picture.raw = d.raw;
+					picture.rawInfo = d.rawInfo;
+					picture.hasRaw = true;
+					if (picture.temp == null || picture.temp.length != d.temp.length)
+						picture.temp = new float[d.temp.length];
+					System.arraycopy(d.temp, 0, picture.temp, 0, d.temp.length);
+					picture.width = d.fi.width;
+					picture.height = d.fi.height;
+					d.raw = raw;
+					d.rawInfo = rawInfo;
+					d.hasRaw = false;
+				}
+				++burstTaken;
 			}
+			if (picsWanted.decrementAndGet() <= 0)
+				endBurst();
+		}
+
+		if (outScreen != null) {
+			/* GL only queues the work, so draw is mostly our side of it and the waiting for the
+			 *   GPU (and the display) mostly shows up in swap.
+			 */
+			drawFrame(outScreen, overlayScreen, d);
+			long swapStart = System.nanoTime();
+			infiCam.recordLatency(InfiCam.LATENCY_DRAW, swapStart - drawStart);
+			outScreen.setPresentationTime(inputSurface.surfaceTexture.getTimestamp());
+			InfiCam.trace(InfiCam.TRACE_SWAP, InfiCam.TRACE_BEGIN, 0);
+			outScreen.swapBuffers();
+			InfiCam.trace(InfiCam.TRACE_SWAP, InfiCam.TRACE_END, 0);
+			infiCam.recordLatency(InfiCam.LATENCY_SWAP, System.nanoTime() - swapStart);
+		}
+		if (outRecord != null) {
+			drawFrame(outRecord, overlayRecord, d);
+			/* Time-lapse frames are played back at the normal frame rate, so sped up. Otherwise
+			 *   it's when the frame came from the camera, so the timing is as it was captured.
+			 */
+			if (recordCompressed)
+				outRecord.setPresentationTime(recordFrames++ * 1000000000L /
+						SurfaceRecorder.FRAME_RATE);
+			else outRecord.setPresentationTime((d.fi.timestamp != 0) ? d.fi.timestamp :
+					inputSurface.surfaceTexture.getTimestamp());
+			outRecord.swapBuffers();
+		}
+	}
 
-			if (outScreen != null)
-				drawFrame(outScreen, overlayScreen, true);
-			if (outRecord != null)
-				drawFrame(outRecord, overlayRecord, true);
+	/* Hands the picture to pictureQueue once the pixels made it back from the GPU. */
+	private void pollPicture() {
+		if (!pictureReader.poll(picture.bmp))
+			return;
+		PictureQueue pq = pictureQueue;
+		if (pq != null) /* Otherwise stopped in the meantime, the picture is lost. */
+			pq.submit(picture);
+		picture = null;
+	}
 
-			/* Now we allow another frame to come in */
-			frameLock.notify();
+	/* On the PictureQueue threads. */
+	private void writePicture(PictureQueue.Picture pic) throws IOException {
+		int len = 0;
+		int type = imgType;
+		if (pic.hasRaw && type == Util.IMGTYPE_JPEG_RAD) {
+			int bound = InfiCam.snapshotBound(pic.raw.length);
+			if (pic.encoded == null || pic.encoded.length < bound)
+				pic.encoded = new byte[bound];
+			len = InfiCam.encodeSnapshot(pic.raw, pic.rawInfo, pic.encoded);
+		}
+		Util.writeImage(getApplicationContext(), pic.bmp, type, imgQuality,
+				(len > 0) ? pic.encoded : null, len);
+		if (pic.hasRaw && exportTiff) {
+			pic.tiff = TiffWriter.encode(pic.tiff, pic.width, pic.height, pic.raw, pic.temp,
+					pic.rawInfo);
+			Util.writeTiff(getApplicationContext(), pic.tiff);
 		}
 	}
 
+	/* Render thread, tells how it went when the last picture of a press is taken. */
+	private void endBurst() {
+		final int taken = burstTaken, skipped = burstSkipped;
+		burstTaken = burstSkipped = 0;
+		handler.post(() -> {
+			if (skipped > 0)
+				messageView.showMessage(getString(R.string.msg_pics_skipped, taken, skipped));
+			else if (taken > 1)
+				messageView.shortMessage(getString(R.string.msg_captured_burst, taken));
+			else messageView.shortMessage(R.string.msg_captured);
+		});
+	}
+
+	private final PictureQueue.Listener pictureListener = new PictureQueue.Listener() {
+		@Override
+		public void onWritten(int pending, boolean room) {
+			if (room)
+				handler.post(() -> buttonPhoto.setColorFilter(null));
+		}
+
+		@Override
+		public void onError(Exception e) {
+			handler.post(() -> messageView.showMessage(e.getMessage()));
+		}
+	};
+
 	private void overTempLockout() {
 		messageView.showMessage(R.string.msg_overtemp);
 		infiCam.closeShutter();
@@ -573,6 +551,9 @@ public class MainActivity extends BaseActivity {
 		/* Create and set up the InputSurface for thermal image, imode setting is not final. */
 		inputSurface = new SurfaceMuxer.InputSurface(surfaceMuxer);
 		thruSurface = new SurfaceMuxer.ThroughSurface(surfaceMuxer);
+		outPicture = new SurfaceMuxer.OutputSurface(surfaceMuxer, null);
+		outPicture.flipY = true; /* So PixelReader gives us the rows in Bitmap order. */
+		pictureReader = new SurfaceMuxer.PixelReader(surfaceMuxer);
 
 		infiCam.setSurface(inputSurface.surface);
 		cameraView.getHolder().addCallback(surfaceHolderCallback);
@@ -615,7 +596,11 @@ public class MainActivity extends BaseActivity {
 				if (scale >= 10.0f)
 					scale = 10.0f;
 				overlayData.scale = scale;
-				thruSurface.scale_x = thruSurface.scale_y = scale;
+				final float s = scale;
+				surfaceMuxer.post(() -> thruSurface.scale_x = thruSurface.scale_y = s);
+				/* The automatic range should be of what's shown. */
+				float lost = (1.0f - 1.0f / scale) / 2.0f;
+				infiCam.setAgcArea(lost, lost, 1.0f - lost, 1.0f - lost);
 				messageView.shortMessage(getString(R.string.msg_zoom, (int) (scale * 100.0f)));
 				zl.setText(getString(R.string.zoomlevel, (int) (scale * 100.0f)));
 				return false;
@@ -644,9 +629,9 @@ public class MainActivity extends BaseActivity {
 							messageView.showMessage(R.string.msg_permdenied_storage);
 							return;
 						}
-						takePic = true;
+						picsWanted.set(picsPerPress);
 					});
-				} else takePic = true;
+				} else picsWanted.set(picsPerPress);
 			}
 		});
 
@@ -654,7 +639,8 @@ public class MainActivity extends BaseActivity {
 		buttonPalette.setOnClickListener(view -> {
 			settingsPalette.palette.set((settingsPalette.palette.current + 1) %
 					settingsPalette.palette.items.length);
-			messageView.showMessage(Palette.palettes[settingsPalette.palette.current].name);
+			messageView.showMessage(
+					Palette.palettes[settingsPalette.palette.current].getName(this));
 		});
 		buttonPalette.setOnLongClickListener(view -> {
 			showSettings(settingsPalette);
@@ -665,8 +651,8 @@ public class MainActivity extends BaseActivity {
 		buttonLock.setOnClickListener(view -> {
 			synchronized (frameLock) {
 				if (isNaN(overlayData.rangeMin) && isNaN(overlayData.rangeMax)) {
-					overlayData.rangeMin = overlayData.fi.min;
-					overlayData.rangeMax = overlayData.fi.max;
+					overlayData.rangeMin = drawnRangeMin; /* What's on the screen now. */
+					overlayData.rangeMax = drawnRangeMax;
 					buttonLock.setImageResource(R.drawable.ic_baseline_lock_24);
 					rangeSlider.setVisibility(View.VISIBLE);
 					float start = -20.0f, end = 120.0f;
@@ -781,8 +767,7 @@ public class MainActivity extends BaseActivity {
 		normalCamera.start(this, videoSurface.getSurface());*/
 		//inputSurface.setScale(2.0f, 2.0f); // TODO
 
-		imgCompressThread = new ImgCompressThread();
-		imgCompressThread.start();
+		pictureQueue = new PictureQueue(this::writePicture, pictureListener);
 	}
 
 	@Override
@@ -819,20 +804,26 @@ public class MainActivity extends BaseActivity {
 
 	@Override
 	protected void onPause() {
+		picsWanted.set(0);
+		/* A picture being read back goes with the context, give it back to the queue. */
+		surfaceMuxer.runSync(() -> {
+			pictureReader.cancel();
+			if (picture != null && pictureQueue != null)
+				pictureQueue.recycle(picture);
+			picture = null;
+		});
 		surfaceMuxer.deinit();
-		takePic = false;
 		super.onPause();
 	}
 
 	@Override
 	protected void onStop() {
-		imgCompressThread.shutdown();
-		imgCompressThread = null;
+		pictureQueue.shutdown();
+		pictureQueue = null;
 		unregisterReceiver(batteryRecevier);
 		DisplayManager displayManager = (DisplayManager) getSystemService(Context.DISPLAY_SERVICE);
 		displayManager.unregisterDisplayListener(displayListener);
-		stopRecording();
-		disconnect();
+		disconnect(); /* Also stops recording. */
 		first_connect = false;
 		usbMonitor.stop();
 		super.onStop();
@@ -854,10 +845,12 @@ public class MainActivity extends BaseActivity {
 	@SuppressLint("SourceLockedOrientationActivity")
 	private void updateOrientation() { /* Called on start by SettingsMain. */
 		WindowManager wm = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
+		int oldOrientation = orientation;
 		orientation = wm.getDefaultDisplay().getRotation();
+		if ((oldOrientation ^ orientation) % 2 != 0) /* The video size is swapped now. */
+			restartBuffering();
 		ConstraintLayout.LayoutParams rlp = (ConstraintLayout.LayoutParams) rangeSlider.getLayoutParams();
 		if (orientation == Surface.ROTATION_0 || orientation == Surface.ROTATION_180) {
-			thruSurface.rotate90 = true;
 			buttonsLeft.setOrientation(LinearLayout.HORIZONTAL);
 			buttonsRight.setOrientation(LinearLayout.HORIZONTAL);
 			buttonsLeftLayout.width = ViewGroup.LayoutParams.MATCH_PARENT;
@@ -888,7 +881,6 @@ public class MainActivity extends BaseActivity {
 			rangeSlider.setLayoutParams(rlp);
 			rangeSlider.setVertical(false);
 		} else {
-			thruSurface.rotate90 = false;
 			buttonsLeft.setOrientation(LinearLayout.VERTICAL);
 			buttonsRight.setOrientation(LinearLayout.VERTICAL);
 			buttonsLeftLayout.width = ViewGroup.LayoutParams.WRAP_CONTENT;
@@ -926,17 +918,18 @@ public class MainActivity extends BaseActivity {
 			rangeSlider.setLayoutParams(rlp);
 			rangeSlider.setVertical(true);
 		}
+		final boolean rot90 = orientation == Surface.ROTATION_0 ||
+				orientation == Surface.ROTATION_180;
+		final boolean rot = (orientation == Surface.ROTATION_270 ||
+				orientation == Surface.ROTATION_180) != rotate;
 		synchronized (frameLock) {
-			overlayData.rotate90 = orientation == Surface.ROTATION_0 ||
-					orientation == Surface.ROTATION_180;
-			if (orientation == Surface.ROTATION_270 || orientation == Surface.ROTATION_180) {
-				overlayData.rotate = !rotate;
-				thruSurface.rotate = !rotate;
-			} else {
-				overlayData.rotate = rotate;
-				thruSurface.rotate = rotate;
-			}
+			overlayData.rotate90 = rot90;
+			overlayData.rotate = rot;
 		}
+		surfaceMuxer.post(() -> { /* Both at once, so no frame is drawn half rotated. */
+			thruSurface.rotate90 = rot90;
+			thruSurface.rotate = rot;
+		});
 	}
 
 	private void showSettings(Settings settings) {
@@ -950,12 +943,14 @@ public class MainActivity extends BaseActivity {
 	}
 
 	private void disconnect() {
+		disconnecting = true; /* Before stopRecording() so it doesn't start buffering again. */
 		stopRecording();
-		synchronized (frameLock) { /* Make sure the frameLock thing doesn't deadlock. */
-			disconnecting = true;
-			frameLock.notify();
-		}
 		infiCam.stopStream();
+		if (frameBuffer.getPublished() > 0)
+			Log.i("MainActivity", "Frames published: " + frameBuffer.getPublished() +
+					", skipped by UI: " + frameBuffer.getOverwritten() +
+					", drawn: " + frameBuffer.getAcquired() +
+					", UI idle wakeups: " + frameBuffer.getIdle());
 		infiCam.disconnect();
 		first_connect = false;
 		if (usbConnection != null)
@@ -966,7 +961,7 @@ public class MainActivity extends BaseActivity {
 	}
 
 	private void toggleRecording() {
-		if (!recorder.isRecording() && usbConnection != null) {
+		if ((!recorder.isRecording() || recorder.isBuffering()) && usbConnection != null) {
 			askPermission(Manifest.permission.CAMERA, granted -> {
 				if (granted) {
 					if (!recordAudio) {
@@ -995,35 +990,111 @@ public class MainActivity extends BaseActivity {
 		} else _startRecording(recordAudio);
 	}
 
+	/* Start the recorder and draw to it, it only writes a file after saveBuffer() if
+	 *   bufferSize isn't 0. Request audio permission first when necessary!
+	 */
+	private void startRecorder(boolean recordAudio, int bufferSize) throws IOException {
+		int w = vidWidth, h = vidHeight;
+		if (orientation == Surface.ROTATION_0 || orientation == Surface.ROTATION_180) {
+			h ^= w;
+			w ^= h;
+			h ^= w;
+		}
+		final int fw = w, fh = h;
+		final boolean compressed = timelapse > 1 && !timelapseRealtime; /* Sound makes no sense. */
+		float fps = (frameInterval > 0) ? 1.0f / frameInterval : 0;
+		recorder.setFrameRate(compressed ? SurfaceRecorder.FRAME_RATE : fps / timelapse);
+		Surface rsurface = (bufferSize > 0) ?
+				recorder.startBuffered(this, w, h, recordAudio && !compressed, bufferSize) :
+				recorder.start(this, w, h, recordAudio && !compressed);
+		surfaceMuxer.runSync(() -> {
+			SurfaceMuxer.OutputSurface os =
+					new SurfaceMuxer.OutputSurface(surfaceMuxer, rsurface, fw, fh);
+			overlayRecord.setSize(fw, fh);
+			recordCompressed = compressed;
+			recordFrames = 0;
+			outRecord = os; /* Only now the render thread can start drawing to it. */
+		});
+	}
+
+	private void stopRecorder() {
+		/* Stop drawing to the encoder surface before the encoder goes away. */
+		surfaceMuxer.runSync(() -> {
+			if (outRecord != null) {
+				outRecord.release();
+				outRecord = null;
+			}
+		});
+		recorder.stop();
+	}
+
+	/* With the pre-event buffer on, the recorder runs all the time while connected so pressing
+	 *   record can save what happened just before. Audio only if we already have permission,
+	 *   asking would be rather out of the blue here.
+	 */
+	private void startBuffering() {
+		if (preBufferSize == 0 || timelapse > 1 || usbConnection == null || disconnecting ||
+				recorder.isRecording())
+			return; /* A buffer of normal video doesn't go with time-lapse. */
+		try {
+			startRecorder(recordAudio && checkPermission(Manifest.permission.RECORD_AUDIO),
+					preBufferSize);
+		} catch (IOException e) {
+			e.printStackTrace();
+			stopRecorder();
+			messageView.showMessage(R.string.msg_failrecord);
+		}
+	}
+
+	/* For when the settings for it change, a recording that's being saved isn't touched. */
+	private void restartBuffering() {
+		if (recorder.isBuffering())
+			stopRecorder();
+		startBuffering();
+	}
+
 	/* Request audio permission first when necessary! */
 	private void _startRecording(boolean recordAudio) {
 		try {
-			int w = vidWidth, h = vidHeight;
-			if (orientation == Surface.ROTATION_0 || orientation == Surface.ROTATION_180) {
-				h ^= w;
-				w ^= h;
-				h ^= w;
-			}
-			Surface rsurface = recorder.start(this, w, h, recordAudio);
-			outRecord = new SurfaceMuxer.OutputSurface(surfaceMuxer, rsurface);
-			outRecord.setSize(w, h);
-			overlayRecord.setSize(w, h);
+			if (recorder.isBuffering())
+				recorder.saveBuffer(); /* Keeps going with what's buffered at the start. */
+			else startRecorder(recordAudio, 0);
+			infiCam.setTimelapse(timelapse, timelapseMode); /* Only the recording is slowed down. */
 			ImageButton buttonVideo = findViewById(R.id.buttonVideo);
 			buttonVideo.setColorFilter(Color.RED);
 		} catch (IOException e) {
 			e.printStackTrace();
 			messageView.showMessage(R.string.msg_failrecord);
+			return;
+		}
+		if (recordRadiometric) {
+			try {
+				ParcelFileDescriptor pfd = ParcelFileDescriptor.open(Util.radiometricFile(this),
+						ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE |
+						ParcelFileDescriptor.MODE_TRUNCATE);
+				infiCam.startRecording(pfd.detachFd()); /* It closes the fd. */
+			} catch (Exception e) {
+				e.printStackTrace();
+				messageView.showMessage(R.string.msg_failrecord_rad);
+			}
 		}
 	}
 
 	private void stopRecording() {
 		ImageButton buttonVideo = findViewById(R.id.buttonVideo);
 		buttonVideo.clearColorFilter();
-		recorder.stop();
-		if (outRecord != null) {
-			outRecord.release();
-			outRecord = null;
+		stopRecorder();
+		infiCam.setTimelapse(1, timelapseMode);
+		try {
+			infiCam.stopRecording(); /* Fine if it wasn't recording. */
+		} catch (RuntimeException e) {
+			messageView.showMessage(R.string.msg_failrecord_rad);
 		}
+		if (infiCam.getRecordFramesWritten() > 0)
+			Log.i("MainActivity", "Radiometric frames written: " +
+					infiCam.getRecordFramesWritten() + ", dropped: " +
+					infiCam.getRecordFramesDropped());
+		startBuffering(); /* Ready for the next one. */
 	}
 
 	public void updateBatLevel(Intent batteryStatus) {
@@ -1050,9 +1121,36 @@ public class MainActivity extends BaseActivity {
 	}
 
 	public void setIMode(int value) { iMode = value; }
-	public void setSharpening(float value) { inputSurface.sharpening = value; }
+	public void setSharpening(float value) {
+		surfaceMuxer.post(() -> inputSurface.sharpening = value);
+	}
+
+	public void setRecordAudio(boolean value) {
+		recordAudio = value;
+		restartBuffering();
+	}
+
+	/* Changes take effect on the next recording. */
+	public void setTimelapse(int frames) {
+		timelapse = frames;
+		restartBuffering(); /* Which might mean stop. */
+	}
+
+	public void setTimelapseMode(int mode) { timelapseMode = mode; }
 
-	public void setRecordAudio(boolean value) { recordAudio = value; }
+	public void setTimelapseRealtime(boolean value) { timelapseRealtime = value; }
+
+	public void setAdaptiveBitrate(boolean value) {
+		recorder.setAdaptiveBitrate(value);
+		restartBuffering();
+	}
+
+	public void setPreBuffer(int mb) {
+		preBufferSize = mb * 1024 * 1024;
+		restartBuffering(); /* Different size ring, or none at all. */
+	}
+
+	public void setRecordRadiometric(boolean value) { recordRadiometric = value; }
 
 	public void setRange(int range) {
 		if (this.range == range)
@@ -1092,8 +1190,8 @@ public class MainActivity extends BaseActivity {
 	public void setMirror(boolean value) {
 		synchronized (frameLock) {
 			overlayData.mirror = value;
-			thruSurface.mirror = value;
 		}
+		surfaceMuxer.post(() -> thruSurface.mirror = value);
 	}
 
 	public void setShowCenter(boolean value) {
@@ -1120,14 +1218,45 @@ public class MainActivity extends BaseActivity {
 		}
 	}
 
+	public void setTrace(boolean value) { InfiCam.setTrace(value); }
+
+	/* Writes the event trace as Chrome trace JSON to the app's own storage, like radiometric
+	 *   recordings, that's enough for sending it along with a bug report.
+	 */
+	public void saveTrace() {
+		if (!InfiCam.isTraceEnabled()) {
+			messageView.showMessage(R.string.msg_trace_disabled);
+			return;
+		}
+		try {
+			File file = Util.traceFile(this);
+			ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file,
+					ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE |
+					ParcelFileDescriptor.MODE_TRUNCATE);
+			InfiCam.dumpTrace(pfd.detachFd(), InfiCam.TRACE_FORMAT_JSON); /* It closes the fd. */
+			messageView.showMessage(getString(R.string.msg_trace_saved, file.getPath()));
+		} catch (Exception e) {
+			e.printStackTrace();
+			messageView.showMessage(R.string.msg_fail_trace);
+		}
+	}
+
+	public void setShowLatency(boolean value) {
+		infiCam.resetLatency(); /* So what's shown is from when it was turned on. */
+		synchronized (frameLock) {
+			overlayData.showLatency = value;
+		}
+	}
+
 	public void setPicSize(int w, int h) {
-		picWidth = w; /* No need to sync, only used on UI thread. */
+		picWidth = w; /* Read on the render thread, a half updated size is harmless. */
 		picHeight = h;
 	}
 
 	public void setVidSize(int w, int h) {
 		vidWidth = w;
 		vidHeight = h;
+		restartBuffering();
 	}
 
 	public void setOrientation(int i) {
@@ -1135,22 +1264,37 @@ public class MainActivity extends BaseActivity {
 		updateOrientation();
 	}
 
-	public void setImgType(int i) {
-		if (imgCompressThread != null)
-			imgCompressThread.lock.lock();
-		imgType = i;
-		if (imgCompressThread != null)
-			imgCompressThread.lock.unlock();
+	public void setImgType(int i) { imgType = i; } /* For pictures written after this. */
+
+	public void setImgQuality(int i) { imgQuality = i; }
+
+	public void setPicsPerPress(int i) { picsPerPress = i; }
+
+	public void setExportTiff(boolean value) { exportTiff = value; }
+
+	public void setAgcAttack(float seconds) {
+		agcAttack = seconds;
+		infiCam.setAgc(agcAttack, agcDecay, agcClip, agcHysteresis);
 	}
 
-	public void setImgQuality(int i) {
-		if (imgCompressThread != null)
-			imgCompressThread.lock.lock();
-		imgQuality = i;
-		if (imgCompressThread != null)
-			imgCompressThread.lock.unlock();
+	public void setAgcDecay(float seconds) {
+		agcDecay = seconds;
+		infiCam.setAgc(agcAttack, agcDecay, agcClip, agcHysteresis);
 	}
 
+	public void setAgcClip(float percent) {
+		agcClip = percent / 100.0f;
+		infiCam.setAgc(agcAttack, agcDecay, agcClip, agcHysteresis);
+	}
+
+	public void setAgcHysteresis(float percent) {
+		agcHysteresis = percent / 100.0f;
+		infiCam.setAgc(agcAttack, agcDecay, agcClip, agcHysteresis);
+	}
+
+	/* Whether pictures need the raw frame, see onFrame(). */
+	private boolean wantRaw() { return imgType == Util.IMGTYPE_JPEG_RAD || exportTiff; }
+
 	public void setTempUnit(int i) {
 		synchronized (frameLock) {
 			overlayData.tempUnit = i;
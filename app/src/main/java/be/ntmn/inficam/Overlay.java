@@ -23,15 +23,48 @@ public class Overlay {
 	public static class Data {
 		public InfiCam.FrameInfo fi = new InfiCam.FrameInfo();
 		public float[] temp;
+		public short[] raw; /* For radiometric pictures, if hasRaw (see InfiCam.getSnapshot()). */
+		public byte[] rawInfo;
+		public boolean hasRaw = false;
+		public boolean timelapse = false; /* Has no raw because it's a time-lapse frame. */
 		public int[] palette;
+		public int[] latency; /* If showLatency, as from InfiCam.getLatency(). */
 		public float rangeMin = NaN, rangeMax = NaN;
 		public boolean rotate = false, mirror = false, rotate90 = false; /* Set by Settings. */
 		public boolean showMin = false; /* Set by SettingsTherm. */
 		public boolean showMax = false;
 		public boolean showCenter = false;
 		public boolean showPalette = false;
+		public boolean showLatency = false; /* Set by SettingsMain. */
 		public float scale = 1.0f;
 		public int tempUnit = Util.TEMPUNIT_CELSIUS;
+
+		/* Copy everything but the frame itself. */
+		public void copySettings(Data d) {
+			palette = d.palette;
+			rangeMin = d.rangeMin;
+			rangeMax = d.rangeMax;
+			rotate = d.rotate;
+			mirror = d.mirror;
+			rotate90 = d.rotate90;
+			showMin = d.showMin;
+			showMax = d.showMax;
+			showCenter = d.showCenter;
+			showPalette = d.showPalette;
+			showLatency = d.showLatency;
+			scale = d.scale;
+			tempUnit = d.tempUnit;
+		}
+
+		/* Copy the frame into our own FrameInfo and temp array, temp only gets (re)allocated when
+		 *   the frame size changes.
+		 */
+		public void copyFrame(InfiCam.FrameInfo fi, float[] temp) {
+			this.fi.copyFrom(fi);
+			if (this.temp == null || this.temp.length != temp.length)
+				this.temp = new float[temp.length];
+			System.arraycopy(temp, 0, this.temp, 0, temp.length);
+		}
 	}
 
 	public final SurfaceMuxer.InputSurface surface;
@@ -56,6 +89,10 @@ public class Overlay {
 	private final static float woutline = 0.008f; /* Text outline thickness. */
 	private final static float pwidth = 0.038f; /* Palette preview width. */
 	private final static float pclearance = 0.016f;
+	private final static float lscale = 0.6f; /* Latency text size relative to the rest. */
+	private final static String[] latencyNames = { /* Indexed by InfiCam.LATENCY_*. */
+			"usb", "calib", "conv", "jni", "java", "palette", "draw", "swap"
+	};
 
 	private final StringBuilder sb = new StringBuilder();
 
@@ -110,6 +147,11 @@ public class Overlay {
 		out.avg /= (right - left) * (bottom - top);
 	}
 
+	/* Microseconds as milliseconds with one decimal, without the allocating String.format(). */
+	private static void appendMs(StringBuilder sb, int us) {
+		sb.append(us / 1000).append('.').append(us % 1000 / 100);
+	}
+
 	private void drawText(Canvas cvs, StringBuilder sb, float x, float y, boolean la, boolean ta) {
 		float theight = (int) -(paint.descent() + paint.ascent());
 		paint.setTextAlign(la ? Paint.Align.LEFT : Paint.Align.RIGHT);
@@ -152,6 +194,9 @@ public class Overlay {
 			int isize = (int) (theight + woutline * vRect.width());
 			int iclear = (int) (clear - (woutline * vRect.width()) / 2.0f);
 			paint.setColor(Color.WHITE);
+			/* What the palette is stretched over, locked or the automatic range. */
+			float rangeMin = Float.isNaN(d.rangeMin) ? d.fi.rangeMin : d.rangeMin;
+			float rangeMax = Float.isNaN(d.rangeMax) ? d.fi.rangeMax : d.rangeMax;
 			if (width <= vRect.width()) {
 				drawPalette(cvs,
 						(int) (vRect.right - clear - pwidth * vRect.width()),
@@ -159,7 +204,7 @@ public class Overlay {
 						vRect.right - clear,
 						vRect.bottom - theight - clear * 2,
 						d.palette);
-				Util.formatTemp(sb, Float.isNaN(d.rangeMax) ? d.fi.max : d.rangeMax, d.tempUnit);
+				Util.formatTemp(sb, rangeMax, d.tempUnit);
 				drawText(cvs, sb, vRect.right - clear, vRect.top + clear, false, true);
 				if (!Float.isNaN(d.rangeMax)) {
 					int off = (int) paintTextOutline.measureText(sb, 0, sb.length());
@@ -167,7 +212,7 @@ public class Overlay {
 							vRect.right - clear - off, vRect.top + iclear + isize);
 					lock.draw(cvs);
 				}
-				Util.formatTemp(sb, Float.isNaN(d.rangeMin) ? d.fi.min : d.rangeMin, d.tempUnit);
+				Util.formatTemp(sb, rangeMin, d.tempUnit);
 				drawText(cvs, sb, vRect.right - clear, vRect.bottom - clear, false, false);
 				if (!Float.isNaN(d.rangeMin)) {
 					int off = (int) paintTextOutline.measureText(sb, 0, sb.length());
@@ -182,7 +227,7 @@ public class Overlay {
 						(int) (vRect.right + clear + pwidth * vRect.width()),
 						vRect.bottom - theight - clear * 2,
 						d.palette);
-				Util.formatTemp(sb, Float.isNaN(d.rangeMax) ? d.fi.max : d.rangeMax, d.tempUnit);
+				Util.formatTemp(sb, rangeMax, d.tempUnit);
 				drawText(cvs, sb, vRect.right + clear, vRect.top + clear, true, true);
 				if (!Float.isNaN(d.rangeMax)) {
 					int off = (int) paintTextOutline.measureText(sb, 0, sb.length());
@@ -190,7 +235,7 @@ public class Overlay {
 							vRect.right + clear + off + isize, vRect.top + iclear + isize);
 					lock.draw(cvs);
 				}
-				Util.formatTemp(sb, Float.isNaN(d.rangeMin) ? d.fi.min : d.rangeMin, d.tempUnit);
+				Util.formatTemp(sb, rangeMin, d.tempUnit);
 				drawText(cvs, sb, vRect.right + clear, vRect.bottom - clear, true, false);
 				if (!Float.isNaN(d.rangeMin)) {
 					int off = (int) paintTextOutline.measureText(sb, 0, sb.length());
@@ -201,6 +246,29 @@ public class Overlay {
 			}
 		}
 
+		if (d.showLatency && d.latency != null) { /* Last, it changes the text size. */
+			int clear = (int) (pclearance * vRect.width());
+			paint.setTextSize(textsize * lscale * w);
+			paintTextOutline.setTextSize(textsize * lscale * w);
+			paintTextOutline.setStrokeWidth(woutline * lscale * w);
+			float lheight = (paint.descent() - paint.ascent()) * 1.1f;
+			paint.setColor(Color.WHITE);
+			for (int i = 0; i < InfiCam.LATENCY_COUNT; ++i) {
+				int off = i * InfiCam.latencyStride;
+				sb.setLength(0);
+				sb.append(latencyNames[i]).append(' ');
+				if (d.latency[off + InfiCam.LATENCY_FRAMES] == 0) {
+					sb.append('-');
+				} else {
+					appendMs(sb, d.latency[off + InfiCam.LATENCY_P50]);
+					sb.append(" / ");
+					appendMs(sb, d.latency[off + InfiCam.LATENCY_P99]);
+					sb.append(" ms");
+				}
+				drawText(cvs, sb, vRect.left + clear, vRect.top + clear + i * lheight, true, true);
+			}
+		}
+
 		surface.surface.unlockCanvasAndPost(cvs);
 	}
 
@@ -8,97 +8,145 @@ import static java.lang.Math.round;
 import static java.lang.Math.sin;
 import static java.lang.Math.sqrt;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import be.ntmn.libinficam.InfiCam;
 
 public abstract class Palette {
 	public int name;
+	public String title; /* For the ones that aren't built in, those have name 0. */
 
-	public Palette(int name) { this.name = name; }
-
-	private static class Pixel {
-		double r, g, b;
+	private int[] data; /* Guarded by this. */
+	private static boolean generating = false;
 
-		Pixel(double r, double g, double b) {
-			this.r = r;
-			this.g = g;
-			this.b = b;
-		}
-	}
+	public Palette(int name) { this.name = name; }
 
-	abstract Pixel func(double x);
+	/* Puts r, g and b (0 to 1) of x (0 to 1) in out, without allocating since it's called for
+	 *   every entry.
+	 */
+	abstract void func(double x, double[] out);
 
 	private static final Palette WhiteHot = new Palette(R.string.palette_whitehot) {
 		@Override
-		public Pixel func(double x) {
-			return new Pixel(x, x, x);
+		public void func(double x, double[] out) {
+			set(out, x, x, x);
 		}
 	};
 
 	private static final Palette BlackHot = new Palette(R.string.palette_blackhot) {
 		@Override
-		public Pixel func(double x) {
-			return new Pixel(1 - x, 1 - x, 1 - x);
+		public void func(double x, double[] out) {
+			set(out, 1 - x, 1 - x, 1 - x);
 		}
 	};
 
 	private static final Palette RedHot = new Palette(R.string.palette_redhot) {
 		@Override
-		public Pixel func(double x) {
-			return new Pixel(x, 0, 0);
+		public void func(double x, double[] out) {
+			set(out, x, 0, 0);
 		}
 	};
 
 	private static final Palette RedCold = new Palette(R.string.palette_redcold) {
 		@Override
-		public Pixel func(double x) {
-			return new Pixel(1 - x, 0, 0);
+		public void func(double x, double[] out) {
+			set(out, 1 - x, 0, 0);
 		}
 	};
 
 	private static final Palette GreenHot = new Palette(R.string.palette_greenhot) {
 		@Override
-		public Pixel func(double x) {
-			return new Pixel(0, x, 0);
+		public void func(double x, double[] out) {
+			set(out, 0, x, 0);
 		}
 	};
 
 	private static final Palette GreenCold = new Palette(R.string.palette_greencold) {
 		@Override
-		public Pixel func(double x) {
-			return new Pixel(0, 1 - x, 0);
+		public void func(double x, double[] out) {
+			set(out, 0, 1 - x, 0);
 		}
 	};
 
 	private static final Palette Ironbow = new Palette(R.string.palette_ironbow) {
 		@Override
-		public Pixel func(double x) {
-			return new Pixel(sqrt(x), pow(x, 3), max(0.0, sin(2.0 * PI * x)));
+		public void func(double x, double[] out) {
+			set(out, sqrt(x), pow(x, 3), max(0.0, sin(2.0 * PI * x)));
 		}
 	};
 
 	private static final Palette Rainbow = new Palette(R.string.palette_rainbow) {
 		@Override
-		Pixel func(double x) {
-			return hsvPixel((1 - x) * 360.0, 1, 1);
+		void func(double x, double[] out) {
+			hsvPixel(out, (1 - x) * 360.0, 1, 1);
 		}
 	};
 
 	private static final Palette Rainbow2 = new Palette(R.string.palette_rainbow2) {
 		@Override
-		Pixel func(double x) {
-			return hsvPixel((1 - x) * 270.0, 1, 1);
+		void func(double x, double[] out) {
+			hsvPixel(out, (1 - x) * 270.0, 1, 1);
 		}
 	};
 
-	public static Palette[] palettes = new Palette[] {
+	private static final Palette[] builtin = new Palette[] {
 			WhiteHot, BlackHot, RedHot, RedCold, GreenHot, GreenCold, Ironbow, Rainbow, Rainbow2
 	};
 
-	private static Pixel hsvPixel(double h, double s, double v) {
+	public static volatile Palette[] palettes = builtin;
+
+	/* GradientPalettes by file path, modification time and size, so they're only loaded and
+	 *   generated again when changed.
+	 */
+	private static final HashMap<String, GradientPalette> gradients = new HashMap<>();
+
+	public String getName(Context ctx) { return (title != null) ? title : ctx.getString(name); }
+
+	/* Sets palettes to the built in ones followed by the GradientPalette files in the palettes
+	 *   dir of the app's external files, sorted by file name. Files that don't make sense are left
+	 *   out.
+	 */
+	public static synchronized void loadGradients(Context ctx) {
+		ArrayList<Palette> list = new ArrayList<>(Arrays.asList(builtin));
+		HashMap<String, GradientPalette> found = new HashMap<>();
+		File dir = ctx.getExternalFilesDir("palettes");
+		File[] files = (dir != null) ? dir.listFiles() : null;
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (!file.getName().endsWith(GradientPalette.EXT))
+					continue;
+				String key = file.getPath() + ":" + file.lastModified() + ":" + file.length();
+				GradientPalette p = gradients.get(key);
+				try {
+					if (p == null)
+						p = GradientPalette.load(file);
+					found.put(key, p);
+					list.add(p);
+				} catch (Exception e) {
+					Log.w("Palette", e.getMessage());
+				}
+			}
+		}
+		gradients.clear();
+		gradients.putAll(found);
+		palettes = list.toArray(new Palette[0]);
+		generating = false; /* Those that are new weren't generated yet. */
+	}
+
+	private static void set(double[] out, double r, double g, double b) {
+		out[0] = r;
+		out[1] = g;
+		out[2] = b;
+	}
+
+	private static void hsvPixel(double[] out, double h, double s, double v) {
 		double r, g, b;
 		double c = s * v;
 		double y = c * (1 - abs((h / 60.0) % 2 - 1));
@@ -116,22 +164,43 @@ public abstract class Palette {
 		} else {
 			r = c; g = 0; b = y;
 		}
-		return new Pixel(r + m, g + m, b + m);
+		set(out, r + m, g + m, b + m);
 	}
 
-	public int[] getData() {
-		byte[] palette = new byte[InfiCam.paletteLen * 4];
-		for (int i = 0; i + 4 <= palette.length; i += 4) {
-			double x = (float) i / (float) palette.length;
-			Pixel pixel = func(x);
-			palette[i + 0] = (byte) round(255.0 * pixel.r);
-			palette[i + 1] = (byte) round(255.0 * pixel.g);
-			palette[i + 2] = (byte) round(255.0 * pixel.b);
-			palette[i + 3] = (byte) 255;
+	/* Generated once and then kept, so don't change what's returned. Palettes not asked for yet
+	 *   are made in the background after the first one (see generateAll()), so switching is
+	 *   instant.
+	 */
+	public synchronized int[] getData() {
+		if (data == null)
+			data = generate();
+		return data;
+	}
+
+	private int[] generate() {
+		int[] palette = new int[InfiCam.paletteLen];
+		double[] rgb = new double[3];
+		for (int i = 0; i < palette.length; ++i) {
+			func((float) i / (float) palette.length, rgb);
+			palette[i] = 0xFF000000 | /* RGBA bytes, little endian. */
+					(int) round(255.0 * rgb[2]) << 16 |
+					(int) round(255.0 * rgb[1]) << 8 |
+					(int) round(255.0 * rgb[0]);
 		}
-		IntBuffer ib = ByteBuffer.wrap(palette).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
-		int[] intPalette = new int[ib.remaining()];
-		ib.get(intPalette);
-		return intPalette;
+		return palette;
+	}
+
+	/* Starts making all the palettes on a low priority thread, only the first call does. */
+	public static synchronized void generateAll() {
+		if (generating)
+			return;
+		generating = true;
+		Thread t = new Thread(() -> {
+			for (Palette p : palettes)
+				p.getData();
+		}, "Palette");
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.setDaemon(true);
+		t.start();
 	}
 }
@@ -0,0 +1,146 @@
+package be.ntmn.inficam;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/* Pictures waiting to be compressed and written, so they can be taken faster than that (bursts).
+ *   The render thread gets a bitmap with obtain(), fills it and hands it over with submit(), a
+ *   few writer threads compress them and the bitmaps go back in the pool to be used again.
+ *
+ * There's room for a fixed amount of pictures, depending on how big they are and how much memory
+ *   we may use. When they're all taken obtain() returns null, it's up to the caller to tell the
+ *   user the shot was skipped, and onWritten() says when there's room again.
+ *
+ * A picture can have the raw frame with it for radiometric pictures, the arrays for that are
+ *   kept with it too and can be swapped with the caller's rather than copied.
+ */
+public class PictureQueue {
+	private static final int MAX_PICTURES = 16;
+	private static final int WRITERS = 2;
+	private static final int MEMORY_PART = 4; /* Use at most 1/MEMORY_PART of the max memory. */
+
+	public static class Picture {
+		public Bitmap bmp; /* ARGB_8888. */
+		public short[] raw; /* See InfiCam.getSnapshot(), only used if hasRaw. */
+		public byte[] rawInfo;
+		public float[] temp; /* Of the image part of raw, width * height. */
+		public int width, height;
+		public boolean hasRaw;
+		public byte[] encoded; /* For the writer to keep what it needs between pictures. */
+		public ByteBuffer tiff;
+	}
+
+	public interface Writer { void write(Picture pic) throws Exception; }
+
+	/* Called on the writer threads, or whichever calls recycle(). */
+	public interface Listener {
+		void onWritten(int pending, boolean room);
+		void onError(Exception e);
+	}
+
+	private final Writer writer;
+	private final Listener listener;
+	private final ArrayDeque<Picture> free = new ArrayDeque<>();
+	private final ArrayDeque<Picture> queue = new ArrayDeque<>();
+	private final Thread[] threads = new Thread[WRITERS];
+	private int width, height, capacity;
+	private int pending; /* Obtained and not written yet. */
+	private boolean stop = false;
+
+	public PictureQueue(Writer writer, Listener listener) {
+		this.writer = writer;
+		this.listener = listener;
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread(this::run, "PictureQueue " + i);
+			threads[i].start();
+		}
+	}
+
+	/* Returns a picture with a bitmap of the given size, or null if the queue is full. */
+	public synchronized Picture obtain(int w, int h) {
+		if (stop)
+			return null;
+		if (w != width || h != height) {
+			for (Picture pic : free)
+				pic.bmp.recycle();
+			free.clear();
+			width = w;
+			height = h;
+			long room = Runtime.getRuntime().maxMemory() / MEMORY_PART / ((long) w * h * 4);
+			capacity = (int) Math.max(1, Math.min(room, MAX_PICTURES));
+		}
+		if (pending >= capacity)
+			return null;
+		Picture pic = free.poll();
+		if (pic == null) {
+			pic = new Picture();
+			pic.bmp = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+		}
+		pic.hasRaw = false;
+		++pending;
+		return pic;
+	}
+
+	/* To be written, in the order given. */
+	public synchronized void submit(Picture pic) {
+		queue.add(pic);
+		notify();
+	}
+
+	/* Gives back a picture from obtain() that isn't going to be submitted after all. */
+	public void recycle(Picture pic) {
+		int left;
+		boolean room;
+		synchronized (this) {
+			left = put(pic);
+			room = pending < capacity;
+		}
+		listener.onWritten(left, room);
+	}
+
+	/* What's queued still gets written, but we don't wait for it. */
+	public synchronized void shutdown() {
+		stop = true;
+		notifyAll();
+	}
+
+	private void run() {
+		while (true) {
+			Picture pic;
+			synchronized (this) {
+				while (queue.isEmpty() && !stop) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				if (queue.isEmpty())
+					break;
+				pic = queue.poll();
+			}
+			try {
+				writer.write(pic);
+			} catch (Exception e) {
+				listener.onError(e);
+			}
+			int left;
+			boolean room;
+			synchronized (this) {
+				left = put(pic);
+				room = pending < capacity;
+			}
+			listener.onWritten(left, room);
+		}
+	}
+
+	/* Back in the pool when done with, returns how many are still pending. */
+	private int put(Picture pic) {
+		if (stop || pic.bmp.getWidth() != width || pic.bmp.getHeight() != height)
+			pic.bmp.recycle();
+		else free.add(pic);
+		return --pending;
+	}
+}
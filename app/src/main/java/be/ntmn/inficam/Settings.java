@@ -85,6 +85,7 @@ public abstract class Settings extends LinearLayout {
 		private final int def;
 		private RadioGroup rg;
 		public int[] items;
+		public String[] itemNames; /* If not null, the text for items that are 0. */
 		public int current;
 
 		SettingRadio(String name, int res, int def, int[] items) {
@@ -108,9 +109,11 @@ public abstract class Settings extends LinearLayout {
 				current = i - 1;
 				onSet(i - 1);
 			});
-			for (int item : items) {
+			for (int i = 0; i < items.length; ++i) {
 				RadioButton rb = new RadioButton(getContext());
-				rb.setText(item);
+				if (items[i] == 0 && itemNames != null)
+					rb.setText(itemNames[i]);
+				else rb.setText(items[i]);
 				rb.setLayoutParams(new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
 						ViewGroup.LayoutParams.WRAP_CONTENT));
 				rg.addView(rb);
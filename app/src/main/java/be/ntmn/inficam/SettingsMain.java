@@ -6,6 +6,8 @@ import android.util.AttributeSet;
 
 import androidx.annotation.Nullable;
 
+import be.ntmn.libinficam.InfiCam;
+
 public class SettingsMain extends Settings {
 	private static final String SP_NAME = "PREFS";
 	private static final int name = R.string.dialog_set_main;
@@ -120,6 +122,35 @@ public class SettingsMain extends Settings {
 			@Override
 			void onSet(boolean value) { act.setRecordAudio(value); }
 		},
+		new SettingBool("recordradiometric", R.string.set_recordradiometric, false) {
+			@Override
+			void onSet(boolean value) { act.setRecordRadiometric(value); }
+		},
+		new SettingBool("adaptive_bitrate", R.string.set_adaptive_bitrate, true) {
+			@Override
+			void onSet(boolean value) { act.setAdaptiveBitrate(value); }
+		},
+		new SettingSliderInt("prebuffer", R.string.set_prebuffer, 0, 0, 64, 4) {
+			@Override
+			void onSet(int i) { act.setPreBuffer(i); }
+		},
+		new SettingSliderInt("timelapse", R.string.set_timelapse, 1, 1, 250, 1) {
+			@Override
+			void onSet(int i) { act.setTimelapse(i); }
+		},
+		new SettingRadio("timelapse_mode", R.string.set_timelapse_mode, 0, new int[] {
+				R.string.timelapse_average,
+				R.string.timelapse_max
+			}) {
+			@Override
+			void onSet(int i) {
+				act.setTimelapseMode((i == 1) ? InfiCam.TIMELAPSE_MAX : InfiCam.TIMELAPSE_AVERAGE);
+			}
+		},
+		new SettingBool("timelapse_realtime", R.string.set_timelapse_realtime, false) {
+			@Override
+			void onSet(boolean value) { act.setTimelapseRealtime(value); }
+		},
 		new SettingBool("fullscreen", R.string.set_fullscreen, true) {
 			@Override
 			void onSet(boolean value) { act.setFullscreen(value); }
@@ -143,7 +174,8 @@ public class SettingsMain extends Settings {
 		new SettingRadio("pic_type", R.string.set_pic_type, 0, new int[] {
 				R.string.img_type_png,
 				R.string.img_type_png565,
-				R.string.img_type_jpeg
+				R.string.img_type_jpeg,
+				R.string.img_type_jpeg_rad
 			}) {
 			@Override
 			void onSet(int i) { act.setImgType(i); }
@@ -152,6 +184,14 @@ public class SettingsMain extends Settings {
 			@Override
 			void onSet(int i) { act.setImgQuality(i); }
 		},
+		new SettingBool("pic_tiff", R.string.set_pic_tiff, false) {
+			@Override
+			void onSet(boolean value) { act.setExportTiff(value); }
+		},
+		new SettingSliderInt("pic_burst", R.string.set_pic_burst, 1, 1, 50, 1) {
+			@Override
+			void onSet(int i) { act.setPicsPerPress(i); }
+		},
 		new SettingResolution("pic_res", R.string.set_pic_res) {
 			@Override
 			void onSetRes(int w, int h) {
@@ -194,6 +234,18 @@ public class SettingsMain extends Settings {
 				act.setTempUnit(units[i]);
 			}
 		},
+		new SettingBool("show_latency", R.string.set_show_latency, false) {
+			@Override
+			void onSet(boolean value) { act.setShowLatency(value); }
+		},
+		new SettingBool("trace", R.string.set_trace, false) {
+			@Override
+			void onSet(boolean value) { act.setTrace(value); }
+		},
+		new SettingButton(R.string.set_trace_save) {
+			@Override
+			void onPress() { act.saveTrace(); }
+		},
 		settingDefaults
 	};
 }
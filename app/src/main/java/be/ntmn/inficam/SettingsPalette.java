@@ -12,13 +12,26 @@ public class SettingsPalette extends Settings {
 	public class SettingPalette extends SettingRadio {
 		SettingPalette() {
 			super("palette", R.string.set_palette, 6, new int[] {});
-			items = new int[Palette.palettes.length];
-			for (int i = 0; i < Palette.palettes.length; ++i)
-				items[i] = Palette.palettes[i].name;
 		}
 
 		@Override
-		void onSet(int i) { act.setPalette(Palette.palettes[i].getData()); }
+		void init(Settings set) {
+			Palette.loadGradients(getContext());
+			Palette[] palettes = Palette.palettes;
+			items = new int[palettes.length];
+			itemNames = new String[palettes.length];
+			for (int i = 0; i < palettes.length; ++i) {
+				items[i] = palettes[i].name;
+				itemNames[i] = palettes[i].title;
+			}
+			super.init(set);
+		}
+
+		@Override
+		void onSet(int i) {
+			act.setPalette(Palette.palettes[i].getData());
+			Palette.generateAll(); /* After the one we need now. */
+		}
 	}
 
 	public SettingsPalette(Context context) { super(context); }
@@ -38,5 +51,24 @@ public class SettingsPalette extends Settings {
 
 	public SettingPalette palette = new SettingPalette();
 
-	private final Setting[] settings = { palette, settingDefaults };
+	private final Setting[] settings = {
+		palette,
+		new SettingSliderFloat("agc_attack", R.string.set_agc_attack, 2, 0, 50, 1, 10) {
+			@Override
+			void onSet(float f) { act.setAgcAttack(f); }
+		},
+		new SettingSliderFloat("agc_decay", R.string.set_agc_decay, 20, 0, 100, 1, 10) {
+			@Override
+			void onSet(float f) { act.setAgcDecay(f); }
+		},
+		new SettingSliderFloat("agc_clip", R.string.set_agc_clip, 1, 0, 50, 1, 10) {
+			@Override
+			void onSet(float f) { act.setAgcClip(f); }
+		},
+		new SettingSliderInt("agc_hysteresis", R.string.set_agc_hysteresis, 5, 0, 25, 1) {
+			@Override
+			void onSet(int i) { act.setAgcHysteresis(i); }
+		},
+		settingDefaults
+	};
 }
@@ -2,7 +2,6 @@ package be.ntmn.inficam;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
 import android.opengl.EGLConfig;
@@ -12,13 +11,26 @@ import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.view.Surface;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 
 /* SurfaceMuxer
  *
@@ -43,12 +55,24 @@ import java.util.ArrayList;
  *     you should call deinit() to release any resources attached to the EGL context in question.
  * - Use .draw() on Input- and/or ThroughSurface(s) to draw to Output- and/or ThroughSurfaces.
  * - When done drawing to an Output- or ThroughSurface call .swapBuffers() on it to flip the
- *     buffer and make the drawn framebuffer go through, or instead getBitmap() to get the bitmap
- *     if null was passed as the Surface to create an OutputSurface.
+ *     buffer and make the drawn framebuffer go through.
+ * - To get what was drawn as a Bitmap, pass null as the Surface to create an OutputSurface, set
+ *     flipY on it so the rows come out top to bottom like a Bitmap wants them and read it with a
+ *     PixelReader, which doesn't stall the render thread.
  *
  * The order of operations of the above list isn't of particular importance as long as it's
- *   actually possible, but only use this class from a single thread since the EGL context is
- *   bound to a single thread.
+ *   actually possible.
+ *
+ * The EGL context lives on a render thread owned by the SurfaceMuxer, so drawing doesn't have to
+ *   compete with the UI thread. Creating, resizing and releasing surfaces as well as init(),
+ *   deinit() and release() can be called from any thread, they run on the render thread and wait
+ *   for it to be done. Drawing (draw(), clear(), swapBuffers(), PixelReader, etc) must happen on
+ *   the render thread itself, use post() to get there.
+ *
+ * Shader programs are only compiled when a DrawMode is first drawn with. When the context supports
+ *   it (OpenGL ES 3) the linked programs are saved in the cache directory, keyed by a hash of the
+ *   driver strings and shader sources, and loaded from there next time the context gets created,
+ *   which on some devices is a lot faster than compiling.
  *
  * The surface given to the OutputSurface constructor only released in the OutputSurface.release()
  *   function. You should call the release() for instances of InputSurface and OutputSurface when
@@ -61,10 +85,32 @@ public class SurfaceMuxer {
 	private static class DrawMode {
 		private final String file;
 		private String source;
-		private int program;
+		private int program; /* 0 until it's first used. */
+		/* Uniform locations, looked up once after linking, -1 if the shader doesn't have it. */
+		private int uScale, uTranslate, uRot90, uTexSize, uSharpening;
+		/* Uniforms are kept by the program, so we only set them when the value changed. */
+		private float scaleX, scaleY, translateX, translateY, texW, texH, sharpening;
+		private int rot90;
 		private DrawMode(String file) { this.file = file; }
+
+		private void resolve() { /* Program must be in use. */
+			GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "sTexture"), 0);
+			uScale = GLES20.glGetUniformLocation(program, "scale");
+			uTranslate = GLES20.glGetUniformLocation(program, "translate");
+			uRot90 = GLES20.glGetUniformLocation(program, "rot90");
+			uTexSize = GLES20.glGetUniformLocation(program, "texSize");
+			uSharpening = GLES20.glGetUniformLocation(program, "sharpening");
+			scaleX = scaleY = translateX = translateY = texW = texH = sharpening = Float.NaN;
+			rot90 = -1;
+		}
 	}
 
+	/* Attributes are bound to fixed locations for all programs so the vertex pointers only have
+	 *   to be set once for every context.
+	 */
+	private static final int ATTR_POSITION = 0;
+	private static final int ATTR_TEXCOORD = 1;
+
 	public final static int DM_NEAREST = 0;
 	public final static int DM_LINEAR = 1;
 	public final static int DM_CUBIC = 2;
@@ -82,11 +128,22 @@ public class SurfaceMuxer {
 			new DrawMode("fedge.glsl")
 	};
 
-	private final ArrayList<Object> surfaces = new ArrayList<>();
+	private final HandlerThread thread;
+	private final Handler handler;
+	private final ArrayList<Object> surfaces = new ArrayList<>(); /* Render thread only. */
 	private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 	private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
 	private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
 	private EGLConfig eglConfig;
+	private final File cacheDir; /* For program binaries. */
+	private boolean gles3 = false; /* Context is OpenGL ES 3, for program binaries and PBOs. */
+	private boolean binaryCache = false; /* If the context can give us program binaries. */
+	private String driver; /* GL vendor, renderer and version, part of the cache key. */
+	private int vshader = 0; /* Compiled on first need, shared by all programs. */
+	/* Current GL state, to skip calls that wouldn't change anything. */
+	private EGLSurface currentSurface = EGL14.EGL_NO_SURFACE;
+	private int currentProgram = 0;
+	private int boundTexture = 0;
 	private final String vss;
 	private final FloatBuffer pTexCoord =
 			ByteBuffer.allocateDirect(8 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
@@ -100,6 +157,7 @@ public class SurfaceMuxer {
 		private final int[] textures = new int[1];
 		private boolean initialized = false;
 		public int width = 1, height = 1;
+		/* These are read when drawing, only change them on the render thread (see post()). */
 		public boolean rotate = false, mirror = false, rotate90 = false;
 		public float scale_x = 1.0f, scale_y = 1.0f;
 		public float translate_x = 0.0f, translate_y = 0.0f;
@@ -108,26 +166,31 @@ public class SurfaceMuxer {
 
 		public InputSurface(SurfaceMuxer muxer) {
 			this.muxer = muxer;
-			muxer.surfaces.add(this);
-			init();
+			muxer.runSync(() -> {
+				muxer.surfaces.add(this);
+				init();
+			});
 		}
 
 		public void setSize(int w, int h) {
-			width = w;
-			height = h;
-			surfaceTexture.setDefaultBufferSize(w, h);
+			Runnable r = () -> {
+				width = w;
+				height = h;
+				if (surfaceTexture != null)
+					surfaceTexture.setDefaultBufferSize(w, h);
+			};
+			if (muxer != null)
+				muxer.runSync(r);
+			else r.run();
 		}
 
 		private void init() {
 			if (muxer == null || muxer.eglDisplay == EGL14.EGL_NO_DISPLAY)
 				return;
 			deinit();
-			EGL14.eglMakeCurrent(muxer.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
-					muxer.eglContext);
-			muxer.checkEglError("eglMakeCurrent");
+			muxer.makeCurrent(EGL14.EGL_NO_SURFACE);
 			GLES20.glGenTextures(1, textures, 0);
-			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-			GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+			muxer.bindTexture(textures[0]);
 			GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
 					GLES20.GL_CLAMP_TO_EDGE);
 			GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
@@ -151,16 +214,22 @@ public class SurfaceMuxer {
 
 		private void deinit() {
 			if (initialized && muxer != null && muxer.eglDisplay != EGL14.EGL_NO_DISPLAY) {
-				EGL14.eglMakeCurrent(muxer.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
-						muxer.eglContext);
-				muxer.checkEglError("eglMakeCurrent");
+				muxer.makeCurrent(EGL14.EGL_NO_SURFACE);
 				surfaceTexture.detachFromGLContext();
 				GLES20.glDeleteTextures(1, textures, 0);
+				if (muxer.boundTexture == textures[0])
+					muxer.boundTexture = 0;
 			}
 			initialized = false;
 		}
 
 		public void release() {
+			if (muxer != null)
+				muxer.runSync(this::_release);
+			else _release();
+		}
+
+		private void _release() {
 			deinit();
 			if (muxer != null)
 				muxer.surfaces.remove(this);
@@ -180,36 +249,51 @@ public class SurfaceMuxer {
 			if (frameAvailable) {
 			    surfaceTexture.updateTexImage();
 			    frameAvailable = false;
+			    muxer.boundTexture = 0; /* It binds the texture behind our back. */
 			}
-			GLES20.glViewport(x, y, w, h);
-			int program = muxer.drawModes[drawMode].program;
-			GLES20.glUseProgram(program);
-			int ph = GLES20.glGetAttribLocation(program, "vPosition");
-			GLES20.glVertexAttribPointer(ph, 2, GLES20.GL_FLOAT, false, 4 * 2,
-					muxer.pVertex);
-			GLES20.glEnableVertexAttribArray(ph);
-			int tch = GLES20.glGetAttribLocation(program, "vTexCoord");
-			GLES20.glVertexAttribPointer(tch, 2, GLES20.GL_FLOAT, false, 4 * 2,
-					muxer.pTexCoord);
-			GLES20.glEnableVertexAttribArray(tch);
-			int th = GLES20.glGetUniformLocation(program, "sTexture");
-			GLES20.glUniform1i(th, 0); /* Tells the shader what texture to use. */
-			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-			int sc = GLES20.glGetUniformLocation(program, "scale");
 			float sx = scale_x * (mirror ? -1.0f : 1.0f) * (rotate ? -1.0f : 1.0f);
 			float sy = scale_y * (rotate ? -1.0f : 1.0f);
-			GLES20.glUniform2f(sc, sx, sy);
-			int tr = GLES20.glGetUniformLocation(program, "translate");
-			GLES20.glUniform2f(tr, translate_x, translate_y);
-			int r9 = GLES20.glGetUniformLocation(program, "rot90");
-			GLES20.glUniform1i(r9, rotate90 ? 1 : 0);
-			int isc = GLES20.glGetUniformLocation(program, "texSize");
-			GLES20.glUniform2f(isc, width, height);
-			int sh = GLES20.glGetUniformLocation(program, "sharpening");
-			GLES20.glUniform1f(sh, sharpening); /* It's okay if the shader doesn't have this. */
-
-			GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-			GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+			float tx = translate_x, ty = translate_y;
+			if (os.flipY) { /* Negate what ends up as the y coordinate in the vertex shader. */
+				y = os.height - y - h;
+				if (rotate90) {
+					sx = -sx;
+					tx = -tx;
+				} else {
+					sy = -sy;
+					ty = -ty;
+				}
+			}
+			GLES20.glViewport(x, y, w, h);
+			DrawMode dm = muxer.drawModes[drawMode];
+			if (dm.program == 0)
+				muxer.loadProgram(dm);
+			muxer.useProgram(dm.program);
+			if (sx != dm.scaleX || sy != dm.scaleY) {
+				GLES20.glUniform2f(dm.uScale, sx, sy);
+				dm.scaleX = sx;
+				dm.scaleY = sy;
+			}
+			if (tx != dm.translateX || ty != dm.translateY) {
+				GLES20.glUniform2f(dm.uTranslate, tx, ty);
+				dm.translateX = tx;
+				dm.translateY = ty;
+			}
+			int r9 = rotate90 ? 1 : 0;
+			if (r9 != dm.rot90) {
+				GLES20.glUniform1i(dm.uRot90, r9);
+				dm.rot90 = r9;
+			}
+			if (width != dm.texW || height != dm.texH) {
+				GLES20.glUniform2f(dm.uTexSize, width, height);
+				dm.texW = width;
+				dm.texH = height;
+			}
+			if (sharpening != dm.sharpening) { /* It's okay if the shader doesn't have this. */
+				GLES20.glUniform1f(dm.uSharpening, sharpening);
+				dm.sharpening = sharpening;
+			}
+			muxer.bindTexture(textures[0]);
 			GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 		}
 
@@ -232,6 +316,7 @@ public class SurfaceMuxer {
 		private boolean surfaceOwned;
 		private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
 		public int width, height;
+		public boolean flipY = false; /* Draw upside down, for reading back with PixelReader. */
 
 		public OutputSurface(SurfaceMuxer muxer, Surface surf, boolean release, int w, int h) {
 			init(muxer, surf, release, w, h);
@@ -252,10 +337,12 @@ public class SurfaceMuxer {
 			this.muxer = muxer;
 			surface = surf;
 			surfaceOwned = release;
-			muxer.surfaces.add(this);
 			width = w;
 			height = h;
-			init();
+			muxer.runSync(() -> {
+				muxer.surfaces.add(this);
+				init();
+			});
 		}
 
 		private void init() {
@@ -285,23 +372,26 @@ public class SurfaceMuxer {
 				EGL14.eglDestroySurface(muxer.eglDisplay, eglSurface);
 				eglSurface = EGL14.EGL_NO_SURFACE;
 				/* setDefaultBufferSize() requires destroying surface and making it non-current. */
-				EGL14.eglMakeCurrent(muxer.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
-						muxer.eglContext);
+				muxer.makeCurrent(EGL14.EGL_NO_SURFACE, true);
 			}
 		}
 
 		public void setSize(int w, int h) {
-			width = w;
-			height = h;
-			deinit(); /* In case setDefaultBufferSize() happened, this is important. */
-			init();
+			Runnable r = () -> {
+				width = w;
+				height = h;
+				deinit(); /* In case setDefaultBufferSize() happened, this is important. */
+				init();
+			};
+			if (muxer != null)
+				muxer.runSync(r);
+			else r.run();
 		}
 
 		public void makeCurrent() {
 			if (muxer.eglContext == EGL14.EGL_NO_CONTEXT)
 				return;
-			EGL14.eglMakeCurrent(muxer.eglDisplay, eglSurface, eglSurface, muxer.eglContext);
-			muxer.checkEglError("eglMakeCurrent");
+			muxer.makeCurrent(eglSurface);
 		}
 
 		public void swapBuffers() {
@@ -319,6 +409,12 @@ public class SurfaceMuxer {
 		}
 
 		public void release() {
+			if (muxer != null)
+				muxer.runSync(this::_release);
+			else _release();
+		}
+
+		private void _release() {
 			deinit();
 			if (muxer != null)
 				muxer.surfaces.remove(this);
@@ -338,19 +434,125 @@ public class SurfaceMuxer {
 			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 		}
 
-		public Bitmap getBitmap() {
-			Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-			ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
-			makeCurrent();
-			GLES20.glFlush();
-			GLES20.glFinish();
-			GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+	}
+
+	/* Reads the pixels of an OutputSurface back into a Bitmap.
+	 *
+	 * With OpenGL ES 3 start() has glReadPixels() copy into a pixel buffer object and puts a fence
+	 *   after it, the GPU does the copy when it gets there while we go on with the next frame.
+	 *   poll() checks the fence without waiting and copies the buffer into the Bitmap once it's
+	 *   done, so call it every frame until it returns true. Without OpenGL ES 3 start() has to wait
+	 *   for glReadPixels() but at least the buffer is reused.
+	 *
+	 * The buffers are kept between captures and only reallocated when the size changes. Use on
+	 *   the render thread only, except release() which can be called from anywhere.
+	 */
+	public static class PixelReader {
+		private SurfaceMuxer muxer;
+		private final int[] pbo = new int[1];
+		private int pboSize = 0;
+		private long fence = 0;
+		private ByteBuffer buf; /* For when we have no PBOs. */
+		private boolean busy = false;
+		public int width, height; /* Of the last start(). */
+
+		public PixelReader(SurfaceMuxer muxer) {
+			this.muxer = muxer;
+			muxer.runSync(() -> muxer.surfaces.add(this));
+		}
+
+		public boolean isBusy() { return busy; }
+
+		public void start(OutputSurface os) {
+			if (muxer.eglContext == EGL14.EGL_NO_CONTEXT)
+				return;
+			width = os.width;
+			height = os.height;
+			int size = width * height * 4;
+			os.makeCurrent();
+			if (muxer.gles3) {
+				if (pbo[0] == 0)
+					GLES20.glGenBuffers(1, pbo, 0);
+				GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[0]);
+				if (size != pboSize) {
+					GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null,
+							GLES30.GL_STREAM_READ);
+					pboSize = size;
+				}
+				GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+						0);
+				GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+				fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+				GLES20.glFlush(); /* Or the fence might never get to the GPU. */
+			} else {
+				if (buf == null || buf.capacity() < size)
+					buf = ByteBuffer.allocateDirect(size);
+				buf.clear();
+				GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+						buf);
+			}
+			busy = true;
+		}
+
+		/* Bitmap must be ARGB_8888 and of the size in width and height. Returns true if the pixels
+		 *   were copied to it, false if they're not ready yet or nothing was started.
+		 */
+		public boolean poll(Bitmap bmp) {
+			if (!busy)
+				return false;
+			if (muxer.gles3) {
+				int res = GLES30.glClientWaitSync(fence, 0, 0);
+				if (res == GLES30.GL_TIMEOUT_EXPIRED)
+					return false;
+				GLES30.glDeleteSync(fence);
+				fence = 0;
+				GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[0]);
+				ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+						GLES30.GL_PIXEL_PACK_BUFFER, 0, pboSize, GLES30.GL_MAP_READ_BIT);
+				if (mapped != null) {
+					bmp.copyPixelsFromBuffer(mapped);
+					GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+				}
+				GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+				busy = false;
+				return mapped != null;
+			}
+			buf.rewind();
 			bmp.copyPixelsFromBuffer(buf);
-			Matrix matrix = new Matrix();
-			matrix.setScale(1, -1);
-			Bitmap ret = Bitmap.createBitmap(bmp, 0, 0, width, height, matrix, false);
-			bmp.recycle();
-			return ret;
+			busy = false;
+			return true;
+		}
+
+		/* Forget about a read that was started, poll() won't return true for it. */
+		public void cancel() {
+			if (fence != 0 && muxer.eglContext != EGL14.EGL_NO_CONTEXT)
+				GLES30.glDeleteSync(fence);
+			fence = 0;
+			busy = false;
+		}
+
+		private void deinit() { /* The context takes the buffer and fence with it. */
+			pbo[0] = 0;
+			pboSize = 0;
+			fence = 0;
+			busy = false;
+		}
+
+		public void release() {
+			if (muxer == null)
+				return;
+			muxer.runSync(() -> {
+				if (muxer.eglContext != EGL14.EGL_NO_CONTEXT) {
+					if (fence != 0)
+						GLES30.glDeleteSync(fence);
+					if (pbo[0] != 0)
+						GLES20.glDeleteBuffers(1, pbo, 0);
+				}
+				deinit();
+				buf = null;
+				muxer.surfaces.remove(this);
+				muxer = null;
+			});
 		}
 	}
 
@@ -378,6 +580,11 @@ public class SurfaceMuxer {
 	}
 
 	public SurfaceMuxer(Context ctx) {
+		thread = new HandlerThread("SurfaceMuxer", Process.THREAD_PRIORITY_DISPLAY);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+		cacheDir = new File(ctx.getCacheDir(), "shaders");
+
 		try {
 			vss = Util.readStringAsset(ctx, "vshader.glsl");
 			for (DrawMode dm : drawModes)
@@ -399,12 +606,72 @@ public class SurfaceMuxer {
 		init();
 	}
 
+	/* Run something on the render thread, for the drawing. */
+	public void post(Runnable r) { handler.post(r); }
+
+	public boolean isRenderThread() { return Looper.myLooper() == thread.getLooper(); }
+
+	/* Run on the render thread and wait for it to finish, exceptions are rethrown to the caller. */
+	public void runSync(Runnable r) {
+		if (isRenderThread()) {
+			r.run();
+			return;
+		}
+		final RuntimeException[] error = new RuntimeException[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		handler.post(() -> {
+			try {
+				r.run();
+			} catch (RuntimeException e) {
+				error[0] = e;
+			}
+			done.countDown();
+		});
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true; /* We can't leave before it's done, try again. */
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (error[0] != null)
+			throw error[0];
+	}
+
 	private void checkEglError(String msg) {
 		int error;
 		if ((error = EGL14.eglGetError()) != EGL14.EGL_SUCCESS)
 			throw new RuntimeException(msg + ": EGL error: 0x" + Integer.toHexString(error));
 	}
 
+	private void makeCurrent(EGLSurface surface, boolean force) {
+		if (surface == currentSurface && !force)
+			return;
+		EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext);
+		checkEglError("eglMakeCurrent");
+		currentSurface = surface;
+	}
+
+	private void makeCurrent(EGLSurface surface) { makeCurrent(surface, false); }
+
+	private void useProgram(int program) {
+		if (program == currentProgram)
+			return;
+		GLES20.glUseProgram(program);
+		currentProgram = program;
+	}
+
+	private void bindTexture(int texture) { /* We only ever use texture unit 0. */
+		if (texture == boundTexture)
+			return;
+		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+		boundTexture = texture;
+	}
+
 	private int loadShader(int type, String source) {
 		int shader = GLES20.glCreateShader(type);
 		GLES20.glShaderSource(shader, source);
@@ -416,7 +683,133 @@ public class SurfaceMuxer {
 		return shader;
 	}
 
-	public void init() { /* Initialize EGL context. */
+	private static String sha1(String str) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(str.getBytes());
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest)
+				sb.append(String.format("%02x", b & 0xFF));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); /* Every Android has SHA-1. */
+		}
+	}
+
+	/* Returns true if the program got linked from the cached binary. Anything wrong with the file
+	 *   makes it a miss, it gets deleted and the caller compiles from source.
+	 */
+	private boolean loadBinary(int program, File file) {
+		if (!file.exists())
+			return false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			int format = in.readInt();
+			int len = in.readInt();
+			if (len > 0 && len <= file.length() - 8) {
+				byte[] data = new byte[len];
+				in.readFully(data);
+				ByteBuffer buf = ByteBuffer.allocateDirect(len);
+				buf.put(data);
+				buf.rewind();
+				GLES30.glProgramBinary(program, format, buf, len);
+				GLES20.glGetError(); /* Unsupported format is an error, we don't care. */
+				int[] status = new int[1];
+				GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+				if (status[0] != 0)
+					return true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		file.delete(); /* Most likely the driver got updated, we'll make a new one. */
+		return false;
+	}
+
+	private void saveBinary(int program, File file) {
+		int[] len = new int[1];
+		int[] format = new int[1];
+		GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, len, 0);
+		if (len[0] <= 0)
+			return;
+		ByteBuffer buf = ByteBuffer.allocateDirect(len[0]);
+		GLES30.glGetProgramBinary(program, len[0], len, 0, format, 0, buf);
+		if (GLES20.glGetError() != GLES20.GL_NO_ERROR || len[0] <= 0)
+			return;
+		byte[] data = new byte[len[0]];
+		buf.get(data);
+		/* Written to a temporary file first so we never leave half a binary behind. */
+		File tmp = new File(cacheDir, file.getName() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			cacheDir.mkdirs();
+			out = new DataOutputStream(new FileOutputStream(tmp));
+			out.writeInt(format[0]);
+			out.writeInt(len[0]);
+			out.write(data);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file))
+				tmp.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+			tmp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void loadProgram(DrawMode dm) {
+		File file = null;
+		dm.program = GLES20.glCreateProgram();
+		if (binaryCache) {
+			file = new File(cacheDir, sha1(driver + "\n" + vss + "\n" + dm.source) + ".bin");
+			if (loadBinary(dm.program, file)) {
+				useProgram(dm.program);
+				dm.resolve();
+				return;
+			}
+		}
+
+		if (vshader == 0)
+			vshader = loadShader(GLES20.GL_VERTEX_SHADER, vss);
+		int fshader = loadShader(GLES20.GL_FRAGMENT_SHADER, dm.source);
+		GLES20.glAttachShader(dm.program, vshader);
+		GLES20.glAttachShader(dm.program, fshader);
+		GLES20.glBindAttribLocation(dm.program, ATTR_POSITION, "vPosition");
+		GLES20.glBindAttribLocation(dm.program, ATTR_TEXCOORD, "vTexCoord");
+		if (binaryCache)
+			GLES30.glProgramParameteri(dm.program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+					GLES20.GL_TRUE);
+		GLES20.glLinkProgram(dm.program);
+		GLES20.glDeleteShader(fshader); /* Just decreases refcount. */
+		int[] status = new int[1];
+		GLES20.glGetProgramiv(dm.program, GLES20.GL_LINK_STATUS, status, 0);
+		if (status[0] == 0)
+			throw new RuntimeException(GLES20.glGetProgramInfoLog(dm.program));
+		if (binaryCache)
+			saveBinary(dm.program, file);
+		useProgram(dm.program);
+		dm.resolve();
+	}
+
+	public void init() { runSync(this::_init); } /* Initialize EGL context. */
+
+	private void _init() {
 		if (eglContext != EGL14.EGL_NO_CONTEXT)
 			deinit();
 		eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
@@ -426,49 +819,73 @@ public class SurfaceMuxer {
 		if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1))
 			throw new RuntimeException("Unable to initialize EGL14.");
 
-		/* Get an EGL configuration. */
-		int[] cfga = {
-				EGL14.EGL_RED_SIZE, 8,
-				EGL14.EGL_GREEN_SIZE, 8,
-				EGL14.EGL_BLUE_SIZE, 8,
-				EGL14.EGL_ALPHA_SIZE, 8,
-				EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
-				EGL_RECORDABLE_ANDROID, EGL14.EGL_TRUE, /* We need this to be able to record. */
-				EGL14.EGL_NONE
-		};
-		EGLConfig[] configs = new EGLConfig[1];
-		int[] numConfigs = new int[1];
-		EGL14.eglChooseConfig(eglDisplay, cfga, 0, configs, 0, configs.length, numConfigs, 0);
-		checkEglError("eglChooseConfig");
-		eglConfig = configs[0];
-
-		/* Create an EGL context. */
-		int[] ctxa = {
-				EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
-				EGL14.EGL_NONE
-		};
-		eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT, ctxa, 0);
-		checkEglError("eglCreateContext");
+		/* Get an EGL configuration and create a context, OpenGL ES 3 if we can get it because it
+		 *   lets us cache the compiled programs, else OpenGL ES 2 which is all we need to draw.
+		 */
+		int glesVersion;
+		for (glesVersion = 3; glesVersion >= 2; --glesVersion) {
+			int[] cfga = {
+					EGL14.EGL_RED_SIZE, 8,
+					EGL14.EGL_GREEN_SIZE, 8,
+					EGL14.EGL_BLUE_SIZE, 8,
+					EGL14.EGL_ALPHA_SIZE, 8,
+					EGL14.EGL_RENDERABLE_TYPE, (glesVersion == 3) ?
+						EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
+					EGL_RECORDABLE_ANDROID, EGL14.EGL_TRUE, /* We need this to be able to record. */
+					EGL14.EGL_NONE
+			};
+			EGLConfig[] configs = new EGLConfig[1];
+			int[] numConfigs = new int[1];
+			EGL14.eglChooseConfig(eglDisplay, cfga, 0, configs, 0, configs.length, numConfigs, 0);
+			if (glesVersion > 2 && (EGL14.eglGetError() != EGL14.EGL_SUCCESS || numConfigs[0] < 1))
+				continue;
+			checkEglError("eglChooseConfig");
+			eglConfig = configs[0];
+
+			/* Create an EGL context. */
+			int[] ctxa = {
+					EGL14.EGL_CONTEXT_CLIENT_VERSION, glesVersion,
+					EGL14.EGL_NONE
+			};
+			eglContext =
+					EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT, ctxa, 0);
+			if (glesVersion > 2 && eglContext == EGL14.EGL_NO_CONTEXT) {
+				EGL14.eglGetError(); /* Clear it, we'll try again. */
+				continue;
+			}
+			checkEglError("eglCreateContext");
+			break;
+		}
 
 		/* Now we make the context current so creating our shaders etc binds to this context. */
-		EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, eglContext);
+		makeCurrent(EGL14.EGL_NO_SURFACE, true);
+		currentProgram = 0;
+		boundTexture = 0;
 		//Log.i("GLEXT", "Gl extensions: " + GLES20.glGetString(GLES10.GL_EXTENSIONS));
+		driver = GLES20.glGetString(GLES20.GL_VENDOR) + "\n" +
+				GLES20.glGetString(GLES20.GL_RENDERER) + "\n" +
+				GLES20.glGetString(GLES20.GL_VERSION);
+		int[] formats = new int[1];
+		if (glesVersion >= 3)
+			GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+		gles3 = glesVersion >= 3;
+		binaryCache = formats[0] > 0;
 
 		/* Enable alpha blending. */
 		GLES20.glEnable(GLES20.GL_BLEND);
 		GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 
-		/* Compile the shaders. */
-		int vshader = loadShader(GLES20.GL_VERTEX_SHADER, vss);
-		for (DrawMode dm : drawModes) {
-			int fshader = loadShader(GLES20.GL_FRAGMENT_SHADER, dm.source);
-			dm.program = GLES20.glCreateProgram();
-			GLES20.glAttachShader(dm.program, vshader);
-			GLES20.glAttachShader(dm.program, fshader);
-			GLES20.glLinkProgram(dm.program);
-			GLES20.glDeleteShader(fshader); /* Just decreases refcount. */
-		}
-		GLES20.glDeleteShader(vshader); /* Shader will still live until the programs die. */
+		/* The programs belonged to the old context, they get loaded when first drawn with. */
+		for (DrawMode dm : drawModes)
+			dm.program = 0;
+		vshader = 0;
+
+		/* The same quad is drawn every time, with all programs. */
+		GLES20.glVertexAttribPointer(ATTR_POSITION, 2, GLES20.GL_FLOAT, false, 4 * 2, pVertex);
+		GLES20.glEnableVertexAttribArray(ATTR_POSITION);
+		GLES20.glVertexAttribPointer(ATTR_TEXCOORD, 2, GLES20.GL_FLOAT, false, 4 * 2, pTexCoord);
+		GLES20.glEnableVertexAttribArray(ATTR_TEXCOORD);
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 
 		/* Initialize any surfaces we have. */
 		for (Object o : surfaces) {
@@ -482,15 +899,20 @@ public class SurfaceMuxer {
 		}
 	}
 
-	public void deinit() {
+	public void deinit() { runSync(this::_deinit); }
+
+	private void _deinit() {
 		for (Object o : surfaces) {
 			if (o instanceof InputSurface)
 				((InputSurface) o).deinit();
 			/* OutputSurfaces don't need deinit, they'll live until next init(). */
+			if (o instanceof PixelReader)
+				((PixelReader) o).deinit(); /* A read that didn't finish is lost. */
 		}
 		if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
 			EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
 					EGL14.EGL_NO_CONTEXT);
+			currentSurface = EGL14.EGL_NO_SURFACE;
 			/* Destroying the context will also delete textures, program, etc. */
 			EGL14.eglDestroyContext(eglDisplay, eglContext);
 			EGL14.eglReleaseThread();
@@ -501,15 +923,21 @@ public class SurfaceMuxer {
 		eglContext = EGL14.EGL_NO_CONTEXT;
 	}
 
+	/* Also ends the render thread, the SurfaceMuxer can't be used anymore after this. */
 	public void release() {
-		while (surfaces.size() > 0) {
-			Object o = surfaces.get(0);
-			if (o instanceof InputSurface)
-				((InputSurface) o).release();
-			if (o instanceof OutputSurface)
-				((OutputSurface) o).release();
-			surfaces.remove(o);
-		}
-		deinit();
+		runSync(() -> {
+			while (surfaces.size() > 0) {
+				Object o = surfaces.get(0);
+				if (o instanceof InputSurface)
+					((InputSurface) o).release();
+				if (o instanceof OutputSurface)
+					((OutputSurface) o).release();
+				if (o instanceof PixelReader)
+					((PixelReader) o).release();
+				surfaces.remove(o);
+			}
+			_deinit();
+		});
+		thread.quitSafely();
 	}
 }
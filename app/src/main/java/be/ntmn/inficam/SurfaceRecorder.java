@@ -6,6 +6,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
@@ -13,50 +14,327 @@ import android.media.MediaMuxer;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.MediaStore;
+import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class SurfaceRecorder implements Runnable {
+import be.ntmn.libinficam.InfiCam;
+
+/* Records what's drawn to the Surface from start() to a video file, optionally with audio.
+ *
+ * The encoders run in MediaCodec's asynchronous mode, their callbacks all come in on our own
+ *   thread (it has to be a separate one, if the video encoder's output isn't taken away as soon
+ *   as it's there it runs out of buffers and swapBuffers() on the input surface blocks the
+ *   render thread). The muxer is only touched from that thread too so it needs no locking.
+ *
+ * Audio is read from the AudioRecord on another thread of it's own since read() blocks until
+ *   there is enough, it puts the chunks in a queue and posts to the recorder thread to give them
+ *   to the encoder whenever it has a free input buffer. The chunks are timestamped by how many
+ *   frames came before them, so the timing doesn't depend on when we got around to reading.
+ *
+ * With startBuffered() the encoders run without a file, their output goes in an EncodedRing that
+ *   holds the last so many bytes. saveBuffer() then opens the file, writes what's in the ring from
+ *   the oldest key frame and from then on it's like a normal recording. Key frames come every
+ *   second in this mode so there's always one near the start of the ring.
+ *
+ * The encoder is set up for the frame rate given to setFrameRate(), which should be what the
+ *   camera actually does, the timestamps are whatever the drawing side sets. With adaptive bitrate
+ *   on, the bitrate follows setMotion(): a still scene gets a fraction of BITRATE, a lot of change
+ *   gets up to BITRATE_MAX times it. It's checked for every encoded frame but only passed on to
+ *   the encoder every ADAPT_INTERVAL and when it changed enough, encoders don't like being
+ *   bothered all the time.
+ */
+public class SurfaceRecorder {
 	private static final String MUX_MIME_TYPE = "video/mp4";
 	private static final String MUX_EXT = ".mp4";
 	private static final String VID_MIME_TYPE = "video/avc"; /* H.264 */
-	private static final int FRAME_RATE = 25;
+	public static final int FRAME_RATE = 25; /* Default, and what time-lapse plays at. */
 	private static final int IFRAME_INTERVAL = 10; /* In seconds. */
-	private static final float BITRATE = 1; /* In bits per pixel. */
-	private static final int DEQUEUE_TIMEOUT = 5000; /* In microseconds. */
+	private static final int BUFFERED_IFRAME_INTERVAL = 1; /* Also seconds, for startBuffered(). */
+	private static final float BITRATE = 1; /* In bits per pixel per frame. */
+	private static final float BITRATE_MIN = 0.25f; /* Times BITRATE, for a still scene. */
+	private static final float BITRATE_MAX = 1.5f; /* Times BITRATE, for a lot of motion. */
+	private static final float MOTION_FULL = 0.5f; /* Degrees change per pixel for BITRATE. */
+	private static final long ADAPT_INTERVAL = 500000; /* Microseconds between bitrate changes. */
+	private static final int STOP_TIMEOUT = 1000; /* Milliseconds to wait for end of stream. */
 
 	private static final String SND_MIME_TYPE = "audio/mp4a-latm";
 	private static final int SND_SAMPLERATE = 44100;
 	private static final boolean SND_STEREO = false;
 	private static final int SND_BITRATE = 128000;
+	private static final int SND_FRAME_SIZE = SND_STEREO ? 4 : 2; /* 16 bit samples. */
+	private static final int SND_MAX_QUEUED = 32; /* Chunks, about a second, before dropping. */
 
 	private Context ctx;
 	private Surface inputSurface;
-	private MediaCodec videoEncoder;
-	private MediaCodec audioEncoder;
+	private Encoder video, audio;
 	private AudioRecord audioRecord;
 	private int audioBufferSize;
 	private MediaMuxer muxer;
-	private int videoTrack, audioTrack;
-	private MediaCodec.BufferInfo bufferInfo;
-	private volatile boolean endSignal; /* Volatile is important because threading. */
 	private boolean muxerStarted;
-	private Thread thread;
+	private EncodedRing ring; /* Kept between recordings as long as the size is the same. */
+	private boolean buffering; /* Output goes to the ring until the muxer gets started. */
+	private volatile boolean hasFile;
+	private final int[] trackMap = new int[2];
+	private final ArrayDeque<Integer> audioInputs = new ArrayDeque<>(); /* Recorder thread too. */
+	private AudioChunk audioPartial; /* Didn't fit in the last input buffer, recorder thread. */
+	private int audioOffset; /* Of what's left of audioPartial. */
+	private final Runnable feedAudioRunnable = this::feedAudio; /* So posting doesn't allocate. */
+	private CountDownLatch stopped;
+	private HandlerThread thread;
+	private Handler handler;
 	private Uri fileUri;
 	private ParcelFileDescriptor fileDescriptor;
+	private float frameRate = FRAME_RATE;
+	private boolean adaptive = true, adapting;
+	private volatile float motion = -1; /* Not known yet. */
+	private float motionAvg; /* From here on recorder thread only. */
+	private int baseBitrate, bitrate;
+	private long adaptTime;
 
-	/* If enabling audio, request audio permission first! */
-	@SuppressLint("MissingPermission")
-	private Surface _start(Context ctx, int w, int h, boolean sound) throws IOException {
-		this.ctx = ctx;
+	/* Between the audio thread and the recorder thread, chunks go back to audioFree when used. */
+	private final ConcurrentLinkedQueue<AudioChunk> audioQueue = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<AudioChunk> audioFree = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger audioQueued = new AtomicInteger();
+	private Thread audioThread;
+	private volatile boolean audioStop;
+	private int audioDropped; /* Only written by the audio thread. */
+
+	private static class AudioChunk {
+		final byte[] data;
+		int len;
+		long pts; /* Microseconds, System.nanoTime() time base like the video. */
+		boolean eos;
+
+		AudioChunk(int size) { data = new byte[size]; }
+	}
+
+	private interface Task {
+		void run() throws IOException;
+	}
+
+	/* One for each encoder, the callbacks come in on the recorder thread. */
+	private class Encoder extends MediaCodec.Callback {
+		final MediaCodec codec;
+		MediaFormat format;
+		int track = -1;
+		boolean started = false, done = false; /* One that never started has nothing to end. */
+
+		/* Created on the recorder thread, a MediaCodec delivers it's callbacks to the Looper of
+		 *   the thread it was created on (the setCallback() with a Handler is API 23).
+		 */
+		Encoder(String mime, MediaFormat format) throws IOException {
+			codec = MediaCodec.createEncoderByType(mime);
+			try {
+				codec.setCallback(this);
+				codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			} catch (RuntimeException e) {
+				codec.release();
+				throw e;
+			}
+		}
+
+		@Override
+		public void onInputBufferAvailable(MediaCodec mc, int index) {
+			if (this != audio) /* Video input comes from the surface. */
+				return;
+			audioInputs.add(index);
+			feedAudio();
+		}
+
+		@Override
+		public void onOutputBufferAvailable(MediaCodec mc, int index, MediaCodec.BufferInfo info) {
+			/* Before the muxer is started there's nothing to do with it but drop it (that only
+			 *   happens for one encoder while waiting for the other's format), or buffer it.
+			 */
+			if (info.size != 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+				if (muxerStarted)
+					muxer.writeSampleData(track, mc.getOutputBuffer(index), info);
+				else if (buffering)
+					ring.add(this == video ? 0 : 1, mc.getOutputBuffer(index), info);
+				if (this == video)
+					adaptBitrate(info.presentationTimeUs);
+			}
+			mc.releaseOutputBuffer(index, false);
+			if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+				finish();
+		}
+
+		@Override
+		public void onError(MediaCodec mc, MediaCodec.CodecException e) {
+			Log.e("SurfaceRecorder", "Encoder error", e);
+			finish();
+		}
+
+		@Override
+		public void onOutputFormatChanged(MediaCodec mc, MediaFormat format) {
+			/* Should happen exactly once, before output buffer given. */
+			this.format = format;
+			startMuxer();
+		}
+
+		private void finish() {
+			done = true;
+			if (video.ended() && (audio == null || audio.ended()))
+				stopped.countDown();
+		}
+
+		boolean ended() { return done || !started; }
+
+		void start() {
+			codec.start();
+			started = true;
+		}
+
+		/* Only if it was started, stop() on one that wasn't throws. */
+		void release() {
+			if (started)
+				codec.stop();
+			codec.release();
+		}
+	}
+
+	/* Once there's a file and both encoders told us their format. */
+	private void startMuxer() {
+		if (muxer == null || muxerStarted || video.format == null ||
+				(audio != null && audio.format == null))
+			return;
+		video.track = muxer.addTrack(video.format);
+		if (audio != null)
+			audio.track = muxer.addTrack(audio.format);
+		muxer.start();
+		muxerStarted = true;
+		if (buffering) {
+			trackMap[0] = video.track;
+			trackMap[1] = (audio != null) ? audio.track : -1;
+			ring.writeTo(muxer, trackMap);
+			buffering = false;
+		}
+	}
+
+	private void adaptBitrate(long pts) {
+		float m = motion;
+		if (!adapting || m < 0)
+			return;
+		motionAvg += (m - motionAvg) * 0.2f; /* Some smoothing, the metric is noisy. */
+		if (pts - adaptTime < ADAPT_INTERVAL && pts >= adaptTime)
+			return;
+		adaptTime = pts;
+		float scale = BITRATE_MIN + (1.0f - BITRATE_MIN) * motionAvg / MOTION_FULL;
+		int rate = (int) (baseBitrate * Math.min(scale, BITRATE_MAX));
+		if (Math.abs(rate - bitrate) < bitrate / 8)
+			return;
+		Bundle params = new Bundle();
+		params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, rate);
+		video.codec.setParameters(params);
+		bitrate = rate;
+	}
+
+	/* On the recorder thread, whenever there's new audio or a free input buffer. */
+	private void feedAudio() {
+		if (audio == null)
+			return;
+		while (!audioInputs.isEmpty()) {
+			AudioChunk c = audioPartial;
+			if (c == null) {
+				c = audioQueue.poll();
+				if (c == null)
+					return;
+				audioQueued.decrementAndGet();
+				audioOffset = 0;
+			}
+			int index = audioInputs.poll();
+			ByteBuffer buffer = audio.codec.getInputBuffer(index);
+			buffer.clear();
+			/* What doesn't fit goes in the next one, in whole frames. */
+			int len = c.len - audioOffset;
+			if (len > buffer.remaining())
+				len = buffer.remaining() - buffer.remaining() % SND_FRAME_SIZE;
+			buffer.put(c.data, audioOffset, len);
+			long pts = c.pts + (long) (audioOffset / SND_FRAME_SIZE) * 1000000 / SND_SAMPLERATE;
+			audioOffset += len;
+			boolean last = audioOffset >= c.len;
+			audio.codec.queueInputBuffer(index, 0, len, pts,
+					(last && c.eos) ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+			if (last) {
+				audioFree.offer(c);
+				audioPartial = null;
+			} else audioPartial = c;
+		}
+	}
+
+	/* Runs on audioThread, the reading blocks so it can't be on the recorder thread. */
+	private void captureAudio() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+		AudioTimestamp ts = new AudioTimestamp();
+		long frames = 0, baseTime = -1, baseFrames = 0, pts = 0;
+		while (!audioStop) {
+			AudioChunk c = audioFree.poll();
+			if (c == null)
+				c = new AudioChunk(audioBufferSize);
+			int len = audioRecord.read(c.data, 0, c.data.length);
+			if (len <= 0) {
+				audioFree.offer(c);
+				if (len < 0) /* Not recording or whatever, nothing more is coming. */
+					break;
+				continue;
+			}
+			/* Frame position and time of a frame as told by the audio HAL when there is such a
+			 *   thing, otherwise what we just read ends about now.
+			 */
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+					audioRecord.getTimestamp(ts, AudioTimestamp.TIMEBASE_MONOTONIC) ==
+					AudioRecord.SUCCESS) {
+				baseTime = ts.nanoTime;
+				baseFrames = ts.framePosition;
+			} else if (baseTime < 0) {
+				baseTime = System.nanoTime() -
+						(long) (len / SND_FRAME_SIZE) * 1000000000L / SND_SAMPLERATE;
+				baseFrames = 0;
+			}
+			pts = (baseTime + (frames - baseFrames) * 1000000000L / SND_SAMPLERATE) / 1000;
+			frames += len / SND_FRAME_SIZE;
+			c.len = len;
+			c.pts = pts;
+			c.eos = false;
+			if (audioQueued.get() >= SND_MAX_QUEUED) { /* The encoder isn't keeping up. */
+				audioFree.offer(c);
+				++audioDropped;
+				InfiCam.trace(InfiCam.TRACE_BACKPRESSURE, InfiCam.TRACE_INSTANT,
+						InfiCam.TRACE_DROP_AUDIO);
+				continue;
+			}
+			audioQueued.incrementAndGet();
+			audioQueue.offer(c);
+			handler.post(feedAudioRunnable);
+		}
+		AudioChunk c = new AudioChunk(0); /* To tell the encoder that was it. */
+		c.pts = pts;
+		c.eos = true;
+		audioQueued.incrementAndGet();
+		audioQueue.offer(c);
+		handler.post(feedAudioRunnable);
+	}
+
+	private void openMuxer() throws IOException {
 		/* Deal with actually getting a file and opening the muxer. */
 		@SuppressLint("SimpleDateFormat")
 		String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
@@ -89,21 +367,44 @@ public class SurfaceRecorder implements Runnable {
 			muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 			fileUri = Uri.fromFile(file);
 		}
+		hasFile = true;
+	}
+
+	/* If enabling audio, request audio permission first! */
+	@SuppressLint("MissingPermission")
+	private Surface _start(Context ctx, int w, int h, boolean sound, int bufferSize)
+			throws IOException {
+		this.ctx = ctx;
 		muxerStarted = false; /* We start it later, when the codecs report they're configured. */
+		buffering = bufferSize > 0;
+		hasFile = false;
+		if (!buffering) {
+			ring = null;
+			openMuxer();
+		} else if (ring == null || ring.getCapacity() != bufferSize) {
+			ring = null; /* So the old one can go before the new one is there. */
+			ring = new EncodedRing(bufferSize);
+		} else ring.clear();
 
 		/* Prepare the format etc. */
-		bufferInfo = new MediaCodec.BufferInfo();
 		MediaFormat format = MediaFormat.createVideoFormat(VID_MIME_TYPE, w, h);
 		format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
 				MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (BITRATE * w * h * FRAME_RATE));
-		format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-		videoEncoder = MediaCodec.createEncoderByType(VID_MIME_TYPE);
-		videoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-		inputSurface = videoEncoder.createInputSurface();
-		videoTrack = -1;
-		videoEncoder.start();
+		baseBitrate = bitrate = (int) (BITRATE * w * h * frameRate);
+		motionAvg = MOTION_FULL; /* Start at BITRATE until we know better. */
+		adaptTime = 0;
+		adapting = adaptive;
+		format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, Math.round(frameRate));
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+				buffering ? BUFFERED_IFRAME_INTERVAL : IFRAME_INTERVAL);
+		video = new Encoder(VID_MIME_TYPE, format);
+		inputSurface = video.codec.createInputSurface();
+		stopped = new CountDownLatch(1);
+		/* Before the audio, so stop() can end it if that fails. The callbacks only start coming
+		 *   once we're done here, we're on the same thread.
+		 */
+		video.start();
 
 		if (sound) {
 			/* MediaCodec defaults to 16bit PCM input, changing it seems to only be possible if we
@@ -119,161 +420,200 @@ public class SurfaceRecorder implements Runnable {
 			format.setInteger(
 					MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
 			aFormat.setInteger(MediaFormat.KEY_BIT_RATE, SND_BITRATE);
-			audioEncoder = MediaCodec.createEncoderByType(SND_MIME_TYPE);
-			audioEncoder.configure(aFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			audio = new Encoder(SND_MIME_TYPE, aFormat);
 			audioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, SND_SAMPLERATE,
 					achannels, AudioFormat.ENCODING_PCM_16BIT, audioBufferSize);
-			audioTrack = -1;
-			audioEncoder.start();
 			audioRecord.startRecording();
 		} else {
-			audioEncoder = null;
+			audio = null;
 			audioRecord = null;
 		}
 
-		endSignal = false;
-		thread = new Thread(this);
-		thread.start();
+		if (audio != null) {
+			audio.start();
+			audioStop = false;
+			audioDropped = 0;
+			audioThread = new Thread(this::captureAudio, "SurfaceRecorder audio");
+			audioThread.start();
+		}
 		return inputSurface;
 	}
 
 	/* Wrapper so we don't need to indent everything so far to call stop in case of exceptions. */
 	public Surface start(Context ctx, int w, int h, boolean sound) throws IOException {
+		return start(ctx, w, h, sound, 0);
+	}
+
+	/* Like start() but nothing gets written until saveBuffer(), until then the last bufferSize
+	 *   bytes of video and audio are kept in memory.
+	 */
+	public Surface startBuffered(Context ctx, int w, int h, boolean sound, int bufferSize)
+			throws IOException {
+		return start(ctx, w, h, sound, bufferSize);
+	}
+
+	private Surface start(Context ctx, int w, int h, boolean sound, int bufferSize)
+			throws IOException {
 		stop(); /* Just restart if started to prevent disasters. */
+		thread = new HandlerThread("SurfaceRecorder", Process.THREAD_PRIORITY_DISPLAY);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+		final Surface[] ret = new Surface[1];
 		try {
-			return _start(ctx, w, h, sound);
+			runSync(() -> ret[0] = _start(ctx, w, h, sound, bufferSize));
 		} catch (Exception e) {
 			stop();
 			throw e;
 		}
+		return ret[0];
+	}
+
+	/* Start writing the file after startBuffered(), with what's in the buffer first. */
+	public void saveBuffer() throws IOException {
+		if (thread == null)
+			return;
+		runSync(() -> {
+			if (hasFile)
+				return;
+			openMuxer();
+			startMuxer();
+		});
 	}
 
 	/* Safe to call when stopped. */
 	public void stop() {
-		try {
-			if (thread != null) {
-				endSignal = true;
-				thread.join();
-				thread = null;
+		if (thread == null)
+			return;
+		/* End the streams and wait for the encoders to have given us everything. The audio
+		 *   thread queues an end of stream chunk when it's done.
+		 */
+		if (audioThread != null) {
+			audioStop = true;
+			try {
+				audioThread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace(); /* This should never happen. */
 			}
-		} catch (InterruptedException e) {
-			e.printStackTrace(); /* This should never happen. */
+			audioThread = null;
+			if (audioDropped > 0)
+				Log.w("SurfaceRecorder", "Audio chunks dropped: " + audioDropped);
 		}
-		if (videoEncoder != null) {
-			videoEncoder.stop();
-			videoEncoder.release();
+		handler.post(() -> {
+			if (video != null && video.started)
+				video.codec.signalEndOfInputStream(); /* Only after createInputSurface(). */
+			else if (stopped != null) /* Nothing will come to wait for. */
+				stopped.countDown();
+		});
+		if (stopped != null) {
+			try {
+				if (!stopped.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+					Log.w("SurfaceRecorder", "Encoders didn't end the stream in time");
+			} catch (InterruptedException e) {
+				e.printStackTrace(); /* This should never happen. */
+			}
 		}
-		videoEncoder = null;
+		try {
+			runSync(this::_release);
+		} catch (IOException e) {
+			e.printStackTrace(); /* Doesn't happen, _release() doesn't throw it. */
+		}
+		thread.quitSafely();
+		thread = null;
+		handler = null;
+		stopped = null;
+		if (fileUri != null)
+			Util.scanMedia(ctx, fileUri);
+		fileUri = null;
+	}
+
+	/* On the recorder thread so no callbacks happen in the middle of it. */
+	private void _release() {
+		if (video != null)
+			video.release();
+		video = null;
 		if (audioRecord != null) {
-			audioRecord.stop();
+			/* Not if startRecording() failed, stop() throws then. */
+			if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING)
+				audioRecord.stop();
 			audioRecord.release();
 		}
 		audioRecord = null;
-		if (audioEncoder != null) {
-			audioEncoder.stop();
-			audioEncoder.release();
-		}
-		audioEncoder = null;
+		if (audio != null)
+			audio.release();
+		audio = null;
+		audioInputs.clear();
+		audioPartial = null;
+		audioQueue.clear();
+		audioFree.clear();
+		audioQueued.set(0);
 		if (muxerStarted)
 			muxer.stop();
 		muxerStarted = false;
+		buffering = false;
 		if (muxer != null)
 			muxer.release();
 		muxer = null;
 		if (inputSurface != null)
 			inputSurface.release();
 		inputSurface = null;
-		audioTrack = -1;
-		videoTrack = -1;
 		if (fileDescriptor != null) {
 			try {
 				fileDescriptor.close();
 			} catch (Exception e) { /* Empty. */ }
 		}
 		fileDescriptor = null;
-		if (fileUri != null)
-			Util.scanMedia(ctx, fileUri);
-		fileUri = null;
 	}
 
-	@Override
-	public void run() {
-		boolean stop = false, vidDone = false, sndDone = false;
-		/* This has to be a separate thread because if the encoder runs out of buffers then
-		 *   swapBuffers() on the surface will block.
-		 */
-		while (!vidDone || (!sndDone && audioEncoder != null)) {
-			int encoderStatus = videoEncoder.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIMEOUT);
-			if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-				/* Should happen exactly once, before output buffer given. */
-				MediaFormat format = videoEncoder.getOutputFormat();
-				videoTrack = muxer.addTrack(format);
-				if (audioTrack >= 0 || audioEncoder == null) {
-					muxer.start();
-					muxerStarted = true;
-				}
-			} else if (encoderStatus >= 0 && !vidDone) {
-				if (!muxerStarted)
-					continue;
-				ByteBuffer encodedData = videoEncoder.getOutputBuffer(encoderStatus);
-				if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
-					bufferInfo.size = 0;
-				if (bufferInfo.size != 0)
-					muxer.writeSampleData(videoTrack, encodedData, bufferInfo);
-				videoEncoder.releaseOutputBuffer(encoderStatus, false);
-				if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
-					vidDone = true;
-			} else if (stop) { /* Most likely MediaCodec.INFO_TRY_AGAIN_LATER. */
-				vidDone = true;
-			}
-
-			if (audioEncoder != null) {
-				/* Shovel audio from the recorder to the encoder. */
-				int index = audioEncoder.dequeueInputBuffer(DEQUEUE_TIMEOUT);
-				if (index >= 0) { /* Won't be >= 0 after BUFFER_FLAG_END_OF_STREAM. */
-					ByteBuffer buffer = audioEncoder.getInputBuffer(index);
-					buffer.clear();
-					int len = audioRecord.read(buffer, audioBufferSize);
-					if (len > 0)
-						audioEncoder.queueInputBuffer(index, 0, len, System.nanoTime() / 1000,
-								stop ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-				}
-
-				/* Shovel audio from the encoder to the muxer. */
-				encoderStatus = audioEncoder.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIMEOUT);
-				if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-					/* Should happen exactly once, before output buffer given. */
-					MediaFormat format = audioEncoder.getOutputFormat();
-					audioTrack = muxer.addTrack(format);
-					if (videoTrack >= 0) {
-						muxer.start();
-						muxerStarted = true;
-					}
-				} else if (encoderStatus >= 0 && !sndDone) {
-					if (!muxerStarted)
-						continue;
-					ByteBuffer encodedData = audioEncoder.getOutputBuffer(encoderStatus);
-					if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
-						bufferInfo.size = 0;
-					if (bufferInfo.size != 0)
-						muxer.writeSampleData(audioTrack, encodedData, bufferInfo);
-					audioEncoder.releaseOutputBuffer(encoderStatus, false);
-					if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
-						sndDone = true;
-				} else if (stop) { /* Most likely MediaCodec.INFO_TRY_AGAIN_LATER. */
-					sndDone = true;
-				}
+	/* Run on the recorder thread and wait for it, exceptions are rethrown to the caller. */
+	private void runSync(Task t) throws IOException {
+		if (Looper.myLooper() == thread.getLooper()) {
+			t.run();
+			return;
+		}
+		final Exception[] error = new Exception[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		handler.post(() -> {
+			try {
+				t.run();
+			} catch (IOException | RuntimeException e) {
+				error[0] = e;
 			}
-
-			if (endSignal) {
-				endSignal = false;
-				stop = true;
-				videoEncoder.signalEndOfInputStream(); /* Only allowed after getInputSurface(). */
+			done.countDown();
+		});
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true; /* We can't leave before it's done, try again. */
 			}
 		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (error[0] instanceof IOException)
+			throw (IOException) error[0];
+		if (error[0] != null)
+			throw (RuntimeException) error[0];
 	}
 
 	public boolean isRecording() {
 		return thread != null;
 	}
+
+	/* Frames per second for the next start(), 0 or less is FRAME_RATE. */
+	public void setFrameRate(float fps) {
+		frameRate = (fps > 0) ? Math.max(1, Math.min(fps, 60)) : FRAME_RATE;
+	}
+
+	/* Takes effect on the next start(). */
+	public void setAdaptiveBitrate(boolean value) { adaptive = value; }
+
+	/* How much changes in the picture, as InfiCam.FrameInfo.motion, can be called from anywhere. */
+	public void setMotion(float m) { motion = m; }
+
+	/* Started with startBuffered() and no saveBuffer() yet. */
+	public boolean isBuffering() {
+		return thread != null && !hasFile;
+	}
 }
@@ -0,0 +1,148 @@
+package be.ntmn.inficam;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/* Puts a raw frame and it's temperatures together as a two page baseline TIFF, so the actual
+ *   sensor data can be looked at in desktop tools rather than the 8 bit pictures. The first page
+ *   is the raw 16 bit values, the second one the temperatures in Celsius as 32 bit floats. Both
+ *   have the InfiFrame parameters as name=value lines in ImageDescription, and the first one has
+ *   the snapshot info (see InfiCam.getSnapshot()) in TAG_SNAPSHOT_INFO, with the table to turn the
+ *   raw values into temperatures again.
+ *
+ * It all goes in one direct ByteBuffer, so it can be written to a FileChannel without being
+ *   copied again on the way (which NIO does for heap buffers).
+ */
+public class TiffWriter {
+	public static final int TAG_SNAPSHOT_INFO = 65000; /* Private tag, UNDEFINED. */
+
+	private static final short TYPE_ASCII = 2;
+	private static final short TYPE_SHORT = 3;
+	private static final short TYPE_LONG = 4;
+	private static final short TYPE_UNDEFINED = 7;
+	private static final int PAGE_TAGS = 13; /* Not counting TAG_SNAPSHOT_INFO. */
+	private static final int SNAPSHOT_PARAMS = 32; /* Offset of the Params in the snapshot info. */
+	private static final String[] PARAM_NAMES = { /* Floats, in the order of the Params. */
+			"correction", "temp_reflected", "temp_air", "humidity", "emissivity", "distance",
+			"distance_multiplier", "offset_temp_fpa", "offset_temp_shutter"
+	};
+
+	/* Returns buf if it's big enough or else a new one, with the TIFF from 0 to the limit. The
+	 *   first width * height values of raw are the image, the rest is ignored, temp must be that
+	 *   size too.
+	 */
+	public static ByteBuffer encode(ByteBuffer buf, int width, int height, short[] raw,
+									float[] temp, byte[] info) {
+		int n = width * height;
+		byte[] desc = describe(info);
+		byte[] nameRaw = ascii("raw");
+		byte[] nameTemp = ascii("temperature");
+		int rawData = 8;
+		int tempData = align(rawData + n * 2);
+		int ifd0 = tempData + n * 4;
+		int ifd1 = ifd0 + pageSize(PAGE_TAGS + 1, desc, nameRaw, info);
+		int size = ifd1 + pageSize(PAGE_TAGS, desc, nameTemp, null);
+		if (buf == null || buf.capacity() < size)
+			buf = ByteBuffer.allocateDirect(size);
+		buf.clear();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+
+		buf.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifd0);
+		buf.asShortBuffer().put(raw, 0, n);
+		buf.position(tempData);
+		buf.asFloatBuffer().put(temp, 0, n);
+		buf.position(ifd0);
+		page(buf, width, height, 16, 1, rawData, nameRaw, desc, info, ifd1);
+		page(buf, width, height, 32, 3, tempData, nameTemp, desc, null, 0);
+		buf.flip();
+		return buf;
+	}
+
+	/* Writes an IFD at the position, followed by the values that don't fit in it. */
+	private static void page(ByteBuffer b, int width, int height, int bits, int format, int data,
+							 byte[] name, byte[] desc, byte[] info, int next) {
+		int tags = (info != null) ? PAGE_TAGS + 1 : PAGE_TAGS;
+		int descAt = b.position() + 2 + tags * 12 + 4;
+		int nameAt = outOfLine(descAt, desc);
+		int infoAt = outOfLine(nameAt, name);
+		b.putShort((short) tags); /* In order of the tag number. */
+		entry(b, 256, TYPE_LONG, width); /* ImageWidth. */
+		entry(b, 257, TYPE_LONG, height); /* ImageLength. */
+		entry(b, 258, TYPE_SHORT, bits); /* BitsPerSample. */
+		entry(b, 259, TYPE_SHORT, 1); /* Compression, none. */
+		entry(b, 262, TYPE_SHORT, 1); /* PhotometricInterpretation, BlackIsZero. */
+		entry(b, 270, TYPE_ASCII, desc, descAt); /* ImageDescription. */
+		entry(b, 273, TYPE_LONG, data); /* StripOffsets, all of it is one strip. */
+		entry(b, 277, TYPE_SHORT, 1); /* SamplesPerPixel. */
+		entry(b, 278, TYPE_LONG, height); /* RowsPerStrip. */
+		entry(b, 279, TYPE_LONG, width * height * bits / 8); /* StripByteCounts. */
+		entry(b, 284, TYPE_SHORT, 1); /* PlanarConfiguration, chunky. */
+		entry(b, 285, TYPE_ASCII, name, nameAt); /* PageName. */
+		entry(b, 339, TYPE_SHORT, format); /* SampleFormat, 1 is unsigned, 3 is float. */
+		if (info != null)
+			entry(b, TAG_SNAPSHOT_INFO, TYPE_UNDEFINED, info, infoAt);
+		b.putInt(next);
+		putOutOfLine(b, desc);
+		putOutOfLine(b, name);
+		putOutOfLine(b, info);
+	}
+
+	private static int pageSize(int tags, byte[] desc, byte[] name, byte[] info) {
+		return outOfLine(outOfLine(outOfLine(2 + tags * 12 + 4, desc), name), info);
+	}
+
+	private static void entry(ByteBuffer b, int tag, short type, int value) {
+		b.putShort((short) tag);
+		b.putShort(type);
+		b.putInt(1);
+		if (type == TYPE_SHORT)
+			b.putShort((short) value).putShort((short) 0);
+		else b.putInt(value);
+	}
+
+	/* Values of up to 4 bytes are in the entry itself, longer ones at the offset. */
+	private static void entry(ByteBuffer b, int tag, short type, byte[] value, int offset) {
+		b.putShort((short) tag);
+		b.putShort(type);
+		b.putInt(value.length);
+		if (value.length > 4) {
+			b.putInt(offset);
+			return;
+		}
+		b.put(value);
+		for (int i = value.length; i < 4; ++i)
+			b.put((byte) 0);
+	}
+
+	/* Where the next value goes if value is at pos. */
+	private static int outOfLine(int pos, byte[] value) {
+		if (value == null || value.length <= 4)
+			return pos;
+		return align(pos + value.length);
+	}
+
+	private static void putOutOfLine(ByteBuffer b, byte[] value) {
+		if (value == null || value.length <= 4)
+			return;
+		b.put(value);
+		b.position(align(b.position()));
+	}
+
+	private static int align(int pos) { return (pos + 3) & ~3; }
+
+	private static byte[] ascii(String s) {
+		return (s + '\0').getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] describe(byte[] info) {
+		ByteBuffer b = ByteBuffer.wrap(info).order(ByteOrder.LITTLE_ENDIAN);
+		StringBuilder sb = new StringBuilder("InfiCam\n");
+		b.position(SNAPSHOT_PARAMS);
+		for (String name : PARAM_NAMES)
+			sb.append(name).append('=').append(b.getFloat()).append('\n');
+		sb.append("range=").append(b.getInt()).append('\n');
+		sb.append("unit=Celsius\n");
+		return ascii(sb.toString());
+	}
+}
@@ -0,0 +1,67 @@
+package be.ntmn.inficam;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Lock-free exchange of the latest value between one producer thread and one consumer thread.
+ *
+ * There are three slots: the producer fills the one from getBack() and then calls publish(),
+ *   which swaps it with the middle slot in one atomic operation. The consumer calls acquire() to
+ *   swap the middle slot to the front if something new was published, and can then read the
+ *   slot from getFront() for as long as it likes. Neither side ever waits on the other, if the
+ *   producer is faster than the consumer the older values just get overwritten, so the consumer
+ *   always gets the latest complete one.
+ *
+ * The counters are there to see how often that happens, each one is only written by one thread.
+ */
+public class TripleBuffer<T> {
+	private static final int INDEX_MASK = 3;
+	private static final int FRESH = 4; /* Set in middle when it has not been acquired yet. */
+
+	private final Object[] slots;
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int back = 0; /* Only touched by the producer. */
+	private int front = 2; /* Only touched by the consumer. */
+
+	private volatile long published = 0; /* Values published by the producer. */
+	private volatile long overwritten = 0; /* Values replaced before the consumer got them. */
+	private volatile long acquired = 0; /* Values taken by the consumer. */
+	private volatile long idle = 0; /* Times the consumer asked but there was nothing new. */
+
+	public TripleBuffer(T a, T b, T c) {
+		slots = new Object[] { a, b, c };
+	}
+
+	@SuppressWarnings("unchecked")
+	public T getBack() { return (T) slots[back]; }
+
+	public void publish() {
+		int old = middle.getAndSet(back | FRESH);
+		if ((old & FRESH) != 0)
+			++overwritten;
+		back = old & INDEX_MASK;
+		++published;
+	}
+
+	/* Returns true if getFront() changed to a newly published value. */
+	public boolean acquire() {
+		if ((middle.get() & FRESH) == 0) {
+			++idle;
+			return false;
+		}
+		front = middle.getAndSet(front) & INDEX_MASK;
+		++acquired;
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T getFront() { return (T) slots[front]; }
+
+	public long getPublished() { return published; }
+	public long getOverwritten() { return overwritten; }
+	public long getAcquired() { return acquired; }
+	public long getIdle() { return idle; }
+
+	public void resetStats() {
+		published = overwritten = acquired = idle = 0;
+	}
+}
@@ -15,6 +15,7 @@ import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 
 import androidx.core.graphics.ColorUtils;
@@ -25,6 +26,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -32,6 +35,7 @@ public class Util {
 	public final static int IMGTYPE_PNG = 0;
 	public final static int IMGTYPE_PNG565 = 1;
 	public final static int IMGTYPE_JPEG = 2;
+	public final static int IMGTYPE_JPEG_RAD = 3; /* JPEG with the raw frame, see JpegAppStream. */
 
 	public final static int TEMPUNIT_CELSIUS = 0;
 	public final static int TEMPUNIT_FAHRENHEIT = 1;
@@ -43,14 +47,30 @@ public class Util {
 		ctx.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri));
 	}
 
-	private static void writeImage(Context ctx, Bitmap bmp, Bitmap.CompressFormat format,
-								  String mimeType, String ext, int quality)
+	private static class ImageFile {
+		Uri uri;
+		FileOutputStream out; /* A FileOutputStream either way, so there's a channel. */
+
+		/* When writing failed, so there's no empty or half written picture left behind. */
+		void discard(Context ctx) {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) { /* Empty. */ }
+			if (uri == null)
+				return;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+				ctx.getContentResolver().delete(uri, null, null);
+			else new File(uri.getPath()).delete();
+		}
+	}
+
+	private static ImageFile createImage(Context ctx, String mimeType, String ext)
 			throws IOException {
+		ImageFile file = new ImageFile();
 		@SuppressLint("SimpleDateFormat")
 		String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
 		String dirname = ctx.getString(R.string.app_name);
-		OutputStream out;
-		Uri uri;
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
 			String fname = "img_" + timeStamp + ext; /* MediaStore won't overwrite. */
 			ContentValues cv = new ContentValues();
@@ -60,8 +80,18 @@ public class Util {
 			cv.put(MediaStore.Images.Media.DATE_ADDED, System.currentTimeMillis());
 			cv.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
 			ContentResolver cr = ctx.getContentResolver();
-			uri = cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, cv);
-			out = cr.openOutputStream(uri);
+			file.uri = cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, cv);
+			if (file.uri == null)
+				throw new IOException("Failed to create " + fname + ".");
+			ParcelFileDescriptor pfd = null;
+			try {
+				pfd = cr.openFileDescriptor(file.uri, "w");
+			} catch (IOException e) { /* Same as null. */ }
+			if (pfd == null) {
+				file.discard(ctx);
+				throw new IOException("Failed to open " + fname + ".");
+			}
+			file.out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
 		} else {
 			int num = 0;
 			String fname = "img_" + timeStamp + "_" + num + ext;
@@ -69,40 +99,126 @@ public class Util {
 			File dir = new File(dcim, dirname);
 			if (!dir.exists())
 				dir.mkdirs();
-			File file = new File(dir, fname);
-			while (file.exists()) { /* Avoid overwriting existing files. */
+			File f = new File(dir, fname);
+			/* Avoid overwriting existing files, atomically since bursts write several at once. */
+			while (!f.createNewFile()) {
 				fname = "img_" + timeStamp + "_" + ++num + ext;
-				file = new File(fname);
+				f = new File(dir, fname);
 			}
-			out = new FileOutputStream(file);
-			uri = Uri.fromFile(file);
+			try {
+				file.out = new FileOutputStream(f);
+			} catch (IOException e) {
+				f.delete();
+				throw e;
+			}
+			file.uri = Uri.fromFile(f);
+		}
+		return file;
+	}
+
+	private static void writeImage(Context ctx, Bitmap bmp, Bitmap.CompressFormat format,
+								  String mimeType, String ext, int quality, byte[] app, int appLen)
+			throws IOException {
+		ImageFile file = createImage(ctx, mimeType, ext);
+		boolean ok = false;
+		try {
+			OutputStream out = file.out;
+			if (app != null)
+				out = new JpegAppStream(out, app, appLen);
+			if (!bmp.compress(format, quality, out))
+				throw new IOException("Failed to compress the picture.");
+			out.close();
+			ok = true;
+		} finally {
+			if (!ok)
+				file.discard(ctx);
 		}
-		bmp.compress(format, quality, out);
-		out.flush();
-		out.close();
-		scanMedia(ctx, uri);
+		scanMedia(ctx, file.uri);
+	}
+
+	/* Writes what's between the position and limit of a buffer from TiffWriter.encode(), through
+	 *   the file's channel so a direct buffer goes out as it is.
+	 */
+	public static void writeTiff(Context ctx, ByteBuffer tiff) throws IOException {
+		ImageFile file = createImage(ctx, "image/tiff", ".tif");
+		boolean ok = false;
+		try {
+			FileChannel ch = file.out.getChannel();
+			while (tiff.hasRemaining())
+				ch.write(tiff);
+			file.out.close();
+			ok = true;
+		} finally {
+			if (!ok)
+				file.discard(ctx);
+		}
+		scanMedia(ctx, file.uri);
 	}
 
 	public static void writeImage(Context ctx, Bitmap bmp, int type, int quality)
 			throws IOException {
+		writeImage(ctx, bmp, type, quality, null, 0);
+	}
+
+	/* For IMGTYPE_JPEG_RAD the snapshot (see InfiCam.encodeSnapshot()) goes in the JPEG, without
+	 *   it that's a normal JPEG, and other types ignore it.
+	 */
+	public static void writeImage(Context ctx, Bitmap bmp, int type, int quality, byte[] snapshot,
+								  int snapshotLen)
+			throws IOException {
 		switch (type) {
 			case IMGTYPE_PNG:
-				writeImage(ctx, bmp, Bitmap.CompressFormat.PNG, "image/png", ".png", quality);
+				writeImage(ctx, bmp, Bitmap.CompressFormat.PNG, "image/png", ".png", quality,
+						null, 0);
 				break;
 			case IMGTYPE_PNG565: /* Much faster than writePNG() and the output is smaller. */
 				Bitmap bmp2 =
 						Bitmap.createBitmap(bmp.getWidth(), bmp.getHeight(),Bitmap.Config.RGB_565);
 				Canvas c = new Canvas(bmp2);
 				c.drawBitmap(bmp, 0, 0, null);
-				writeImage(ctx, bmp2, Bitmap.CompressFormat.PNG, "image/png", ".png", quality);
+				writeImage(ctx, bmp2, Bitmap.CompressFormat.PNG, "image/png", ".png", quality,
+						null, 0);
 				bmp2.recycle();
 				break;
 			case IMGTYPE_JPEG: /* Fastest and smallest, but lossy. */
-				writeImage(ctx, bmp, Bitmap.CompressFormat.JPEG, "image/jpeg", ".jpg", quality);
+				writeImage(ctx, bmp, Bitmap.CompressFormat.JPEG, "image/jpeg", ".jpg", quality,
+						null, 0);
+				break;
+			case IMGTYPE_JPEG_RAD: /* Still a JPEG to anything that doesn't know. */
+				writeImage(ctx, bmp, Bitmap.CompressFormat.JPEG, "image/jpeg", ".jpg", quality,
+						snapshot, snapshotLen);
 				break;
 		}
 	}
 
+	/* Radiometric recordings go in the app's own external storage, they're not media so there's no
+	 *   gallery to put them in, and it needs no permissions.
+	 */
+	public static File radiometricFile(Context ctx) throws IOException {
+		return appFile(ctx, "radiometric", "rad_", ".irad");
+	}
+
+	/* Event traces (see InfiCam.dumpTrace()), same place for the same reasons. */
+	public static File traceFile(Context ctx) throws IOException {
+		return appFile(ctx, "traces", "trace_", ".json");
+	}
+
+	private static File appFile(Context ctx, String type, String prefix, String ext)
+			throws IOException {
+		@SuppressLint("SimpleDateFormat")
+		String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+		File dir = ctx.getExternalFilesDir(type);
+		if (dir == null)
+			throw new IOException("External storage not available.");
+		if (!dir.exists())
+			dir.mkdirs();
+		int num = 0;
+		File file = new File(dir, prefix + timeStamp + ext);
+		while (file.exists()) /* Avoid overwriting existing files. */
+			file = new File(dir, prefix + timeStamp + "_" + ++num + ext);
+		return file;
+	}
+
 	/* Note that we need permission to read external storage requested first. */
 	public static void openGallery(Context ctx) throws Exception {
 		String bucketName = ctx.getString(R.string.app_name);
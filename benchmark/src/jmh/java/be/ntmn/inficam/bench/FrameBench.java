@@ -0,0 +1,80 @@
+package be.ntmn.inficam.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import be.ntmn.inficam.TiffWriter;
+import be.ntmn.inficam.TripleBuffer;
+
+/* What happens to every frame on the Java side, in frames per second for one thread. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBench {
+	@Param({ "240x180", "256x192", "384x288", "640x480" })
+	public String size;
+
+	private int width, height;
+	private float[] temp;
+	private short[] raw;
+	private final byte[] info = new byte[0];
+	private Mirror.FrameInfo fi;
+	private final Mirror.MinMaxAvg mma = new Mirror.MinMaxAvg();
+	private final TripleBuffer<Mirror.Data> frameBuffer =
+			new TripleBuffer<>(new Mirror.Data(), new Mirror.Data(), new Mirror.Data());
+	private ByteBuffer tiff;
+
+	@Setup
+	public void setup() {
+		width = Frames.width(size);
+		height = Frames.height(size);
+		temp = Frames.temperatures(width, height);
+		raw = Frames.raw(temp);
+		fi = Frames.frameInfo(width, height, temp);
+	}
+
+	/* MainActivity's onFrame() and handleFrame() passing the frame between threads. */
+	@Benchmark
+	public Mirror.Data handoff() {
+		Mirror.Data d = frameBuffer.getBack();
+		d.copyFrame(fi, temp);
+		frameBuffer.publish();
+		frameBuffer.acquire();
+		return frameBuffer.getFront();
+	}
+
+	@Benchmark
+	public Mirror.MinMaxAvg mmaFrame() {
+		Mirror.mmaRect(mma, temp, 0, 0, width, height, width);
+		return mma;
+	}
+
+	/* The middle quarter, like a measuring area would be. */
+	@Benchmark
+	public Mirror.MinMaxAvg mmaArea() {
+		Mirror.mmaRect(mma, temp, width / 4, height / 4, width * 3 / 4, height * 3 / 4, width);
+		return mma;
+	}
+
+	/* A radiometric picture, with the buffer kept like MainActivity does. */
+	@Benchmark
+	public ByteBuffer tiff() {
+		tiff = TiffWriter.encode(tiff, width, height, raw, temp, info);
+		return tiff;
+	}
+}
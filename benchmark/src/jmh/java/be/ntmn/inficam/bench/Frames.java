@@ -0,0 +1,59 @@
+package be.ntmn.inficam.bench;
+
+import java.util.Random;
+
+/* Synthetic frames for the benchmarks, a room temperature background with a warm blob and some
+ *   noise, so the branches in the code under test go both ways about as often as on a real one.
+ */
+class Frames {
+	/* Sizes as in the @Params, "WIDTHxHEIGHT". */
+	static int width(String size) { return Integer.parseInt(size.split("x")[0]); }
+	static int height(String size) { return Integer.parseInt(size.split("x")[1]); }
+
+	static float[] temperatures(int width, int height) {
+		float[] temp = new float[width * height];
+		Random rnd = new Random(width * 31 + height);
+		float cx = width * 0.6f, cy = height * 0.4f, r = height / 4.0f;
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				float d = ((x - cx) * (x - cx) + (y - cy) * (y - cy)) / (r * r);
+				temp[y * width + x] = 21.0f + 15.0f * (float) Math.exp(-d) +
+						(float) rnd.nextGaussian() * 0.1f;
+			}
+		}
+		return temp;
+	}
+
+	/* Raw values the way the sensor would give them for temp, roughly. */
+	static short[] raw(float[] temp) {
+		short[] raw = new short[temp.length];
+		for (int i = 0; i < temp.length; ++i)
+			raw[i] = (short) (8000 + temp[i] * 60.0f);
+		return raw;
+	}
+
+	static Mirror.FrameInfo frameInfo(int width, int height, float[] temp) {
+		Mirror.FrameInfo fi = new Mirror.FrameInfo();
+		Mirror.MinMaxAvg mma = new Mirror.MinMaxAvg();
+		Mirror.mmaRect(mma, temp, 0, 0, width, height, width);
+		fi.min = mma.min;
+		fi.max = mma.max;
+		fi.avg = mma.avg;
+		fi.center = temp[height / 2 * width + width / 2];
+		fi.min_x = mma.min_x;
+		fi.min_y = mma.min_y;
+		fi.max_x = mma.max_x;
+		fi.max_y = mma.max_y;
+		fi.rangeMin = mma.min;
+		fi.rangeMax = mma.max;
+		fi.width = width;
+		fi.height = height;
+		fi.emissivity = 0.95f;
+		fi.temp_air = fi.temp_reflected = 25.0f;
+		fi.humidity = 0.45f;
+		fi.distance = 1.0f;
+		fi.timestamp = System.nanoTime();
+		fi.interval = 1.0f / 25.0f;
+		return fi;
+	}
+}
@@ -0,0 +1,27 @@
+package be.ntmn.inficam.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Palette.getData() the first time, when it has to generate, which is what switching to a
+ *   palette that wasn't made in the background yet costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaletteBench {
+	@Benchmark
+	public int[] ironbow() { return Mirror.Ironbow.generate(); }
+
+	@Benchmark
+	public int[] rainbow() { return Mirror.Rainbow.generate(); }
+}
@@ -0,0 +1,60 @@
+package be.ntmn.inficam.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/* The temperature labels the Overlay draws, per frame: min, max, center and both ends of the
+ *   palette bar.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextBench {
+	@Param({ "0", "1", "2" }) /* Mirror.TEMPUNIT_* */
+	public int tempUnit;
+
+	private final StringBuilder sb = new StringBuilder();
+	private final float[] labels = new float[5];
+
+	@Setup
+	public void setup() {
+		float[] temp = Frames.temperatures(256, 192);
+		Mirror.FrameInfo fi = Frames.frameInfo(256, 192, temp);
+		labels[0] = fi.min;
+		labels[1] = fi.max;
+		labels[2] = fi.center;
+		labels[3] = fi.rangeMin;
+		labels[4] = fi.rangeMax;
+	}
+
+	/* Into the one StringBuilder, like the Overlay. */
+	@Benchmark
+	public void labels(Blackhole bh) {
+		for (float t : labels) {
+			Mirror.formatTemp(sb, t, tempUnit);
+			bh.consume(sb.length());
+		}
+	}
+
+	/* The String one, to see what allocating costs. */
+	@Benchmark
+	public void labelStrings(Blackhole bh) {
+		for (float t : labels)
+			bh.consume(Mirror.formatTemp(t, tempUnit));
+	}
+}
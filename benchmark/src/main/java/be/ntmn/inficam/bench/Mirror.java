@@ -0,0 +1,203 @@
+package be.ntmn.inficam.bench;
+
+import static java.lang.Float.NaN;
+import static java.lang.Float.isNaN;
+import static java.lang.Math.PI;
+import static java.lang.Math.abs;
+import static java.lang.Math.max;
+import static java.lang.Math.pow;
+import static java.lang.Math.round;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+
+/* Copies of the per-frame app code that can't be used as is on a plain JVM because the class it's
+ *   in needs Android (Overlay, Util, Palette) or the native library (InfiCam.FrameInfo). Only what
+ *   the benchmarks measure is here, and it has to stay the same as the original, so when changing
+ *   one of these in the app change it here too or the numbers mean nothing.
+ */
+public class Mirror {
+	public static final int paletteLen = 0x4000; /* InfiCam.paletteLen */
+
+	public static final int TEMPUNIT_CELSIUS = 0; /* Util.TEMPUNIT_* */
+	public static final int TEMPUNIT_FAHRENHEIT = 1;
+	public static final int TEMPUNIT_KELVIN = 2;
+	public static final int TEMPUNIT_RANKINE = 3;
+
+	/* InfiCam.FrameInfo */
+	public static class FrameInfo {
+		public float min, max, avg, center;
+		public int min_x, min_y, max_x, max_y;
+		public float rangeMin, rangeMax;
+		public int width, height;
+
+		public float correction, temp_reflected, temp_air, humidity, emissivity, distance;
+
+		public long timestamp;
+		public float interval;
+		public float motion;
+
+		public void copyFrom(FrameInfo fi) {
+			min = fi.min;
+			max = fi.max;
+			avg = fi.avg;
+			center = fi.center;
+			min_x = fi.min_x;
+			min_y = fi.min_y;
+			max_x = fi.max_x;
+			max_y = fi.max_y;
+			rangeMin = fi.rangeMin;
+			rangeMax = fi.rangeMax;
+			width = fi.width;
+			height = fi.height;
+			correction = fi.correction;
+			temp_reflected = fi.temp_reflected;
+			temp_air = fi.temp_air;
+			humidity = fi.humidity;
+			emissivity = fi.emissivity;
+			distance = fi.distance;
+			timestamp = fi.timestamp;
+			interval = fi.interval;
+			motion = fi.motion;
+		}
+	}
+
+	/* The frame part of Overlay.Data, what MainActivity's onFrame() does with every frame. */
+	public static class Data {
+		public FrameInfo fi = new FrameInfo();
+		public float[] temp;
+
+		public void copyFrame(FrameInfo fi, float[] temp) {
+			this.fi.copyFrom(fi);
+			if (this.temp == null || this.temp.length != temp.length)
+				this.temp = new float[temp.length];
+			System.arraycopy(temp, 0, this.temp, 0, temp.length);
+		}
+	}
+
+	/* Overlay.MinMaxAvg */
+	public static class MinMaxAvg {
+		public float min, max, avg;
+		public int min_x, min_y, max_x, max_y;
+	}
+
+	/* Overlay.mmaRect() */
+	public static void mmaRect(MinMaxAvg out, float[] temp, int left, int top,
+							   int right, int bottom, int stride) {
+		out.min = out.max = NaN;
+		out.avg = 0.0f;
+		out.min_x = out.min_y = out.max_x = out.max_y = 0;
+		for (int y = top; y < bottom; ++y) {
+			for (int x = left; x < right; ++x) {
+				float t = temp[y * stride + x];
+				if (t < out.min || isNaN(out.min)) {
+					out.min = t;
+					out.min_x = x;
+					out.min_y = y;
+				}
+				if (t > out.max || isNaN(out.max)) {
+					out.max = t;
+					out.max_x = x;
+					out.max_y = y;
+				}
+				out.avg += t;
+			}
+		}
+		out.avg /= (right - left) * (bottom - top);
+	}
+
+	/* Util.formatTemp() */
+	public static void formatTemp(StringBuilder sb, float temp, int tempunit) {
+		sb.setLength(0);
+		if (Float.isNaN(temp) || Float.isInfinite(temp)) {
+			sb.append("NaN");
+			return;
+		}
+		if (tempunit == TEMPUNIT_KELVIN || tempunit == TEMPUNIT_RANKINE)
+			temp += 273.15f;
+		if (tempunit == TEMPUNIT_FAHRENHEIT || tempunit == TEMPUNIT_RANKINE)
+			temp *= 9.0f / 5.0f;
+		if (tempunit == TEMPUNIT_FAHRENHEIT)
+			temp += 32.0f;
+		if (temp < 0)
+			sb.append("-");
+		temp = abs(temp * 100.0f);
+		sb.append((int) temp / 100);
+		sb.append(".");
+		sb.append((int) ((temp / 10) % 10));
+		sb.append((int) (temp % 10));
+		if (tempunit == TEMPUNIT_FAHRENHEIT)
+			sb.append("°F");
+		else if (tempunit == TEMPUNIT_KELVIN)
+			sb.append("K");
+		else if (tempunit == TEMPUNIT_RANKINE)
+			sb.append("°R");
+		else sb.append("°C");
+	}
+
+	/* Util.formatTemp() for those who want a String. */
+	public static String formatTemp(float temp, int tempunit) {
+		StringBuilder sb = new StringBuilder();
+		formatTemp(sb, temp, tempunit);
+		return sb.toString();
+	}
+
+	/* Palette, with func() and the two built in ones that do the most math. */
+	public abstract static class Palette {
+		abstract void func(double x, double[] out);
+
+		/* Palette.generate(), which is what getData() costs the first time. */
+		public int[] generate() {
+			int[] palette = new int[paletteLen];
+			double[] rgb = new double[3];
+			for (int i = 0; i < palette.length; ++i) {
+				func((float) i / (float) palette.length, rgb);
+				palette[i] = 0xFF000000 | /* RGBA bytes, little endian. */
+						(int) round(255.0 * rgb[2]) << 16 |
+						(int) round(255.0 * rgb[1]) << 8 |
+						(int) round(255.0 * rgb[0]);
+			}
+			return palette;
+		}
+	}
+
+	public static final Palette Ironbow = new Palette() {
+		@Override
+		void func(double x, double[] out) {
+			set(out, sqrt(x), pow(x, 3), max(0.0, sin(2.0 * PI * x)));
+		}
+	};
+
+	public static final Palette Rainbow = new Palette() {
+		@Override
+		void func(double x, double[] out) {
+			hsvPixel(out, (1 - x) * 360.0, 1, 1);
+		}
+	};
+
+	private static void set(double[] out, double r, double g, double b) {
+		out[0] = r;
+		out[1] = g;
+		out[2] = b;
+	}
+
+	private static void hsvPixel(double[] out, double h, double s, double v) {
+		double r, g, b;
+		double c = s * v;
+		double y = c * (1 - abs((h / 60.0) % 2 - 1));
+		double m = v - c;
+		if (h >= 0 && h < 60) {
+			r = c; g = y; b = 0;
+		} else if (h >= 60 && h < 120) {
+			r = y; g = c; b = 0;
+		} else if (h >= 120 && h < 180) {
+			r = 0; g = c; b = y;
+		} else if (h >= 180 && h < 240) {
+			r = 0; g = y; b = c;
+		} else if(h >= 240 && h < 300) {
+			r = y; g = 0; b = c;
+		} else {
+			r = c; g = 0; b = y;
+		}
+		set(out, r + m, g + m, b + m);
+	}
+}
@@ -42,11 +42,40 @@ public class InfiCam {
 	 *   at the C++ side.
 	 */
 	public static class FrameInfo {
-		public float min, max, avg, center;
+		public float min, max, avg, center; /* min/max of the zoomed in part, see setAgcArea(). */
 		public int min_x, min_y, max_x, max_y;
+		public float rangeMin, rangeMax; /* The automatic range, see setAgc(). */
 		public int width, height;
 
 		public float correction, temp_reflected, temp_air, humidity, emissivity, distance;
+
+		public long timestamp; /* When the frame came in, in the System.nanoTime() time base. */
+		public float interval; /* Seconds between frames, averaged, 0 until known. */
+		public float motion; /* Average temperature change per pixel since the last frame. */
+
+		public void copyFrom(FrameInfo fi) {
+			min = fi.min;
+			max = fi.max;
+			avg = fi.avg;
+			center = fi.center;
+			min_x = fi.min_x;
+			min_y = fi.min_y;
+			max_x = fi.max_x;
+			max_y = fi.max_y;
+			rangeMin = fi.rangeMin;
+			rangeMax = fi.rangeMax;
+			width = fi.width;
+			height = fi.height;
+			correction = fi.correction;
+			temp_reflected = fi.temp_reflected;
+			temp_air = fi.temp_air;
+			humidity = fi.humidity;
+			emissivity = fi.emissivity;
+			distance = fi.distance;
+			timestamp = fi.timestamp;
+			interval = fi.interval;
+			motion = fi.motion;
+		}
 	}
 
 	public static final int paletteLen = 0x4000;
@@ -137,6 +166,181 @@ public class InfiCam {
 			throw new IllegalArgumentException();
 	}
 
-	/* Applies the set palette to the surface given with setSurface(). */
+	/* Time-lapse, every frames frames get combined into one (averaged or the maximum of each
+	 *   pixel) and only the combined frames reach the frame callback, so also applyPalette().
+	 *   Radiometric recording still gets every frame. Use 1 to turn it off.
+	 */
+	public static final int TIMELAPSE_AVERAGE = 0;
+	public static final int TIMELAPSE_MAX = 1;
+	public native void setTimelapse(int frames, int mode);
+
+	/* Automatic range, used by applyPalette() for a min or max that's NaN. It follows the frames
+	 *   smoothly: attack and decay are how many seconds it takes to follow a range getting wider
+	 *   or narrower, clip is the fraction of pixels at both ends that's ignored (so a few hot
+	 *   pixels don't count) and the range isn't moved for changes less than the hysteresis
+	 *   fraction of it. The area is the part of the frame it looks at in fractions of the width
+	 *   and height, for zooming in, the min and max in FrameInfo are of that part too.
+	 */
+	public native void setAgc(float attack, float decay, float clip, float hysteresis);
+	public native void setAgcArea(float x1, float y1, float x2, float y2);
+
+	/* Regions of interest, measured natively for every frame before the frame callback. Regions
+	 *   stay across connect()/disconnect(). The add functions return the region id, or -1 if
+	 *   there is no more room (see roiMaxRegions). Coordinates are in pixels of the thermal image.
+	 */
+	public static final int roiMaxRegions = 256;
+	public static final int ROI_MIN = 0;
+	public static final int ROI_MAX = 1;
+	public static final int ROI_AVG = 2;
+	public static final int ROI_STDDEV = 3;
+	public static final int ROI_MIN_X = 4;
+	public static final int ROI_MIN_Y = 5;
+	public static final int ROI_MAX_X = 6;
+	public static final int ROI_MAX_Y = 7;
+	public static final int ROI_COUNT = 8; /* Pixels measured, 0 for unused regions. */
+	public static final int roiResultStride = 9;
+
+	public native int roiAddRect(int x1, int y1, int x2, int y2);
+	public native int roiAddEllipse(int cx, int cy, int rx, int ry);
+	public native int roiAddPoint(int x, int y);
+	public native int roiAddPolyline(int[] xy); /* Points as x, y pairs. */
+	public native void roiRemove(int id);
+	public native void roiClear();
+
+	/* Copies the results of the last frame into out, roiResultStride floats per region, indexed
+	 *   by region id and with the offsets given by the ROI_ constants. Make out big enough for the
+	 *   highest id you use, roiMaxRegions * roiResultStride covers them all. Returns the amount of
+	 *   region records copied. Allocates nothing, so it can be called every frame.
+	 */
+	public native int getRoiResults(float[] out);
+
+	/* Radiometric recording, writes the raw frames and parameters so temperatures can be measured
+	 *   again later (see InfiRecorder.h for the file format). The fd gets closed when recording
+	 *   stops, so give it a detached one (ParcelFileDescriptor.detachFd()). Recording stops by
+	 *   itself on disconnect().
+	 */
+	private native int nativeRecordStart(int fd);
+	public void startRecording(int fd) {
+		if (nativeRecordStart(fd) != 0)
+			throw new RuntimeException("Failed to start radiometric recording.");
+	}
+
+	private native int nativeRecordStop();
+	public void stopRecording() {
+		if (nativeRecordStop() != 0)
+			throw new RuntimeException("Failed to write radiometric recording.");
+	}
+
+	public native int getRecordFramesWritten();
+	public native int getRecordFramesDropped(); /* Because the storage couldn't keep up. */
+
+	/* Latency per stage of a frame, kept in histograms natively (see InfiLatency.h). The stages up
+	 *   to and including LATENCY_PALETTE are measured by us, drawing and swapping are up to whoever
+	 *   does them through recordLatency(). LATENCY_CALLBACK is the whole frame callback, so it
+	 *   includes LATENCY_PALETTE. getLatency() puts latencyStride ints per stage in out (make it
+	 *   LATENCY_COUNT * latencyStride long for all of them): the amount of frames, and the median
+	 *   and 99th percentile in microseconds (rounded up to a bucket, off by at most a quarter).
+	 *   Returns the amount of stages. None of these block or allocate, any thread may call them.
+	 */
+	public static final int LATENCY_USB = 0;
+	public static final int LATENCY_CALIBRATION = 1;
+	public static final int LATENCY_CONVERSION = 2;
+	public static final int LATENCY_HANDOFF = 3;
+	public static final int LATENCY_CALLBACK = 4;
+	public static final int LATENCY_PALETTE = 5;
+	public static final int LATENCY_DRAW = 6;
+	public static final int LATENCY_SWAP = 7;
+	public static final int LATENCY_COUNT = 8;
+	public static final int LATENCY_FRAMES = 0;
+	public static final int LATENCY_P50 = 1;
+	public static final int LATENCY_P99 = 2;
+	public static final int latencyStride = 3;
+
+	public native void recordLatency(int stage, long nanos); /* Nanos as from System.nanoTime(). */
+	public native int getLatency(int[] out);
+	public native void resetLatency();
+
+	/* Event trace, a timeline of the last 4096 things that happened to frames for when something
+	 *   stutters (see InfiTrace.h). It's one ring for the whole process and the native side writes
+	 *   to it too, so these are static. Disabled it costs nothing, trace() doesn't even go to
+	 *   native code then. dumpTrace() writes what's in the ring to the fd and closes it, give it
+	 *   a detached one (ParcelFileDescriptor.detachFd()). Arguments to trace() are TRACE_*,
+	 *   TRACE_BEGIN/TRACE_END for something that takes time, on the same thread, and an int
+	 *   that goes with it (a TRACE_DROP_* for TRACE_DROPPED and TRACE_BACKPRESSURE).
+	 */
+	public static final int TRACE_FRAME = 0;
+	public static final int TRACE_CALIBRATION = 1;
+	public static final int TRACE_SHUTTER = 2;
+	public static final int TRACE_TABLE = 3;
+	public static final int TRACE_DROPPED = 4;
+	public static final int TRACE_CALLBACK = 5;
+	public static final int TRACE_SWAP = 6;
+	public static final int TRACE_BACKPRESSURE = 7;
+	public static final int TRACE_INSTANT = 0;
+	public static final int TRACE_BEGIN = 1;
+	public static final int TRACE_END = 2;
+	public static final int TRACE_DROP_INCOMPLETE = 0;
+	public static final int TRACE_DROP_RENDER = 1;
+	public static final int TRACE_DROP_RADIOMETRIC = 2;
+	public static final int TRACE_DROP_AUDIO = 3;
+	public static final int TRACE_FORMAT_BINARY = 0;
+	public static final int TRACE_FORMAT_JSON = 1; /* For chrome://tracing or ui.perfetto.dev. */
+
+	private static volatile boolean traceEnabled = false;
+	private static native void nativeSetTrace(boolean enabled);
+	private static native void nativeTrace(int type, int phase, int arg);
+	private static native int nativeDumpTrace(int fd, int format);
+
+	public static void setTrace(boolean enabled) {
+		traceEnabled = enabled;
+		nativeSetTrace(enabled);
+	}
+
+	public static boolean isTraceEnabled() { return traceEnabled; }
+
+	public static void trace(int type, int phase, int arg) {
+		if (traceEnabled)
+			nativeTrace(type, phase, arg);
+	}
+
+	public static void dumpTrace(int fd, int format) {
+		if (nativeDumpTrace(fd, format) != 0)
+			throw new RuntimeException("Failed to write event trace.");
+	}
+
+	/* Radiometric snapshots, the raw frame and everything needed to get temperatures from it (see
+	 *   InfiRecorder.h for the format). getSnapshot() copies the frame and the info, it only works
+	 *   from the frame callback. raw must be getRawLength() values and info snapshotInfoLen bytes.
+	 *   It returns false for a time-lapse frame (see setTimelapse()), there's no raw frame that
+	 *   goes with one of those.
+	 *   encodeSnapshot() puts them together in out, which needs room for snapshotBound(), and
+	 *   returns the length. It doesn't touch the camera so it can be done on another thread.
+	 */
+	public static final int snapshotInfoLen = 32 + 48 + 4 * 0x4000;
+	public native int getRawLength();
+
+	private native int nativeGetSnapshot(short[] raw, byte[] info);
+	public boolean getSnapshot(short[] raw, byte[] info) {
+		int ret = nativeGetSnapshot(raw, info);
+		if (ret == 3)
+			return false;
+		if (ret != 0)
+			throw new RuntimeException("Failed to get snapshot.");
+		return true;
+	}
+
+	public static native int snapshotBound(int rawLen);
+
+	private static native int nativeEncodeSnapshot(short[] raw, byte[] info, byte[] out);
+	public static int encodeSnapshot(short[] raw, byte[] info, byte[] out) {
+		int len = nativeEncodeSnapshot(raw, info, out);
+		if (len < 0)
+			throw new IllegalArgumentException();
+		return len;
+	}
+
+	/* Applies the set palette to the surface given with setSurface(), NaN for min or max uses the
+	 *   automatic range (see setAgc()).
+	 */
 	public native void applyPalette(float min, float max);
 }
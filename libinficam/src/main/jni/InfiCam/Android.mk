@@ -24,6 +24,11 @@ LOCAL_STATIC_LIBRARIES += libuvc_static
 LOCAL_SRC_FILES := \
 		UVCDevice.cpp \
 		InfiFrame.cpp \
+		InfiROI.cpp \
+		InfiAGC.cpp \
+		InfiLatency.cpp \
+		InfiTrace.cpp \
+		InfiRecorder.cpp \
 		InfiCam.cpp \
 		InfiCamJNI.cpp
 
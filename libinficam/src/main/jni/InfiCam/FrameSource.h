@@ -0,0 +1,33 @@
+#ifndef __FRAMESOURCE_H__
+#define __FRAMESOURCE_H__
+
+#include "InfiRecorder.h"
+#include <libusb.h> /* Before libuvc.h, it checks LIBUSB_API_VERSION. */
+#include <libuvc.h>
+#include <cstdint>
+#include <cstdlib> /* NULL */
+
+/* Whatever InfiCam gets its frames from, normally a UVCDevice, but frames can come from a file
+ *   just the same (see ReplaySource) so everything after it works without a camera.
+ *
+ * The callback gets uvc_frame_t's like libuvc gives them, only data and data_bytes have to be
+ *   filled in, and it's called from a thread of the source's own.
+ */
+class FrameSource {
+public:
+	uint16_t width = 0, height = 0; /* Of the frames as they come from the camera. */
+
+	virtual ~FrameSource() {}
+
+	virtual int stream_start(uvc_frame_callback_t *cb, void *user_ptr) = 0;
+	virtual void stream_stop() = 0;
+	virtual int set_zoom_abs(uint16_t val) = 0; /* How all the commands go to the camera. */
+	virtual void disconnect() {}
+
+	/* The InfiFrame parameters that were recorded with the frame that is in the callback right
+	 *   now, NULL for a live camera. Set changed when they're different from the last frame.
+	 */
+	virtual const InfiRecorder::Params *frame_params(bool *changed) { return NULL; }
+};
+
+#endif /* __FRAMESOURCE_H__ */
@@ -0,0 +1,114 @@
+#include "InfiAGC.h"
+
+#include <cstdint>
+#include <cstring> /* memset() */
+#include <cmath> /* expf(), fabsf(), std::isnan(), INFINITY */
+
+void InfiAGC::reset() {
+	min = max = NAN;
+	target_min = target_max = NAN;
+}
+
+void InfiAGC::set_area(float x1, float y1, float x2, float y2) {
+	area_x1 = (x1 < 0) ? 0 : x1;
+	area_y1 = (y1 < 0) ? 0 : y1;
+	area_x2 = (x2 > 1) ? 1 : x2;
+	area_y2 = (y2 > 1) ? 1 : y2;
+}
+
+/* How far to move towards the target for a time constant of tau seconds. */
+static float follow(float tau, float dt) {
+	if (tau <= 0)
+		return 1;
+	if (dt <= 0)
+		dt = 1.0f / 25.0f; /* Frame interval isn't known yet, this is what most cameras do. */
+	return 1 - expf(-dt / tau);
+}
+
+void InfiAGC::update(const float *temp, int width, int height, float dt) {
+	int x1 = area_x1 * width, y1 = area_y1 * height;
+	int x2 = ceilf(area_x2 * width), y2 = ceilf(area_y2 * height);
+	if (x2 > width)
+		x2 = width;
+	if (y2 > height)
+		y2 = height;
+	if (x2 <= x1 || y2 <= y1) {
+		x1 = y1 = 0;
+		x2 = width;
+		y2 = height;
+	}
+
+	/* Comparisons with NAN are false, so pixels that are don't count. */
+	float lo = INFINITY, hi = -INFINITY;
+	int lo_pos = 0, hi_pos = 0;
+	for (int y = y1; y < y2; ++y) {
+		const float *row = temp + y * width;
+		for (int x = x1; x < x2; ++x) {
+			if (row[x] < lo) {
+				lo = row[x];
+				lo_pos = y * width + x;
+			}
+			if (row[x] > hi) {
+				hi = row[x];
+				hi_pos = y * width + x;
+			}
+		}
+	}
+	if (!(hi >= lo) || std::isinf(lo) || std::isinf(hi))
+		return; /* Nothing sensible in there, keep what we have. */
+	area_min = lo;
+	area_max = hi;
+	area_min_x = lo_pos % width;
+	area_min_y = lo_pos / width;
+	area_max_x = hi_pos % width;
+	area_max_y = hi_pos / width;
+
+	float tmin = lo, tmax = hi;
+	if (clip > 0 && hi > lo)
+		percentiles(temp, width, x1, y1, x2, y2, lo, hi, &tmin, &tmax);
+
+	if (std::isnan(min) || std::isnan(target_min)) {
+		min = target_min = tmin;
+		max = target_max = tmax;
+	} else {
+		float band = (target_max - target_min) * hysteresis;
+		if (fabsf(tmin - target_min) > band)
+			target_min = tmin;
+		if (fabsf(tmax - target_max) > band)
+			target_max = tmax;
+		min += (target_min - min) * follow((target_min < min) ? attack : decay, dt);
+		max += (target_max - max) * follow((target_max > max) ? attack : decay, dt);
+	}
+	if (max - min < min_span) {
+		float mid = (min + max) / 2;
+		min = mid - min_span / 2;
+		max = mid + min_span / 2;
+	}
+}
+
+void InfiAGC::percentiles(const float *temp, int width, int x1, int y1, int x2, int y2,
+						  float lo, float hi, float *pmin, float *pmax) {
+	memset(hist, 0, sizeof(hist));
+	float scale = bins / (hi - lo);
+	uint32_t n = 0;
+	for (int y = y1; y < y2; ++y) {
+		const float *row = temp + y * width;
+		for (int x = x1; x < x2; ++x) {
+			if (!(row[x] >= lo)) /* NAN. */
+				continue;
+			int i = (row[x] - lo) * scale;
+			++hist[(i < bins) ? i : bins - 1];
+			++n;
+		}
+	}
+	uint32_t skip = clip * n, sum = 0;
+	int i = 0;
+	while (i < bins - 1 && (sum += hist[i]) <= skip)
+		++i;
+	*pmin = lo + i / scale;
+	sum = 0;
+	int j = bins - 1;
+	while (j > i && (sum += hist[j]) <= skip)
+		--j;
+	*pmax = (j == bins - 1) ? hi : lo + (j + 1) / scale;
+}
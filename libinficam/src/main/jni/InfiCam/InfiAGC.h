@@ -0,0 +1,55 @@
+#ifndef __INFIAGC_H__
+#define __INFIAGC_H__
+
+#include <cstdint>
+#include <cmath> /* NAN */
+
+/* Automatic range for the palette, following the temperatures of the frames smoothly rather than
+ *   jumping to every frame's min and max, so a single hot pixel coming and going doesn't make the
+ *   whole image flicker.
+ *
+ * Every update() looks at the area (the whole frame unless set_area(), for zooming in) once to
+ *   find the extremes, and if clip is set a second time for a histogram to find the percentiles
+ *   to use instead. That target only moves when it changes more than hysteresis, and min and max
+ *   move towards it with attack as time constant when the range gets wider and decay when it gets
+ *   narrower. Nothing is allocated, so it's fine to do for every frame.
+ *
+ * Not thread safe by itself, InfiCam guards it with the same mutex as the rest of the frame.
+ */
+class InfiAGC {
+public:
+	static const int bins = 1024;
+
+	/* Settings, these can be changed at any time. */
+	float attack = 0.2; /* Seconds, time constant for widening, 0 to follow right away. */
+	float decay = 2.0; /* Seconds, time constant for narrowing. */
+	float clip = 0.001; /* Fraction of the pixels to ignore at both ends, 0 for the extremes. */
+	float hysteresis = 0.05; /* Fraction of the range the target must move to be followed. */
+	float min_span = 0.5; /* Degrees, a range narrower than this is widened around it's middle. */
+
+	/* Results of the last update(), NAN until there was one with something in the area. */
+	float min = NAN, max = NAN; /* The range to use. */
+	float area_min = NAN, area_max = NAN; /* Extremes of the area and where they are. */
+	int area_min_x = 0, area_min_y = 0, area_max_x = 0, area_max_y = 0;
+
+	/* Start over, the next update() goes to the range right away. */
+	void reset();
+
+	/* Part of the frame to look at, as fractions of the width and height. */
+	void set_area(float x1, float y1, float x2, float y2);
+	bool has_area() { return area_x1 > 0 || area_y1 > 0 || area_x2 < 1 || area_y2 < 1; }
+
+	/* Frame as from InfiFrame::temp(), dt is seconds since the last one (0 if unknown). */
+	void update(const float *temp, int width, int height, float dt);
+
+private:
+	float area_x1 = 0, area_y1 = 0, area_x2 = 1, area_y2 = 1;
+	float target_min = NAN, target_max = NAN;
+	uint32_t hist[bins];
+
+	/* The low and high percentile of the area within lo to hi, by histogram. */
+	void percentiles(const float *temp, int width, int x1, int y1, int x2, int y2, float lo,
+					 float hi, float *pmin, float *pmax);
+};
+
+#endif /* __INFIAGC_H__ */
@@ -1,12 +1,15 @@
 #include "InfiCam.h"
 #include "UVCDevice.h"
 #include "InfiFrame.h"
+#include "InfiTrace.h"
 
 #include <cstdint>
 #include <pthread.h>
 #include <cstdlib> /* NULL */
 #include <cstring> /* memcpy() */
-#include <cmath> /* isnan() */
+#include <unistd.h> /* close() */
+#include <cmath> /* isnan(), std::isfinite() */
+#include <ctime> /* clock_gettime() */
 
 #include <android/log.h>
 #include <stdio.h>
@@ -46,11 +49,24 @@ void InfiCam::uvc_callback(uvc_frame_t *frame, void *user_ptr) {
 
     // This function gets called every time a new frame is ready
 	InfiCam *p = (InfiCam *) user_ptr;
-	if (frame->data_bytes < p->dev.width * p->dev.height * 2)
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	uint64_t t_start = (uint64_t) now.tv_sec * 1000000000 + now.tv_nsec, t_conv;
+	uint64_t t_usb = (uint64_t) frame->capture_time_finished.tv_sec * 1000000000 +
+			frame->capture_time_finished.tv_nsec;
+	if (InfiTrace::is_enabled())
+		InfiTrace::record(InfiTrace::TYPE_FRAME, InfiTrace::PHASE_INSTANT, frame->sequence,
+						  (t_usb != 0) ? t_usb : t_start);
+	if (frame->data_bytes < p->src->width * p->src->height * 2) {
+		InfiTrace::event(InfiTrace::TYPE_DROPPED, InfiTrace::PHASE_INSTANT,
+						 InfiTrace::DROP_INCOMPLETE);
 		return;
+	}
+	if (t_usb != 0 && t_start > t_usb) /* Zero when it's not from libuvc. */
+		p->latency.record(InfiLatency::STAGE_USB, t_start - t_usb);
 
     if(p->calibrating) {
-        size_t frame_size = p->dev.width * (p->dev.height - InfiCam::DATA_ROWS);    // We don't want to calibrate out the data rows
+        size_t frame_size = p->src->width * (p->src->height - InfiCam::DATA_ROWS);    // We don't want to calibrate out the data rows
 
         if (p->calibration_frame == nullptr) {
             p->calibration_frame = new uint16_t[frame_size];
@@ -91,6 +107,7 @@ void InfiCam::uvc_callback(uvc_frame_t *frame, void *user_ptr) {
 
         p->calibrating = false;
         p->calibrated = true;
+        InfiTrace::event(InfiTrace::TYPE_SHUTTER, InfiTrace::PHASE_INSTANT, 1);
         pthread_cond_signal(&p->calibration_cond);
         return;
     }
@@ -98,7 +115,7 @@ void InfiCam::uvc_callback(uvc_frame_t *frame, void *user_ptr) {
 	pthread_mutex_lock(&p->frame_callback_mutex);
 
     // Store the frame into intermediary buffer
-    size_t frame_size = p->dev.width * p->dev.height;
+    size_t frame_size = p->src->width * p->src->height;
     if (p->intermediary_buffer == nullptr) {
         p->intermediary_buffer = new uint16_t[frame_size];
     }
@@ -112,8 +129,8 @@ void InfiCam::uvc_callback(uvc_frame_t *frame, void *user_ptr) {
 
     // Apply calibration and dead pixel correction in a single pass
     if(p->raw_sensor && p->calibrated) {
-        size_t frame_size_without_data = p->dev.width * (p->dev.height - InfiCam::DATA_ROWS);
-        size_t width = p->dev.width;
+        size_t frame_size_without_data = p->src->width * (p->src->height - InfiCam::DATA_ROWS);
+        size_t width = p->src->width;
 
         for(size_t i = 0; i < frame_size_without_data; i++) {
             // First apply offset calibration
@@ -136,8 +153,8 @@ void InfiCam::uvc_callback(uvc_frame_t *frame, void *user_ptr) {
                         int neighbor_row = static_cast<int>(row) + dy;
                         int neighbor_col = static_cast<int>(col) + dx;
 
-                        if(neighbor_row >= 0 && neighbor_row < (p->dev.height - InfiCam::DATA_ROWS) &&
-                           neighbor_col >= 0 && neighbor_col < p->dev.width) {
+                        if(neighbor_row >= 0 && neighbor_row < (p->src->height - InfiCam::DATA_ROWS) &&
+                           neighbor_col >= 0 && neighbor_col < p->src->width) {
 
                             size_t neighbor_idx = neighbor_row * width + neighbor_col;
 
@@ -169,16 +186,66 @@ void InfiCam::uvc_callback(uvc_frame_t *frame, void *user_ptr) {
                 }
             }
         }
-    }
+        t_conv = InfiLatency::now();
+        p->latency.record(InfiLatency::STAGE_CALIBRATION, t_conv - t_start);
+    } else t_conv = InfiLatency::now();
 
     // Use intermediary buffer
     p->infi.read_params(p->intermediary_buffer);
+	bool params_changed;
+	const InfiRecorder::Params *params = p->src->frame_params(&params_changed);
+	if (params != NULL) { /* Replaying, what was recorded goes over what's in the frame. */
+		params->to(p->infi);
+		if (params_changed)
+			p->table_invalid = 1;
+	}
     if (p->table_invalid) {
+        InfiTrace::begin(InfiTrace::TYPE_TABLE);
         p->infi.update_table(p->intermediary_buffer);
+        InfiTrace::end(InfiTrace::TYPE_TABLE);
         p->table_invalid = 0;
     } else p->infi.update(p->intermediary_buffer);
 
     p->infi.temp(p->intermediary_buffer, p->frame_temp);
+	if (p->recorder.recording())
+		p->recorder.push(p->intermediary_buffer, p->infi, (t_usb != 0) ? t_usb : t_start);
+	p->frame_stacked = p->stack_frames > 1;
+	if (p->frame_stacked && !p->stack_add()) {
+		p->latency.record(InfiLatency::STAGE_CONVERSION, InfiLatency::now() - t_conv);
+		pthread_mutex_unlock(&p->frame_callback_mutex);
+		return;
+	}
+	p->roi.evaluate(p->frame_temp);
+	p->measure_motion();
+
+	/* Average the interval a bit, USB delivery is not that regular. */
+	if (p->frame_timestamp != 0 && t_start > p->frame_timestamp) {
+		float interval = (t_start - p->frame_timestamp) / 1e9f;
+		if (p->frame_interval == 0.0f)
+			p->frame_interval = interval;
+		else p->frame_interval += (interval - p->frame_interval) * 0.1f;
+	}
+	p->frame_timestamp = t_start;
+
+	p->agc.update(p->frame_temp, p->infi.width, p->infi.height, p->frame_interval);
+	p->range_min = p->agc.min;
+	p->range_max = p->agc.max;
+	if (p->agc.has_area() || p->p2_pro) {
+		p->frame_min = p->agc.area_min;
+		p->frame_min_x = p->agc.area_min_x;
+		p->frame_min_y = p->agc.area_min_y;
+		p->frame_max = p->agc.area_max;
+		p->frame_max_x = p->agc.area_max_x;
+		p->frame_max_y = p->agc.area_max_y;
+	} else {
+		p->frame_min = p->infi.temp(p->infi.temp_min);
+		p->frame_min_x = p->infi.temp_min_x;
+		p->frame_min_y = p->infi.temp_min_y;
+		p->frame_max = p->infi.temp(p->infi.temp_max);
+		p->frame_max_x = p->infi.temp_max_x;
+		p->frame_max_y = p->infi.temp_max_y;
+	}
+	p->latency.record(InfiLatency::STAGE_CONVERSION, InfiLatency::now() - t_conv);
 
 	/* Unlock before the callback so if it decides to call a function that locks the this callback
 	 *   we don't end up in a deadlock.
@@ -187,16 +254,105 @@ void InfiCam::uvc_callback(uvc_frame_t *frame, void *user_ptr) {
     p->frame_callback(p, p->frame_temp, p->intermediary_buffer, p->frame_callback_arg);
 }
 
+bool InfiCam::stack_add() {
+	size_t len = infi.width * infi.height;
+	if (stack_count == 0) {
+		memcpy(stack_temp, frame_temp, len * sizeof(float));
+		stack_max = infi.temp_max;
+		stack_max_x = infi.temp_max_x;
+		stack_max_y = infi.temp_max_y;
+		stack_min = infi.temp_min;
+		stack_min_x = infi.temp_min_x;
+		stack_min_y = infi.temp_min_y;
+	} else {
+		if (stack_mode == STACK_MAX) {
+			for (size_t i = 0; i < len; ++i)
+				if (frame_temp[i] > stack_temp[i])
+					stack_temp[i] = frame_temp[i];
+		} else {
+			for (size_t i = 0; i < len; ++i)
+				stack_temp[i] += frame_temp[i];
+		}
+		/* Raw values, the table only goes up so comparing those is the same. */
+		if (infi.temp_max > stack_max) {
+			stack_max = infi.temp_max;
+			stack_max_x = infi.temp_max_x;
+			stack_max_y = infi.temp_max_y;
+		}
+		if (infi.temp_min < stack_min) {
+			stack_min = infi.temp_min;
+			stack_min_x = infi.temp_min_x;
+			stack_min_y = infi.temp_min_y;
+		}
+	}
+	if (++stack_count < stack_frames)
+		return false;
+
+	if (stack_mode == STACK_MAX) {
+		memcpy(frame_temp, stack_temp, len * sizeof(float));
+		/* The max of the combined frame is the max of the frames that went in, but its min is
+		 *   warmer than the coldest of those, so look for it. The raw value is the first in the
+		 *   table that comes to that temperature, the table only goes up.
+		 */
+		float min = INFINITY;
+		size_t min_i = 0;
+		for (size_t i = 0; i < len; ++i) {
+			if (frame_temp[i] < min) { /* Not true for NaN, below what the table represents. */
+				min = frame_temp[i];
+				min_i = i;
+			}
+		}
+		if (min != INFINITY) {
+			int v = 0;
+			while (v < InfiFrame::table_mask && !(infi.table[v] >= min))
+				++v;
+			stack_min = v;
+			stack_min_x = min_i % infi.width;
+			stack_min_y = min_i / infi.width;
+		}
+	} else {
+		float div = 1.0f / stack_count;
+		for (size_t i = 0; i < len; ++i)
+			frame_temp[i] = stack_temp[i] * div;
+	}
+	infi.temp_max = stack_max;
+	infi.temp_max_x = stack_max_x;
+	infi.temp_max_y = stack_max_y;
+	infi.temp_min = stack_min;
+	infi.temp_min_x = stack_min_x;
+	infi.temp_min_y = stack_min_y;
+	stack_count = 0;
+	return true;
+}
+
+void InfiCam::measure_motion() {
+	float sum = 0.0f;
+	int n = 0, i = 0;
+	for (int y = 0; y < infi.height; y += motion_step) {
+		const float *row = frame_temp + y * infi.width;
+		for (int x = 0; x < infi.width; x += motion_step, ++i) {
+			float d = row[x] - motion_prev[i];
+			motion_prev[i] = row[x];
+			if (std::isfinite(d)) {
+				sum += std::fabs(d);
+				++n;
+			}
+		}
+	}
+	frame_motion = (motion_valid && n > 0) ? sum / n : 0.0f;
+	motion_valid = true;
+}
+
 void InfiCam::set_float(int addr, float val) {
 	uint8_t *p = (uint8_t *) &val;
-	dev.set_zoom_abs((((addr + 0) & 0x7F) << 8) | p[0]);
-	dev.set_zoom_abs((((addr + 1) & 0x7F) << 8) | p[1]);
-	dev.set_zoom_abs((((addr + 2) & 0x7F) << 8) | p[2]);
-	dev.set_zoom_abs((((addr + 3) & 0x7F) << 8) | p[3]);
+	src->set_zoom_abs((((addr + 0) & 0x7F) << 8) | p[0]);
+	src->set_zoom_abs((((addr + 1) & 0x7F) << 8) | p[1]);
+	src->set_zoom_abs((((addr + 2) & 0x7F) << 8) | p[2]);
+	src->set_zoom_abs((((addr + 3) & 0x7F) << 8) | p[3]);
 }
 
 InfiCam::~InfiCam() {
-	dev.disconnect();
+	disconnect();
     delete[] calibration_frame;
     delete[] intermediary_buffer;
     delete[] frame_temp;
@@ -204,26 +360,35 @@ InfiCam::~InfiCam() {
 }
 
 int InfiCam::connect(int fd) {
+	disconnect();
+	if (dev.connect(fd, p2_pro))
+		return 2;
+	return connect_source(&dev);
+}
+
+int InfiCam::connect_source(FrameSource *source) {
 	disconnect();
 	/* We initialize the mutex here because we can't use exceptions with JNI and the constructor
 	 *   thus isn't able to fail.
 	 */
-	if (pthread_mutex_init(&frame_callback_mutex, NULL))
+	if (pthread_mutex_init(&frame_callback_mutex, NULL)) {
+		source->disconnect();
 		return 1;
+	}
     if (pthread_cond_init(&calibration_cond, NULL)) {
         pthread_mutex_destroy(&frame_callback_mutex);
+		source->disconnect();
         return 1;
     }
-	if (dev.connect(fd, p2_pro)) {
-		pthread_mutex_destroy(&frame_callback_mutex);
-		return 2;
-	}
-    if (infi.init(dev.width, dev.height)) {
-        dev.disconnect();
+    if (infi.init(source->width, source->height)) {
+        source->disconnect();
+        pthread_cond_destroy(&calibration_cond);
         pthread_mutex_destroy(&frame_callback_mutex);
         return 3;
     }
-	dev.set_zoom_abs(CMD_MODE_TEMP);
+	src = source;
+	roi.set_size(infi.width, infi.height);
+	src->set_zoom_abs(CMD_MODE_TEMP);
 	connected = 1;
 	set_range(infi.range);
 	return 0;
@@ -231,8 +396,10 @@ int InfiCam::connect(int fd) {
 
 void InfiCam::disconnect() {
 	if (connected) {
+		record_stop();
 		stream_stop();
-		dev.disconnect();
+		src->disconnect();
+		src = &dev;
 		pthread_mutex_destroy(&frame_callback_mutex);
         pthread_cond_destroy(&calibration_cond);
 		connected = 0;
@@ -243,14 +410,24 @@ int InfiCam::stream_start(frame_callback_t *cb, void *user_ptr) {
 	if (streaming)
 		return 1;
 	frame_temp = (float *) calloc(infi.width * infi.height, sizeof(float));
-	if (frame_temp == NULL) {
+	stack_temp = (float *) calloc(infi.width * infi.height, sizeof(float));
+	stack_count = 0;
+	int mw = (infi.width + motion_step - 1) / motion_step;
+	int mh = (infi.height + motion_step - 1) / motion_step;
+	motion_prev = (float *) calloc(mw * mh, sizeof(float));
+	motion_valid = false;
+	frame_timestamp = 0;
+	frame_interval = 0.0;
+	agc.reset();
+	range_min = range_max = NAN;
+	if (frame_temp == NULL || stack_temp == NULL || motion_prev == NULL) {
 		stream_stop();
 		return 2;
 	}
 	frame_callback = cb;
 	frame_callback_arg = user_ptr;
 	table_invalid = 1;
-	if (dev.stream_start(uvc_callback, this)) {
+	if (src->stream_start(uvc_callback, this)) {
 		stream_stop();
 		return 3;
 	}
@@ -259,9 +436,13 @@ int InfiCam::stream_start(frame_callback_t *cb, void *user_ptr) {
 }
 
 void InfiCam::stream_stop() {
-	dev.stream_stop();
+	src->stream_stop();
 	free(frame_temp);
 	frame_temp = NULL;
+	free(stack_temp);
+	stack_temp = NULL;
+	free(motion_prev);
+	motion_prev = NULL;
 	streaming = 0;
 }
 
@@ -269,7 +450,7 @@ void InfiCam::set_range(int range) {
 	if (connected) {
 		pthread_mutex_lock(&frame_callback_mutex);
 		infi.range = range;
-		dev.set_zoom_abs((range == 400) ? CMD_RANGE_400 : CMD_RANGE_120);
+		src->set_zoom_abs((range == 400) ? CMD_RANGE_400 : CMD_RANGE_120);
 		pthread_mutex_unlock(&frame_callback_mutex);
 	} else infi.range = range;
 }
@@ -348,7 +529,7 @@ void InfiCam::set_params(float corr, float t_ref, float t_air, float humi, float
 }
 
 void InfiCam::store_params() {
-	dev.set_zoom_abs(CMD_STORE);
+	src->set_zoom_abs(CMD_STORE);
 }
 
 void InfiCam::update_table() {
@@ -361,13 +542,16 @@ void InfiCam::close_shutter() {
     if(!infi.raw_sensor){
         calibrate();
     }else{
-        dev.set_zoom_abs(CMD_SHUTTER);
+        InfiTrace::event(InfiTrace::TYPE_SHUTTER);
+        src->set_zoom_abs(CMD_SHUTTER);
     }
 }
 
 std::future<void> InfiCam::calibration_thread_future;
 void InfiCam::calibration_thread() {
-    dev.set_zoom_abs(CMD_SHUTTER);
+    InfiTrace::begin(InfiTrace::TYPE_CALIBRATION);
+    InfiTrace::event(InfiTrace::TYPE_SHUTTER);
+    src->set_zoom_abs(CMD_SHUTTER);
     pthread_mutex_lock(&frame_callback_mutex);
     update_table();
     this->calibrating = true;
@@ -396,13 +580,15 @@ void InfiCam::calibration_thread() {
         this->calibrated = true;
     }
     pthread_mutex_unlock(&frame_callback_mutex);
+    InfiTrace::end(InfiTrace::TYPE_CALIBRATION, this->calibrated);
 }
 
 void InfiCam::calibrate() {
     if (!streaming)
         return;
     if(!(this->raw_sensor)) {
-        dev.set_zoom_abs(CMD_SHUTTER);
+        InfiTrace::event(InfiTrace::TYPE_SHUTTER);
+        src->set_zoom_abs(CMD_SHUTTER);
         pthread_mutex_lock(&frame_callback_mutex);
         update_table();
         pthread_mutex_unlock(&frame_callback_mutex);
@@ -434,3 +620,132 @@ void InfiCam::set_palette(uint32_t *palette) {
 	if (streaming)
 		pthread_mutex_unlock(&frame_callback_mutex);
 }
+
+void InfiCam::set_timelapse(int frames, int mode) {
+	if (streaming)
+		pthread_mutex_lock(&frame_callback_mutex);
+	stack_frames = (frames < 1) ? 1 : frames;
+	stack_mode = mode;
+	stack_count = 0;
+	frame_timestamp = 0; /* The interval changes. */
+	frame_interval = 0.0;
+	if (streaming)
+		pthread_mutex_unlock(&frame_callback_mutex);
+}
+
+void InfiCam::set_agc(float attack, float decay, float clip, float hysteresis) {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	agc.attack = attack;
+	agc.decay = decay;
+	agc.clip = clip;
+	agc.hysteresis = hysteresis;
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+}
+
+void InfiCam::set_agc_area(float x1, float y1, float x2, float y2) {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	agc.set_area(x1, y1, x2, y2);
+	agc.reset(); /* Otherwise it slowly moves to what's in there, zooming should be snappy. */
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+}
+
+/* The ROI functions lock only when connected since that's when the mutex exists, when we aren't
+ *   connected no frames come in either.
+ */
+int InfiCam::roi_add_rect(int x1, int y1, int x2, int y2) {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	int ret = roi.add_rect(x1, y1, x2, y2);
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+	return ret;
+}
+
+int InfiCam::roi_add_ellipse(int cx, int cy, int rx, int ry) {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	int ret = roi.add_ellipse(cx, cy, rx, ry);
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+	return ret;
+}
+
+int InfiCam::roi_add_point(int x, int y) {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	int ret = roi.add_point(x, y);
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+	return ret;
+}
+
+int InfiCam::roi_add_polyline(const int *xy, int npoints) {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	int ret = roi.add_polyline(xy, npoints);
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+	return ret;
+}
+
+void InfiCam::roi_remove(int id) {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	roi.remove(id);
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+}
+
+void InfiCam::roi_clear() {
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	roi.clear();
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+}
+
+int InfiCam::roi_results(float *out, int len) {
+	const int total = InfiROI::max_regions * InfiROI::result_stride;
+	if (len > total)
+		len = total;
+	if (connected)
+		pthread_mutex_lock(&frame_callback_mutex);
+	memcpy(out, roi.results, len * sizeof(float));
+	if (connected)
+		pthread_mutex_unlock(&frame_callback_mutex);
+	return len;
+}
+
+int InfiCam::record_start(int fd) {
+	if (!connected) {
+		close(fd);
+		return 1;
+	}
+	/* The raw frame is what goes into InfiFrame, data rows included. */
+	pthread_mutex_lock(&frame_callback_mutex);
+	int ret = recorder.start(fd, src->width, raw_height(), raw_sensor, p2_pro);
+	pthread_mutex_unlock(&frame_callback_mutex);
+	return ret ? 2 : 0;
+}
+
+void InfiCam::snapshot_info(uint8_t *out) {
+	InfiRecorder::snapshot_info(out, infi, src->width, raw_height(), raw_sensor, p2_pro);
+}
+
+int InfiCam::record_stop() {
+	if (!recorder.recording())
+		return 0;
+	pthread_mutex_lock(&frame_callback_mutex); /* Only recording while connected. */
+	int ret = recorder.stop();
+	pthread_mutex_unlock(&frame_callback_mutex);
+	return ret;
+}
+
+void InfiCam::record_stats(uint32_t *written, uint32_t *dropped) {
+	*written = recorder.frames_written;
+	*dropped = recorder.frames_dropped;
+}
@@ -3,6 +3,10 @@
 
 #include "UVCDevice.h"
 #include "InfiFrame.h"
+#include "InfiROI.h"
+#include "InfiAGC.h"
+#include "InfiLatency.h"
+#include "InfiRecorder.h"
 #include <cstdint>
 #include <cmath> /* NAN */
 #include <future>
@@ -20,9 +24,20 @@ class InfiCam {
 	typedef void (frame_callback_t)(InfiCam *cam, float *temp, uint16_t *raw, void *user_ptr);
 
 	UVCDevice dev;
+	FrameSource *src = &dev; /* Where the frames come from, dev unless connect_source(). */
+	InfiROI roi;
+	InfiAGC agc;
+	InfiRecorder recorder;
 	frame_callback_t *frame_callback;
 	void *frame_callback_arg;
 	float *frame_temp = NULL;
+	float *stack_temp = NULL; /* Time-lapse accumulator, see set_timelapse(). */
+	int stack_frames = 1, stack_mode = 0, stack_count = 0;
+	bool frame_stacked = false; /* The frame for the stream CB is a combined one. */
+	uint16_t stack_max, stack_max_x, stack_max_y, stack_min, stack_min_x, stack_min_y;
+	float *motion_prev = NULL; /* Every motion_step'th pixel of the last frame. */
+	bool motion_valid = false;
+	static const int motion_step = 4;
 	pthread_mutex_t frame_callback_mutex;
     pthread_cond_t calibration_cond;
 	int connected = 0, streaming = 0, table_invalid = 1;
@@ -55,6 +70,8 @@ class InfiCam {
 	static const int ADDR_DISTANCE = 20;
 
 	static void uvc_callback(uvc_frame_t *frame, void *user_ptr);
+	bool stack_add(); /* Returns true when frame_temp holds a finished time-lapse frame. */
+	void measure_motion();
 	void set_float(int addr, float val); /* Write to camera user memory, needs lock. */
 
 public:
@@ -64,9 +81,34 @@ public:
 	 */
 	InfiFrame infi;
 
+	/* Also updated before each stream CB, for the frame passed to it. */
+	uint64_t frame_timestamp = 0; /* Nanoseconds of CLOCK_MONOTONIC, when the frame came in. */
+	float frame_interval = 0.0; /* Seconds between stream CBs, averaged, 0 until known. */
+	/* Average absolute temperature change per pixel since the last CB (a cheap measure of how
+	 *   much is going on in the scene, sampled on a grid), 0 for the first frame.
+	 */
+	float frame_motion = 0.0;
+	/* The automatic palette range (see set_agc()), NAN until there's been a frame. */
+	float range_min = NAN, range_max = NAN;
+	/* Coldest and hottest spot in Celsius and where, of the part set by set_agc_area(). For the
+	 *   whole frame these are what the camera says (infi.temp_min etc), except for the P2 Pro which
+	 *   doesn't say.
+	 */
+	float frame_min = NAN, frame_max = NAN;
+	int frame_min_x = 0, frame_min_y = 0, frame_max_x = 0, frame_max_y = 0;
+
+	/* Where the time goes per frame, the stages up to the stream CB are recorded here, the rest
+	 *   can be recorded by whoever does them (see InfiLatency). Safe to use from any thread.
+	 */
+	InfiLatency latency;
+
 	~InfiCam();
 
 	int connect(int fd); /* Closes the FD on disconnect. */
+	/* Same as connect() but with frames from somewhere else, like a ReplaySource. The source must
+	 *   live until disconnect(), which also calls source->disconnect().
+	 */
+	int connect_source(FrameSource *source);
 	void disconnect(); /* Opening a new connection will close the previous one if it exists. */
 
 	/* Stream CB arguments valid until return, CB runs on it's own thread. Trying to start a stream
@@ -111,6 +153,58 @@ public:
     void close_shutter();
 
 	void set_palette(uint32_t *palette); /* Length must be palette_len. */
+
+	/* Time-lapse, combine every frames frames into one before the stream CB, which then only gets
+	 *   called for the combined ones. The temperatures, ROIs and infi.temp_min/temp_max are those
+	 *   of the combined frame (for STACK_AVERAGE the min/max are the extremes of the frames that
+	 *   went in, so only approximate). Radiometric recording still gets every frame, and there's
+	 *   no snapshot of a combined frame (see snapshot_info()). 1 turns it off, the frame being
+	 *   combined when changing it is dropped.
+	 */
+	enum { STACK_AVERAGE = 0, STACK_MAX = 1 };
+	void set_timelapse(int frames, int mode);
+
+	/* Automatic palette range, see InfiAGC for what the parameters do. Times are in seconds, clip
+	 *   and hysteresis fractions. The area is the part of the frame it follows, as fractions of
+	 *   the width and height (for zooming in), it's the whole frame at first. These can be called
+	 *   at any time and are kept across connections.
+	 */
+	void set_agc(float attack, float decay, float clip, float hysteresis);
+	void set_agc_area(float x1, float y1, float x2, float y2);
+
+	/* Regions of interest, measured on every frame right before the stream CB (see InfiROI).
+	 * These can be called at any time, regions stay across connect() and disconnect().
+	 * The add functions return the region id or -1 when there's no room for more regions.
+	 */
+	int roi_add_rect(int x1, int y1, int x2, int y2);
+	int roi_add_ellipse(int cx, int cy, int rx, int ry);
+	int roi_add_point(int x, int y);
+	int roi_add_polyline(const int *xy, int npoints);
+	void roi_remove(int id);
+	void roi_clear();
+	/* Copy up to len floats of the last results (laid out as InfiROI::results), returns the amount
+	 *   of floats copied.
+	 */
+	int roi_results(float *out, int len);
+
+	/* Radiometric recording of the raw frames to the given fd (see InfiRecorder), needs connect().
+	 * The fd is closed by record_stop(), or right away if starting fails. Returns 0 on success.
+	 * Stopping returns nonzero if something could not be written. disconnect() also stops.
+	 */
+	int record_start(int fd);
+	int record_stop();
+	void record_stats(uint32_t *written, uint32_t *dropped);
+
+	/* For snapshots (see InfiRecorder), only from the stream CB since it needs that frame's
+	 *   table. The raw frame passed to the CB is raw_len() values, that's what InfiFrame gets, so
+	 *   for the P2 Pro only the thermal half (raw_height() is half of the source's height then).
+	 *   With time-lapse the raw frame is only the last one of those that got combined, it doesn't
+	 *   go with the temperatures, check snapshot_valid() first.
+	 */
+	void snapshot_info(uint8_t *out);
+	bool snapshot_valid() { return !frame_stacked; }
+	int raw_height() { return p2_pro ? src->height / 2 : src->height; }
+	size_t raw_len() { return src->width * raw_height(); }
 };
 
 #endif /* __INFICAM_H__ */
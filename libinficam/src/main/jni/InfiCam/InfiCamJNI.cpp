@@ -1,4 +1,5 @@
 #include "InfiCam.h"
+#include "InfiTrace.h"
 
 #include <jni.h>
 #include <android/native_window_jni.h>
@@ -43,6 +44,7 @@ public:
 	uint32_t *rgb = NULL;
 	float *temp = NULL;
 	uint16_t *raw = NULL;
+	uint64_t handoff_time = 0; /* When frame_callback() passed the frame on. */
 
 	/* Initialized elsewhere to avoid needing exceptions. */
 	pthread_t jthread;
@@ -76,7 +78,15 @@ static void setIntVar(JNIEnv *env, jobject obj, const char *name, jint value) {
 	env->DeleteLocalRef(cls);
 }
 
-/* Set an integer variable in the a Java class. */
+/* Set a long variable in the a Java class. */
+static void setLongVar(JNIEnv *env, jobject obj, const char *name, jlong value) {
+	jclass cls = env->GetObjectClass(obj);
+	jfieldID nativeObjectPointerID = env->GetFieldID(cls, name, "J");
+	env->SetLongField(obj, nativeObjectPointerID, value);
+	env->DeleteLocalRef(cls);
+}
+
+/* Set a float variable in the a Java class. */
 static void setFloatVar(JNIEnv *env, jobject obj, const char *name, jfloat value) {
 	jclass cls = env->GetObjectClass(obj);
 	jfieldID nativeObjectPointerID = env->GetFieldID(cls, name, "F");
@@ -90,6 +100,7 @@ static void frame_callback(InfiCam *cam, float *temp, uint16_t *raw, void *user_
 	pthread_mutex_lock(&icj->jthread_mutex);
 	icj->temp = temp;
 	icj->raw = raw;
+	icj->handoff_time = InfiLatency::now();
 	pthread_cond_broadcast(&icj->jthread_cond);
 	/* Now we wait for the other thread to finish and signal the same condition, this works
 	 *   because only threads that are currently waiting get signaled.
@@ -120,12 +131,16 @@ static void *jthread_run(void *a) {
 		jfieldID fi_id = env->GetFieldID(cls, "frameInfo", "L" FRAMEINFO_TYPE ";");
 		jobject fi = env->GetObjectField(icj->obj, fi_id);
 
-		setFloatVar(env, fi, "max", icj->infi.temp(icj->infi.temp_max));
-		setIntVar(env, fi, "max_x", icj->infi.temp_max_x);
-		setIntVar(env, fi, "max_y", icj->infi.temp_max_y);
-		setFloatVar(env, fi, "min", icj->infi.temp(icj->infi.temp_min));
-		setIntVar(env, fi, "min_x", icj->infi.temp_min_x);
-		setIntVar(env, fi, "min_y", icj->infi.temp_min_y);
+		setFloatVar(env, fi, "max", icj->frame_max);
+		setIntVar(env, fi, "max_x", icj->frame_max_x);
+		setIntVar(env, fi, "max_y", icj->frame_max_y);
+		setFloatVar(env, fi, "min", icj->frame_min);
+		setIntVar(env, fi, "min_x", icj->frame_min_x);
+		setIntVar(env, fi, "min_y", icj->frame_min_y);
+		setFloatVar(env, fi, "rangeMin",
+					isnan(icj->range_min) ? icj->frame_min : icj->range_min);
+		setFloatVar(env, fi, "rangeMax",
+					isnan(icj->range_max) ? icj->frame_max : icj->range_max);
 		setFloatVar(env, fi, "center", icj->infi.temp(icj->infi.temp_center));
 		setFloatVar(env, fi, "avg", icj->infi.temp(icj->infi.temp_avg));
 
@@ -139,6 +154,10 @@ static void *jthread_run(void *a) {
 		setFloatVar(env, fi, "emissivity", icj->infi.emissivity);
 		setFloatVar(env, fi, "distance", icj->infi.distance);
 
+		setLongVar(env, fi, "timestamp", icj->frame_timestamp);
+		setFloatVar(env, fi, "interval", icj->frame_interval);
+		setFloatVar(env, fi, "motion", icj->frame_motion);
+
 		/* Make a Java array from the temperature array. */
 		int temp_len = icj->infi.width * icj->infi.height;
 		jfieldID jtemp_id = env->GetFieldID(cls, "temp", "[F");
@@ -151,7 +170,12 @@ static void *jthread_run(void *a) {
 
 		/* Call the callback. */
 		jmethodID mid = env->GetMethodID(cls, "frameCallback", "(L" FRAMEINFO_TYPE ";[F)V");
+		uint64_t t = InfiLatency::now();
+		icj->latency.record(InfiLatency::STAGE_HANDOFF, t - icj->handoff_time);
+		InfiTrace::begin(InfiTrace::TYPE_CALLBACK);
 		env->CallVoidMethod(icj->obj, mid, fi, jtemp);
+		InfiTrace::end(InfiTrace::TYPE_CALLBACK);
+		icj->latency.record(InfiLatency::STAGE_CALLBACK, InfiLatency::now() - t);
 
 		/* Clean up. */
 		env->DeleteLocalRef(jtemp);
@@ -416,16 +440,209 @@ JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_nativeSetPalette(JNIEnv *env, job
 	return 0;
 }
 
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_setTimelapse(JNIEnv *env, jobject self,
+															 jint frames, jint mode) {
+	InfiCamJNI *icj = getObject(env, self);
+	icj->set_timelapse(frames, mode);
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_setAgc(JNIEnv *env, jobject self, jfloat attack,
+													   jfloat decay, jfloat clip,
+													   jfloat hysteresis) {
+	InfiCamJNI *icj = getObject(env, self);
+	icj->set_agc(attack, decay, clip, hysteresis);
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_setAgcArea(JNIEnv *env, jobject self, jfloat x1,
+														   jfloat y1, jfloat x2, jfloat y2) {
+	InfiCamJNI *icj = getObject(env, self);
+	icj->set_agc_area(x1, y1, x2, y2);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_roiAddRect(JNIEnv *env, jobject self, jint x1,
+															jint y1, jint x2, jint y2) {
+	InfiCamJNI *icj = getObject(env, self);
+	return icj->roi_add_rect(x1, y1, x2, y2);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_roiAddEllipse(JNIEnv *env, jobject self, jint cx,
+															 jint cy, jint rx, jint ry) {
+	InfiCamJNI *icj = getObject(env, self);
+	return icj->roi_add_ellipse(cx, cy, rx, ry);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_roiAddPoint(JNIEnv *env, jobject self, jint x,
+														   jint y) {
+	InfiCamJNI *icj = getObject(env, self);
+	return icj->roi_add_point(x, y);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_roiAddPolyline(JNIEnv *env, jobject self,
+															  jintArray xy) {
+	InfiCamJNI *icj = getObject(env, self);
+	int len = env->GetArrayLength(xy);
+	jint *arr = env->GetIntArrayElements(xy, NULL);
+	if (arr == NULL)
+		return -1;
+	int ret = icj->roi_add_polyline((int *) arr, len / 2);
+	env->ReleaseIntArrayElements(xy, arr, JNI_ABORT);
+	return ret;
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_roiRemove(JNIEnv *env, jobject self, jint id) {
+	InfiCamJNI *icj = getObject(env, self);
+	icj->roi_remove(id);
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_roiClear(JNIEnv *env, jobject self) {
+	InfiCamJNI *icj = getObject(env, self);
+	icj->roi_clear();
+}
+
+/* Copies straight into the given Java array, so reading results doesn't allocate anything. */
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_getRoiResults(JNIEnv *env, jobject self,
+															 jfloatArray out) {
+	InfiCamJNI *icj = getObject(env, self);
+	float res[InfiROI::max_regions * InfiROI::result_stride];
+	int len = icj->roi_results(res, env->GetArrayLength(out));
+	env->SetFloatArrayRegion(out, 0, len, res);
+	return len / InfiROI::result_stride;
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_nativeRecordStart(JNIEnv *env, jobject self,
+																 jint fd) {
+	InfiCamJNI *icj = getObject(env, self);
+	return icj->record_start(fd);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_nativeRecordStop(JNIEnv *env, jobject self) {
+	InfiCamJNI *icj = getObject(env, self);
+	return icj->record_stop();
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_getRecordFramesWritten(JNIEnv *env, jobject self) {
+	InfiCamJNI *icj = getObject(env, self);
+	uint32_t written, dropped;
+	icj->record_stats(&written, &dropped);
+	return written;
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_getRecordFramesDropped(JNIEnv *env, jobject self) {
+	InfiCamJNI *icj = getObject(env, self);
+	uint32_t written, dropped;
+	icj->record_stats(&written, &dropped);
+	return dropped;
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_recordLatency(JNIEnv *env, jobject self,
+		jint stage, jlong nanos) {
+	InfiCamJNI *icj = getObject(env, self);
+	if (nanos >= 0)
+		icj->latency.record(stage, nanos);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_getLatency(JNIEnv *env, jobject self,
+		jintArray out) {
+	InfiCamJNI *icj = getObject(env, self);
+	jint res[InfiLatency::STAGE_COUNT * 3];
+	int len = env->GetArrayLength(out) / 3;
+	if (len > InfiLatency::STAGE_COUNT)
+		len = InfiLatency::STAGE_COUNT;
+	for (int i = 0; i < len; ++i) {
+		res[i * 3] = icj->latency.count(i);
+		res[i * 3 + 1] = icj->latency.percentile(i, 0.5f);
+		res[i * 3 + 2] = icj->latency.percentile(i, 0.99f);
+	}
+	env->SetIntArrayRegion(out, 0, len * 3, res);
+	return len;
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_resetLatency(JNIEnv *env, jobject self) {
+	InfiCamJNI *icj = getObject(env, self);
+	icj->latency.reset();
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_nativeSetTrace(JNIEnv *env, jclass cls,
+		jboolean enabled) {
+	InfiTrace::set_enabled(enabled);
+}
+
+JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_nativeTrace(JNIEnv *env, jclass cls, jint type,
+		jint phase, jint arg) {
+	InfiTrace::event(type, phase, arg);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_nativeDumpTrace(JNIEnv *env, jclass cls, jint fd,
+		jint format) {
+	return InfiTrace::dump(fd, format);
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_getRawLength(JNIEnv *env, jobject self) {
+	InfiCamJNI *icj = getObject(env, self);
+	return icj->raw_len();
+}
+
+/* Only from the frame callback, that's when raw and the table are of the frame we're handling.
+ *   Returns 3 for a time-lapse frame, there's no raw frame that goes with it.
+ */
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_nativeGetSnapshot(JNIEnv *env, jobject self,
+																 jshortArray raw, jbyteArray info) {
+	InfiCamJNI *icj = getObject(env, self);
+	if (!icj->snapshot_valid())
+		return 3;
+	size_t len = icj->raw_len();
+	if (icj->raw == NULL || (size_t) env->GetArrayLength(raw) < len ||
+			(size_t) env->GetArrayLength(info) < InfiRecorder::snapshot_info_len)
+		return 1;
+	env->SetShortArrayRegion(raw, 0, len, (jshort *) icj->raw);
+	uint8_t *arr = (uint8_t *) env->GetPrimitiveArrayCritical(info, NULL);
+	if (arr == NULL)
+		return 2;
+	icj->snapshot_info(arr);
+	env->ReleasePrimitiveArrayCritical(info, arr, 0);
+	return 0;
+}
+
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_snapshotBound(JNIEnv *env, jclass cls, jint len) {
+	return InfiRecorder::snapshot_bound(len);
+}
+
+/* Static and doesn't touch the camera, so it can run on any thread. */
+JNIEXPORT jint Java_be_ntmn_libinficam_InfiCam_nativeEncodeSnapshot(JNIEnv *env, jclass cls,
+		jshortArray raw, jbyteArray info, jbyteArray out) {
+	size_t len = env->GetArrayLength(raw);
+	if ((size_t) env->GetArrayLength(info) < InfiRecorder::snapshot_info_len ||
+			(size_t) env->GetArrayLength(out) < InfiRecorder::snapshot_bound(len))
+		return -1;
+	uint16_t *r = (uint16_t *) env->GetPrimitiveArrayCritical(raw, NULL);
+	uint8_t *i = (uint8_t *) env->GetPrimitiveArrayCritical(info, NULL);
+	uint8_t *o = (uint8_t *) env->GetPrimitiveArrayCritical(out, NULL);
+	jint ret = -1;
+	if (r != NULL && i != NULL && o != NULL)
+		ret = InfiRecorder::snapshot_encode(r, len, i, o);
+	if (o != NULL)
+		env->ReleasePrimitiveArrayCritical(out, o, 0);
+	if (i != NULL)
+		env->ReleasePrimitiveArrayCritical(info, i, JNI_ABORT);
+	if (r != NULL)
+		env->ReleasePrimitiveArrayCritical(raw, r, JNI_ABORT);
+	return ret;
+}
+
 JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_applyPalette(JNIEnv *env, jobject self, jfloat min,
 		jfloat max) {
 	InfiCamJNI *icj = getObject(env, self);
 	/* Update the surface if we have one. */
 	if (icj->window != NULL) {
 		ANativeWindow_Buffer buffer;
+		uint64_t t = InfiLatency::now();
 
-		icj->infi.palette_appy(icj->temp, icj->rgb,
-							 isnan(min) ? icj->infi.temp(icj->infi.temp_min) : min,
-							 isnan(max) ? icj->infi.temp(icj->infi.temp_max) : max);
+		/* NAN is for the automatic range, which is a bit behind when it just started. */
+		if (isnan(min))
+			min = isnan(icj->range_min) ? icj->frame_min : icj->range_min;
+		if (isnan(max))
+			max = isnan(icj->range_max) ? icj->frame_max : icj->range_max;
+		icj->infi.palette_appy(icj->temp, icj->rgb, min, max);
 
 		if (ANativeWindow_lock(icj->window, &buffer, NULL) == 0) {
 			const uint8_t *src = (uint8_t *) icj->rgb;
@@ -447,6 +664,7 @@ JNIEXPORT void Java_be_ntmn_libinficam_InfiCam_applyPalette(JNIEnv *env, jobject
 
 			ANativeWindow_unlockAndPost(icj->window);
 		}
+		icj->latency.record(InfiLatency::STAGE_PALETTE, InfiLatency::now() - t);
 	}
 }
 
@@ -3,6 +3,7 @@
 #include <cstdint>
 #include <cstdlib> /* NULL */
 #include <cstring> /* memcpy() */
+#include <math.h> /* powf(), isfinite(), etc. */
 #include <android/log.h>
 
 #define LOG_TAG "NativeCode"
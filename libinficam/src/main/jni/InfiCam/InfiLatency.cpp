@@ -0,0 +1,64 @@
+#include "InfiLatency.h"
+
+#include <cstdint>
+#include <atomic>
+#include <ctime> /* clock_gettime() */
+
+int InfiLatency::bucket(uint64_t us) {
+	if (us < 4)
+		return us;
+	int e = 63 - __builtin_clzll(us); /* Highest bit set, at least 2. */
+	int i = (e - 1) * 4 + ((us >> (e - 2)) & 3);
+	return (i < buckets) ? i : buckets - 1;
+}
+
+uint32_t InfiLatency::bucket_end(int i) {
+	if (i < 4)
+		return i + 1;
+	return (5 + i % 4) << (i / 4 - 1);
+}
+
+void InfiLatency::record(int stage, uint64_t ns) {
+	if (stage < 0 || stage >= STAGE_COUNT)
+		return;
+	hist[stage][bucket(ns / 1000)].fetch_add(1, std::memory_order_relaxed);
+}
+
+void InfiLatency::reset() {
+	for (int s = 0; s < STAGE_COUNT; ++s)
+		for (int i = 0; i < buckets; ++i)
+			hist[s][i].store(0, std::memory_order_relaxed);
+}
+
+uint32_t InfiLatency::count(int stage) {
+	if (stage < 0 || stage >= STAGE_COUNT)
+		return 0;
+	uint32_t n = 0;
+	for (int i = 0; i < buckets; ++i)
+		n += hist[stage][i].load(std::memory_order_relaxed);
+	return n;
+}
+
+uint32_t InfiLatency::percentile(int stage, float p) {
+	if (stage < 0 || stage >= STAGE_COUNT)
+		return 0;
+	/* Copy first so the count and the walk agree even when frames come in meanwhile. */
+	uint32_t h[buckets], n = 0;
+	for (int i = 0; i < buckets; ++i)
+		n += h[i] = hist[stage][i].load(std::memory_order_relaxed);
+	if (n == 0)
+		return 0;
+	uint32_t want = p * n, sum = 0;
+	if (want >= n)
+		want = n - 1;
+	for (int i = 0; i < buckets; ++i)
+		if ((sum += h[i]) > want)
+			return bucket_end(i);
+	return bucket_end(buckets - 1);
+}
+
+uint64_t InfiLatency::now() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
@@ -0,0 +1,49 @@
+#ifndef __INFILATENCY_H__
+#define __INFILATENCY_H__
+
+#include <cstdint>
+#include <atomic>
+
+/* Latency histograms for the stages a frame goes through, to see where the time goes between
+ *   USB and the screen. Every stage has a fixed set of buckets of microseconds, the first four
+ *   are 1us wide and from there on every power of two is split in four, so a bucket is never off
+ *   by more than a quarter and the last one ends a little over 4 seconds (anything longer goes in
+ *   there too).
+ *
+ * record() is a single relaxed atomic increment and can be called from any thread, nothing takes
+ *   a lock or allocates. Reading while recording is fine, it just may or may not include the
+ *   frames that are going on at that moment, same for reset().
+ */
+class InfiLatency {
+public:
+	enum {
+		STAGE_USB = 0, /* libuvc finishing the frame until uvc_callback gets it. */
+		STAGE_CALIBRATION, /* Offset and dead pixel correction (raw sensors only). */
+		STAGE_CONVERSION, /* Parameters, table, temperatures, ROIs and AGC. */
+		STAGE_HANDOFF, /* Passing the frame to the thread that calls Java, including FrameInfo. */
+		STAGE_CALLBACK, /* The Java frame callback, which includes STAGE_PALETTE. */
+		STAGE_PALETTE, /* applyPalette(). */
+		STAGE_DRAW, /* Drawing the frame, measured by the app. */
+		STAGE_SWAP, /* Swapping the buffers to the screen, measured by the app. */
+		STAGE_COUNT
+	};
+	static const int buckets = 84;
+
+	void record(int stage, uint64_t ns);
+	void reset();
+	uint32_t count(int stage);
+	/* Upper edge in microseconds of the bucket the p'th fraction of the stage falls in, 0 when
+	 *   nothing has been recorded.
+	 */
+	uint32_t percentile(int stage, float p);
+
+	static uint64_t now(); /* Nanoseconds of CLOCK_MONOTONIC. */
+
+private:
+	std::atomic<uint32_t> hist[STAGE_COUNT][buckets] = { };
+
+	static int bucket(uint64_t us);
+	static uint32_t bucket_end(int i);
+};
+
+#endif /* __INFILATENCY_H__ */
@@ -0,0 +1,294 @@
+#include "InfiROI.h"
+
+#include <cstdint>
+#include <cstdlib> /* abs() */
+#include <cmath> /* sqrtf(), lround(), NAN */
+#include <algorithm> /* std::sort(), std::unique() */
+
+InfiROI::InfiROI() {
+	for (int i = 0; i < max_regions * result_stride; ++i)
+		results[i] = NAN;
+	for (int i = 0; i < max_regions; ++i)
+		results[i * result_stride + RES_COUNT] = 0;
+}
+
+void InfiROI::set_size(int width, int height) {
+	if (width == this->width && height == this->height)
+		return;
+	this->width = width;
+	this->height = height;
+	dirty = true;
+}
+
+int InfiROI::alloc(int type, int a, int b, int c, int d) {
+	for (int i = 0; i < max_regions; ++i) {
+		Region &r = regions[i];
+		if (r.type != TYPE_NONE)
+			continue;
+		r.type = type;
+		r.a = a;
+		r.b = b;
+		r.c = c;
+		r.d = d;
+		r.points.clear();
+		++used_count;
+		dirty = true;
+		return i;
+	}
+	return -1;
+}
+
+int InfiROI::add_rect(int x1, int y1, int x2, int y2) {
+	return alloc(TYPE_RECT, std::min(x1, x2), std::min(y1, y2),
+				 std::max(x1, x2), std::max(y1, y2));
+}
+
+int InfiROI::add_ellipse(int cx, int cy, int rx, int ry) {
+	if (rx < 0 || ry < 0)
+		return -1;
+	return alloc(TYPE_ELLIPSE, cx, cy, rx, ry);
+}
+
+int InfiROI::add_point(int x, int y) {
+	return add_rect(x, y, x, y);
+}
+
+int InfiROI::add_polyline(const int *xy, int npoints) {
+	if (npoints < 1)
+		return -1;
+	int id = alloc(TYPE_POLYLINE, 0, 0, 0, 0);
+	if (id >= 0)
+		regions[id].points.assign(xy, xy + npoints * 2);
+	return id;
+}
+
+void InfiROI::remove(int id) {
+	if (id < 0 || id >= max_regions || regions[id].type == TYPE_NONE)
+		return;
+	regions[id].type = TYPE_NONE;
+	regions[id].points.clear();
+	for (int i = 0; i < result_stride; ++i)
+		results[id * result_stride + i] = NAN;
+	results[id * result_stride + RES_COUNT] = 0;
+	--used_count;
+	dirty = true;
+}
+
+void InfiROI::clear() {
+	for (int i = 0; i < max_regions; ++i)
+		remove(i);
+}
+
+void InfiROI::add_span(int region, int y, int64_t x1, int64_t x2) {
+	if (y < 0 || y >= height)
+		return;
+	if (x1 < 0)
+		x1 = 0;
+	if (x2 >= width)
+		x2 = width - 1;
+	if (x2 < x1)
+		return;
+	Span s;
+	s.y = y;
+	s.x1 = x1;
+	s.x2 = x2 + 1;
+	s.region = region;
+	spans.push_back(s);
+}
+
+/* Cuts the segment down to the part within 0 to xmax, 0 to ymax (Liang-Barsky), so drawing it
+ *   never takes longer than the frame is big. Returns false if none of it is. A segment that is
+ *   on the frame already is left exactly as it is.
+ */
+static bool clip_line(int &x0, int &y0, int &x1, int &y1, int xmax, int ymax) {
+	double dx = (double) x1 - x0, dy = (double) y1 - y0, t0 = 0.0, t1 = 1.0;
+	double p[4] = { -dx, dx, -dy, dy };
+	double q[4] = { (double) x0, (double) xmax - x0, (double) y0, (double) ymax - y0 };
+	if (xmax < 0 || ymax < 0)
+		return false;
+	for (int i = 0; i < 4; ++i) {
+		if (p[i] == 0.0) {
+			if (q[i] < 0.0)
+				return false;
+			continue;
+		}
+		double t = q[i] / p[i];
+		if (p[i] < 0.0) {
+			if (t > t1)
+				return false;
+			t0 = std::max(t0, t);
+		} else {
+			if (t < t0)
+				return false;
+			t1 = std::min(t1, t);
+		}
+	}
+	double sx = x0, sy = y0;
+	if (t1 < 1.0) {
+		x1 = std::min(std::max((int) lround(sx + t1 * dx), 0), xmax);
+		y1 = std::min(std::max((int) lround(sy + t1 * dy), 0), ymax);
+	}
+	if (t0 > 0.0) {
+		x0 = std::min(std::max((int) lround(sx + t0 * dx), 0), xmax);
+		y0 = std::min(std::max((int) lround(sy + t0 * dy), 0), ymax);
+	}
+	return true;
+}
+
+void InfiROI::rasterize_polyline(int id, Region &r) {
+	/* Bresenham for every segment, the pixels are collected and sorted first because segments can
+	 *   overlap and we don't want to count a pixel twice.
+	 */
+	line_pixels.clear();
+	int n = r.points.size() / 2;
+	for (int i = 0; i < n; ++i) {
+		int x0 = r.points[i * 2], y0 = r.points[i * 2 + 1];
+		int x1 = x0, y1 = y0;
+		if (i + 1 < n) {
+			x1 = r.points[i * 2 + 2];
+			y1 = r.points[i * 2 + 3];
+		} else if (n > 1) {
+			break; /* Last point was drawn by the last segment. */
+		}
+		if (!clip_line(x0, y0, x1, y1, width - 1, height - 1))
+			continue;
+		int dx = abs(x1 - x0), sx = x0 < x1 ? 1 : -1;
+		int dy = -abs(y1 - y0), sy = y0 < y1 ? 1 : -1;
+		int err = dx + dy;
+		while (1) {
+			line_pixels.push_back((uint32_t) y0 << 16 | (uint32_t) x0);
+			if (x0 == x1 && y0 == y1)
+				break;
+			int e2 = 2 * err;
+			if (e2 >= dy) {
+				err += dy;
+				x0 += sx;
+			}
+			if (e2 <= dx) {
+				err += dx;
+				y0 += sy;
+			}
+		}
+	}
+	std::sort(line_pixels.begin(), line_pixels.end());
+	line_pixels.erase(std::unique(line_pixels.begin(), line_pixels.end()), line_pixels.end());
+
+	/* Merge horizontal runs into spans. */
+	size_t i = 0;
+	while (i < line_pixels.size()) {
+		uint32_t start = line_pixels[i], end = start;
+		while (i + 1 < line_pixels.size() && line_pixels[i + 1] == end + 1)
+			end = line_pixels[++i];
+		add_span(id, start >> 16, start & 0xFFFF, end & 0xFFFF);
+		++i;
+	}
+}
+
+void InfiROI::rasterize() {
+	spans.clear();
+	for (int i = 0; i < max_regions; ++i) {
+		Region &r = regions[i];
+		switch (r.type) {
+			case TYPE_RECT: {
+				/* Only the rows on the frame, the corners can be anything that came in. */
+				int y1 = std::max(r.b, 0), y2 = std::min(r.d, height - 1);
+				for (int y = y1; y <= y2; ++y)
+					add_span(i, y, r.a, r.c);
+				break;
+			}
+			case TYPE_ELLIPSE: {
+				/* The half pixel makes small ellipses look round rather than like a plus. */
+				float rx = r.c + 0.5f, ry = r.d + 0.5f;
+				int64_t dy1 = std::max(-(int64_t) r.d, -(int64_t) r.b);
+				int64_t dy2 = std::min((int64_t) r.d, (int64_t) height - 1 - r.b);
+				for (int64_t dy = dy1; dy <= dy2; ++dy) {
+					float f = (float) dy / ry;
+					/* Wider than the frame is as good as the frame, and fits an int. */
+					float hwf = std::min(rx * sqrtf(std::max(1.0f - f * f, 0.0f)), (float) width);
+					int64_t hw = (int64_t) hwf;
+					add_span(i, (int) (r.b + dy), r.a - hw, r.a + hw);
+				}
+				break;
+			}
+			case TYPE_POLYLINE:
+				rasterize_polyline(i, r);
+				break;
+		}
+	}
+	std::sort(spans.begin(), spans.end(), [](const Span &a, const Span &b) {
+		return a.y < b.y || (a.y == b.y && a.x1 < b.x1);
+	});
+	dirty = false;
+}
+
+void InfiROI::evaluate(const float *temp) {
+	if (dirty)
+		rasterize();
+	if (used_count == 0)
+		return;
+
+	for (int i = 0; i < max_regions; ++i) {
+		acc_sum[i] = acc_sq[i] = 0.0;
+		acc_min[i] = INFINITY;
+		acc_max[i] = -INFINITY;
+		acc_min_pos[i] = acc_max_pos[i] = 0;
+		acc_count[i] = 0;
+	}
+
+	/* The spans are in row order, so this is one sweep down the frame no matter how many regions
+	 *   there are, with overlapping regions touching the same row while it's still in cache.
+	 */
+	for (const Span &s : spans) {
+		int r = s.region, off = s.y * width;
+		const float *row = temp + off;
+		double sum = 0.0, sq = 0.0;
+		float mn = acc_min[r], mx = acc_max[r];
+		int mn_pos = acc_min_pos[r], mx_pos = acc_max_pos[r], n = 0;
+		for (int x = s.x1; x < s.x2; ++x) {
+			float t = row[x];
+			if (!std::isfinite(t)) /* Below what the table can represent. */
+				continue;
+			sum += t;
+			sq += (double) t * t;
+			if (t < mn) {
+				mn = t;
+				mn_pos = off + x;
+			}
+			if (t > mx) {
+				mx = t;
+				mx_pos = off + x;
+			}
+			++n;
+		}
+		acc_sum[r] += sum;
+		acc_sq[r] += sq;
+		acc_min[r] = mn;
+		acc_max[r] = mx;
+		acc_min_pos[r] = mn_pos;
+		acc_max_pos[r] = mx_pos;
+		acc_count[r] += n;
+	}
+
+	for (int i = 0; i < max_regions; ++i) {
+		if (regions[i].type == TYPE_NONE)
+			continue;
+		float *res = results + i * result_stride;
+		int n = acc_count[i];
+		res[RES_COUNT] = n;
+		if (n == 0) {
+			res[RES_MIN] = res[RES_MAX] = res[RES_AVG] = res[RES_STDDEV] = NAN;
+			res[RES_MIN_X] = res[RES_MIN_Y] = res[RES_MAX_X] = res[RES_MAX_Y] = NAN;
+			continue;
+		}
+		double avg = acc_sum[i] / n;
+		double var = acc_sq[i] / n - avg * avg;
+		res[RES_MIN] = acc_min[i];
+		res[RES_MAX] = acc_max[i];
+		res[RES_AVG] = avg;
+		res[RES_STDDEV] = (var > 0.0) ? sqrt(var) : 0.0;
+		res[RES_MIN_X] = acc_min_pos[i] % width;
+		res[RES_MIN_Y] = acc_min_pos[i] / width;
+		res[RES_MAX_X] = acc_max_pos[i] % width;
+		res[RES_MAX_Y] = acc_max_pos[i] / width;
+	}
+}
@@ -0,0 +1,92 @@
+#ifndef __INFIROI_H__
+#define __INFIROI_H__
+
+#include <cstdint>
+#include <cstddef> /* size_t */
+#include <vector>
+
+/* Measurement of user defined regions of interest (rectangles, ellipses, polylines and single
+ *   points) on a frame of temperatures as produced by InfiFrame::temp().
+ *
+ * Regions are rasterized into horizontal spans only when they're added or removed, or when the
+ *   frame size changes. evaluate() then walks the spans of all regions together, sorted by row, in
+ *   one pass over the frame and writes min/max/avg/stddev for every region to the results array.
+ *   Nothing is allocated in evaluate(), so it is fine to call for every frame with a lot of
+ *   regions, the cost scales with the amount of pixels covered rather than the amount of regions.
+ *
+ * Not thread safe by itself, InfiCam guards it with the same mutex as the rest of the frame.
+ */
+class InfiROI {
+public:
+	static const int max_regions = 256;
+
+	/* Layout of the record for each region in results[], indexed by region id. */
+	static const int RES_MIN = 0;
+	static const int RES_MAX = 1;
+	static const int RES_AVG = 2;
+	static const int RES_STDDEV = 3;
+	static const int RES_MIN_X = 4;
+	static const int RES_MIN_Y = 5;
+	static const int RES_MAX_X = 6;
+	static const int RES_MAX_Y = 7;
+	static const int RES_COUNT = 8; /* Pixels measured, 0 if the region is unused or off-frame. */
+	static const int result_stride = 9;
+
+	/* Written by evaluate(), unused regions and regions without pixels read NaN. */
+	float results[max_regions * result_stride];
+
+	InfiROI();
+
+	/* Frame dimensions, regions are clipped to these. Regions are kept when the size changes. */
+	void set_size(int width, int height);
+
+	/* All of these return the id of the new region (0 to max_regions - 1) or -1 when there's no
+	 *   more room. Coordinates are in pixels of the thermal image, corners are inclusive. Any int
+	 *   goes, the part off the frame isn't measured and costs nothing.
+	 */
+	int add_rect(int x1, int y1, int x2, int y2);
+	int add_ellipse(int cx, int cy, int rx, int ry);
+	int add_point(int x, int y);
+	/* Pixels along the line segments between consecutive points, points as x, y pairs. */
+	int add_polyline(const int *xy, int npoints);
+
+	void remove(int id); /* Ignores ids that aren't in use. */
+	void clear();
+	int count() { return used_count; }
+
+	void evaluate(const float *temp); /* Frame must be width * height as set by set_size(). */
+
+private:
+	enum { TYPE_NONE = 0, TYPE_RECT, TYPE_ELLIPSE, TYPE_POLYLINE };
+
+	struct Region {
+		int type = TYPE_NONE;
+		int a = 0, b = 0, c = 0, d = 0; /* x1, y1, x2, y2 or cx, cy, rx, ry. */
+		std::vector<int> points;
+	};
+
+	struct Span {
+		uint16_t y, x1, x2; /* Exclusive x2. */
+		uint16_t region;
+	};
+
+	int width = 0, height = 0;
+	int used_count = 0;
+	bool dirty = false;
+	Region regions[max_regions];
+	std::vector<Span> spans; /* Sorted by row then column, rebuilt by rasterize(). */
+	std::vector<uint32_t> line_pixels; /* Scratch for polylines, y << 16 | x. */
+
+	/* Accumulators for evaluate(), kept here so nothing gets allocated per frame. */
+	double acc_sum[max_regions], acc_sq[max_regions];
+	float acc_min[max_regions], acc_max[max_regions];
+	int acc_min_pos[max_regions], acc_max_pos[max_regions];
+	int acc_count[max_regions];
+
+	int alloc(int type, int a, int b, int c, int d);
+	void rasterize();
+	void add_span(int region, int y, int64_t x1, int64_t x2); /* Clipped to the frame. */
+	void rasterize_polyline(int id, Region &r);
+};
+
+#endif /* __INFIROI_H__ */
@@ -0,0 +1,330 @@
+#include "InfiRecorder.h"
+#include "InfiTrace.h"
+
+#include <cstdint>
+#include <cstddef> /* offsetof() */
+#include <cstdlib> /* NULL, malloc(), free() */
+#include <cstring> /* memcpy(), memset() */
+#include <cerrno>
+#include <unistd.h> /* write(), close() */
+
+static_assert(sizeof(InfiRecorder::ChunkHeader) == 24, "ChunkHeader must be 24 bytes");
+static_assert(sizeof(InfiRecorder::Params) == 48, "Params must be 48 bytes");
+static_assert(sizeof(InfiRecorder::IndexEntry) == 16, "IndexEntry must be 16 bytes");
+static_assert(sizeof(InfiRecorder::SnapshotHeader) == 32, "SnapshotHeader must be 32 bytes");
+
+void InfiRecorder::Params::from(const InfiFrame &infi) {
+	correction = infi.correction;
+	temp_reflected = infi.temp_reflected;
+	temp_air = infi.temp_air;
+	humidity = infi.humidity;
+	emissivity = infi.emissivity;
+	distance = infi.distance;
+	distance_multiplier = infi.distance_multiplier;
+	offset_temp_fpa = infi.offset_temp_fpa;
+	offset_temp_shutter = infi.offset_temp_shutter;
+	range = infi.range;
+	reserved[0] = reserved[1] = 0;
+}
+
+void InfiRecorder::Params::to(InfiFrame &infi) const {
+	infi.correction = correction;
+	infi.temp_reflected = temp_reflected;
+	infi.temp_air = temp_air;
+	infi.humidity = humidity;
+	infi.emissivity = emissivity;
+	infi.distance = distance;
+	infi.distance_multiplier = distance_multiplier;
+	infi.offset_temp_fpa = offset_temp_fpa;
+	infi.offset_temp_shutter = offset_temp_shutter;
+	infi.range = range;
+}
+
+/* Differences wrap around at 16 bits, so any pair of values gives a difference that fits. */
+static inline uint16_t zigzag(uint16_t d) {
+	int16_t s = (int16_t) d;
+	return (uint16_t) ((s << 1) ^ (s >> 15));
+}
+
+static inline uint16_t unzigzag(uint16_t z) {
+	return (uint16_t) ((z >> 1) ^ -(z & 1));
+}
+
+size_t InfiRecorder::encode_bound(size_t len) {
+	size_t blocks = (len + block_len - 1) / block_len;
+	return blocks * (1 + block_len * 2);
+}
+
+size_t InfiRecorder::encode(const uint16_t *cur, const uint16_t *prev, size_t len, uint8_t *out) {
+	uint8_t *o = out;
+	uint16_t res[block_len];
+	uint16_t last = 0;
+	for (size_t start = 0; start < len; start += block_len) {
+		size_t n = (len - start < (size_t) block_len) ? len - start : block_len;
+		uint16_t all = 0;
+		for (size_t i = 0; i < n; ++i) {
+			uint16_t pred = prev ? prev[start + i] : last;
+			last = cur[start + i];
+			res[i] = zigzag(last - pred);
+			all |= res[i];
+		}
+		int bits = 0;
+		while (all >> bits)
+			++bits;
+		*o++ = bits;
+		uint32_t acc = 0;
+		int nacc = 0;
+		for (size_t i = 0; i < n; ++i) {
+			acc |= (uint32_t) res[i] << nacc;
+			nacc += bits;
+			while (nacc >= 8) {
+				*o++ = acc;
+				acc >>= 8;
+				nacc -= 8;
+			}
+		}
+		if (nacc > 0) /* Blocks start on a byte. */
+			*o++ = acc;
+	}
+	return o - out;
+}
+
+long InfiRecorder::decode(const uint8_t *in, size_t in_len, const uint16_t *prev, size_t len,
+						  uint16_t *out) {
+	const uint8_t *i = in, *end = in + in_len;
+	uint16_t last = 0;
+	for (size_t start = 0; start < len; start += block_len) {
+		size_t n = (len - start < (size_t) block_len) ? len - start : block_len;
+		if (i >= end)
+			return -1;
+		int bits = *i++;
+		if (bits > 16 || (size_t) (end - i) < (n * bits + 7) / 8)
+			return -1;
+		uint32_t acc = 0, mask = (1 << bits) - 1;
+		int nacc = 0;
+		for (size_t j = 0; j < n; ++j) {
+			while (nacc < bits) {
+				acc |= (uint32_t) *i++ << nacc;
+				nacc += 8;
+			}
+			uint16_t pred = prev ? prev[start + j] : last;
+			last = pred + unzigzag(acc & mask);
+			out[start + j] = last;
+			acc >>= bits;
+			nacc -= bits;
+		}
+	}
+	return i - in;
+}
+
+void InfiRecorder::snapshot_info(uint8_t *out, const InfiFrame &infi, int width, int height,
+								 bool raw_sensor, bool p2_pro) {
+	SnapshotHeader header;
+	memcpy(header.magic, "INFISNP1", 8);
+	header.version = VERSION;
+	header.width = width;
+	header.height = height;
+	header.flags = (raw_sensor ? FLAG_RAW_SENSOR : 0) | (p2_pro ? FLAG_P2_PRO : 0);
+	header.payload_len = 0; /* Filled in by snapshot_encode(). */
+	header.table_len = InfiFrame::table_len;
+	Params params;
+	params.from(infi);
+	memcpy(out, &header, sizeof(header));
+	memcpy(out + sizeof(header), &params, sizeof(params));
+	memcpy(out + sizeof(header) + sizeof(params), infi.table, sizeof(infi.table));
+}
+
+size_t InfiRecorder::snapshot_encode(const uint16_t *frame, size_t len, const uint8_t *info,
+									 uint8_t *out) {
+	memcpy(out, info, snapshot_info_len);
+	uint32_t payload_len = encode(frame, NULL, len, out + snapshot_info_len);
+	memcpy(out + offsetof(SnapshotHeader, payload_len), &payload_len, sizeof(payload_len));
+	return snapshot_info_len + payload_len;
+}
+
+InfiRecorder::~InfiRecorder() {
+	stop();
+}
+
+void InfiRecorder::free_buffers() {
+	for (int i = 0; i < num_slots; ++i) {
+		free(slots[i].data);
+		slots[i].data = NULL;
+	}
+	free(prev);
+	prev = NULL;
+	free(out);
+	out = NULL;
+	index.clear();
+	index.shrink_to_fit();
+}
+
+int InfiRecorder::start(int fd, int width, int height, bool raw_sensor, bool p2_pro) {
+	stop();
+	frame_len = width * height;
+	for (int i = 0; i < num_slots; ++i) {
+		slots[i].data = (uint16_t *) malloc(frame_len * sizeof(uint16_t));
+		if (slots[i].data == NULL)
+			goto fail_alloc;
+	}
+	prev = (uint16_t *) malloc(frame_len * sizeof(uint16_t));
+	out = (uint8_t *) malloc(sizeof(ChunkHeader) + sizeof(Params) + encode_bound(frame_len));
+	if (prev == NULL || out == NULL)
+		goto fail_alloc;
+	index.reserve(25 * 60 * 10); /* Ten minutes at 25 FPS before it has to grow. */
+
+	this->fd = fd;
+	error = 0;
+	offset = 0;
+	slot_head = slot_tail = slot_count = 0;
+	stopping = false;
+	frames_written = frames_dropped = 0;
+
+	uint8_t header[header_size];
+	memset(header, 0, sizeof(header));
+	memcpy(header, "INFIRAD1", 8);
+	uint32_t fields[6];
+	fields[0] = VERSION;
+	fields[1] = width;
+	fields[2] = height;
+	fields[3] = (raw_sensor ? FLAG_RAW_SENSOR : 0) | (p2_pro ? FLAG_P2_PRO : 0);
+	fields[4] = key_interval;
+	fields[5] = header_size;
+	memcpy(header + 8, fields, sizeof(fields));
+	write_all(header, sizeof(header));
+	if (error)
+		goto fail_write;
+
+	if (pthread_mutex_init(&mutex, NULL))
+		goto fail_write;
+	if (pthread_cond_init(&cond, NULL))
+		goto fail_mutex;
+	if (pthread_create(&thread, NULL, writer_thread, this))
+		goto fail_cond;
+	running = true;
+	return 0;
+
+fail_cond:
+	pthread_cond_destroy(&cond);
+fail_mutex:
+	pthread_mutex_destroy(&mutex);
+fail_write:
+	this->fd = -1;
+	close(fd);
+	free_buffers();
+	return 2;
+fail_alloc:
+	close(fd);
+	free_buffers();
+	return 1;
+}
+
+int InfiRecorder::stop() {
+	if (!running)
+		return 0;
+	pthread_mutex_lock(&mutex);
+	stopping = true;
+	pthread_cond_signal(&cond);
+	pthread_mutex_unlock(&mutex);
+	pthread_join(thread, NULL);
+	pthread_cond_destroy(&cond);
+	pthread_mutex_destroy(&mutex);
+	running = false;
+
+	uint64_t index_offset = offset;
+	uint32_t head[2] = { MAGIC_INDEX, (uint32_t) index.size() };
+	write_all(head, sizeof(head));
+	write_all(index.data(), index.size() * sizeof(IndexEntry));
+	write_all(&index_offset, sizeof(index_offset));
+	write_all("INFIEND1", 8);
+	if (close(fd))
+		error = 1;
+	fd = -1;
+	free_buffers();
+	return error;
+}
+
+void InfiRecorder::push(const uint16_t *frame, const InfiFrame &infi, uint64_t timestamp) {
+	if (!running)
+		return;
+	pthread_mutex_lock(&mutex);
+	if (slot_count == num_slots) {
+		pthread_mutex_unlock(&mutex);
+		frames_dropped = frames_dropped + 1;
+		InfiTrace::event(InfiTrace::TYPE_BACKPRESSURE, InfiTrace::PHASE_INSTANT,
+						 InfiTrace::DROP_RADIOMETRIC);
+		return;
+	}
+	Slot &slot = slots[slot_head];
+	pthread_mutex_unlock(&mutex);
+
+	/* The writer doesn't touch this slot until we count it, so no lock for the copying. */
+	slot.timestamp = timestamp;
+	slot.params.from(infi);
+	memcpy(slot.data, frame, frame_len * sizeof(uint16_t));
+
+	pthread_mutex_lock(&mutex);
+	slot_head = (slot_head + 1) % num_slots;
+	++slot_count;
+	pthread_cond_signal(&cond);
+	pthread_mutex_unlock(&mutex);
+}
+
+void *InfiRecorder::writer_thread(void *arg) {
+	InfiRecorder *r = (InfiRecorder *) arg;
+	pthread_mutex_lock(&r->mutex);
+	while (1) {
+		while (r->slot_count == 0 && !r->stopping)
+			pthread_cond_wait(&r->cond, &r->mutex);
+		if (r->slot_count == 0) /* Stopping and everything has been written. */
+			break;
+		Slot &slot = r->slots[r->slot_tail];
+		pthread_mutex_unlock(&r->mutex);
+
+		r->write_frame(slot);
+
+		pthread_mutex_lock(&r->mutex);
+		r->slot_tail = (r->slot_tail + 1) % num_slots;
+		--r->slot_count;
+	}
+	pthread_mutex_unlock(&r->mutex);
+	return NULL;
+}
+
+void InfiRecorder::write_frame(Slot &slot) {
+	uint32_t frame_no = index.size();
+	bool key = frame_no % key_interval == 0;
+	ChunkHeader *ch = (ChunkHeader *) out;
+	uint8_t *payload = out + sizeof(ChunkHeader) + sizeof(Params);
+	size_t len = encode(slot.data, key ? NULL : prev, frame_len, payload);
+	ch->magic = MAGIC_CHUNK;
+	ch->flags = key ? CHUNK_KEYFRAME : 0;
+	ch->payload_len = len;
+	ch->frame_no = frame_no;
+	ch->timestamp = slot.timestamp;
+	memcpy(out + sizeof(ChunkHeader), &slot.params, sizeof(Params));
+
+	IndexEntry ie;
+	ie.offset = offset;
+	ie.timestamp = slot.timestamp;
+	write_all(out, sizeof(ChunkHeader) + sizeof(Params) + len);
+	index.push_back(ie);
+	memcpy(prev, slot.data, frame_len * sizeof(uint16_t));
+	frames_written = frames_written + 1;
+}
+
+void InfiRecorder::write_all(const void *data, size_t len) {
+	const uint8_t *p = (const uint8_t *) data;
+	while (len > 0 && !error) {
+		ssize_t ret = write(fd, p, len);
+		if (ret < 0) {
+			if (errno == EINTR)
+				continue;
+			error = 1; /* Disk full or whatever, the index will be missing. */
+			return;
+		}
+		p += ret;
+		len -= ret;
+		offset += ret;
+	}
+}
@@ -0,0 +1,183 @@
+#ifndef __INFIRECORDER_H__
+#define __INFIRECORDER_H__
+
+#include "InfiFrame.h"
+#include <cstdint>
+#include <cstddef> /* size_t */
+#include <vector>
+#include <pthread.h>
+
+/* Radiometric recording, writes the raw uint16 frames as they go into InfiFrame (so after the
+ *   raw sensor calibration and dead pixel correction) together with the InfiFrame parameters, so
+ *   temperatures can be measured again later by feeding the frames back through InfiFrame.
+ *
+ * push() only copies the frame into one of a few preallocated slots and returns, a separate
+ *   writer thread compresses and writes them. If the writer falls behind so far that all slots
+ *   are full the frame is dropped (and counted) rather than blocking the camera thread.
+ *
+ * File layout, everything little endian:
+ *   Header (64 bytes):
+ *     char magic[8]         "INFIRAD1"
+ *     uint32 version        1
+ *     uint32 width, height  of the raw frame as InfiFrame gets it, data rows included, for the
+ *                             P2 Pro that's only the thermal half of what the camera sends
+ *     uint32 flags          FLAG_RAW_SENSOR, FLAG_P2_PRO
+ *     uint32 key_interval   every this many frames is a key frame
+ *     uint32 header_size    64, chunks start here
+ *     uint8 reserved[32]
+ *   Frame chunks, one for every frame:
+ *     ChunkHeader           see below, payload_len is the amount of bytes after Params
+ *     Params                the InfiFrame parameters for this frame
+ *     payload               the frame compressed with encode()
+ *   Index, after the last chunk:
+ *     uint32 magic          MAGIC_INDEX
+ *     uint32 count
+ *     IndexEntry[count]     file offset and timestamp of every chunk, in order
+ *   Trailer (16 bytes), the last thing in the file:
+ *     uint64 index_offset
+ *     char magic[8]         "INFIEND1"
+ *
+ * To get to frame n, read the trailer, then the index entry of the key frame at or before n
+ *   (n - n % key_interval) and decode from there. If recording got cut short there is no index or
+ *   trailer, the chunks can still be read one after the other though.
+ *
+ * Frames are compressed by predicting every pixel, from the same pixel in the previous frame or
+ *   for key frames from the pixel before it, and then bit-packing the zigzag encoded differences
+ *   in blocks of block_len values, each block prefixed by a byte with the amount of bits used.
+ *   Thermal images barely change between frames, so this is mostly 3 to 6 bits a pixel.
+ *
+ * Snapshots are a single frame in the same pieces, with the temperature table so they can be
+ *   measured without InfiFrame (for radiometric pictures):
+ *   SnapshotHeader (32 bytes):
+ *     char magic[8]         "INFISNP1"
+ *     uint32 version        1
+ *     uint32 width, height  like the recording header
+ *     uint32 flags          like the recording header
+ *     uint32 payload_len    bytes of encoded frame at the end
+ *     uint32 table_len      entries in the table
+ *   Params
+ *   float table[table_len]  InfiFrame::table, Celsius for every raw value & (table_len - 1), for
+ *                             the P2 Pro that's the raw value >> 2
+ *   payload                 the frame encoded as a key frame
+ */
+class InfiRecorder {
+public:
+	static const uint32_t VERSION = 1;
+	static const uint32_t FLAG_RAW_SENSOR = 1;
+	static const uint32_t FLAG_P2_PRO = 2;
+	static const uint32_t CHUNK_KEYFRAME = 1;
+	static const uint32_t MAGIC_CHUNK = 0x304D5246; /* "FRM0" */
+	static const uint32_t MAGIC_INDEX = 0x30584449; /* "IDX0" */
+	static const int header_size = 64;
+	static const int trailer_size = 16;
+	static const int key_interval = 25;
+	static const int block_len = 64;
+	static const int num_slots = 4;
+
+	struct ChunkHeader { /* 24 bytes. */
+		uint32_t magic;
+		uint32_t flags;
+		uint32_t payload_len;
+		uint32_t frame_no;
+		uint64_t timestamp; /* Nanoseconds, CLOCK_MONOTONIC. */
+	};
+
+	struct Params { /* 48 bytes, the InfiFrame members of the same name. */
+		float correction, temp_reflected, temp_air, humidity, emissivity, distance;
+		float distance_multiplier, offset_temp_fpa, offset_temp_shutter;
+		int32_t range;
+		uint32_t reserved[2];
+
+		void from(const InfiFrame &infi);
+		void to(InfiFrame &infi) const;
+	};
+
+	struct SnapshotHeader { /* 32 bytes. */
+		char magic[8];
+		uint32_t version;
+		uint32_t width, height;
+		uint32_t flags;
+		uint32_t payload_len;
+		uint32_t table_len;
+	};
+
+	static const size_t snapshot_info_len = sizeof(SnapshotHeader) + sizeof(Params) +
+			InfiFrame::table_len * sizeof(float);
+
+	struct IndexEntry { /* 16 bytes. */
+		uint64_t offset;
+		uint64_t timestamp;
+	};
+
+	/* Statistics, written by the camera thread and writer thread. */
+	volatile uint32_t frames_written = 0, frames_dropped = 0;
+
+	~InfiRecorder();
+
+	/* Start writing to fd, which we close when stopping. The width and height are of the frames
+	 *   that'll be given to push(). Returns 0 on success, the fd is closed on failure too.
+	 */
+	int start(int fd, int width, int height, bool raw_sensor, bool p2_pro);
+
+	/* Writes what's left, the index and closes the file. Returns 0 if everything got written. */
+	int stop();
+
+	bool recording() { return running; }
+
+	/* Frame must be width * height as given to start(), timestamp is when it was captured in
+	 *   nanoseconds, CLOCK_MONOTONIC. Not to be called at the same time as start() or stop(),
+	 *   InfiCam makes sure of that with it's mutex.
+	 */
+	void push(const uint16_t *frame, const InfiFrame &infi, uint64_t timestamp);
+
+	/* The compression, public for whatever wants to read the files. Give prev as NULL for a key
+	 *   frame. The output must have room for encode_bound(len) bytes. decode() returns the amount
+	 *   of bytes used from in, or -1 if the data doesn't make sense.
+	 */
+	static size_t encode_bound(size_t len);
+	static size_t encode(const uint16_t *cur, const uint16_t *prev, size_t len, uint8_t *out);
+	static long decode(const uint8_t *in, size_t in_len, const uint16_t *prev, size_t len,
+					   uint16_t *out);
+
+	/* Snapshots in two steps, so the frame only needs to be copied where it comes in and the
+	 *   encoding can happen elsewhere. snapshot_info() writes all but the payload to out, which
+	 *   must have room for snapshot_info_len bytes. snapshot_encode() copies that info to out,
+	 *   followed by the frame, out must have room for snapshot_bound(len) bytes. It returns the
+	 *   total length.
+	 */
+	static void snapshot_info(uint8_t *out, const InfiFrame &infi, int width, int height,
+							  bool raw_sensor, bool p2_pro);
+	static size_t snapshot_bound(size_t len) { return snapshot_info_len + encode_bound(len); }
+	static size_t snapshot_encode(const uint16_t *frame, size_t len, const uint8_t *info,
+								  uint8_t *out);
+
+private:
+	struct Slot {
+		uint16_t *data = NULL;
+		Params params;
+		uint64_t timestamp;
+	};
+
+	int fd = -1;
+	size_t frame_len = 0;
+	bool running = false;
+	int error = 0;
+	uint64_t offset = 0;
+	Slot slots[num_slots];
+	int slot_head = 0, slot_tail = 0, slot_count = 0; /* Guarded by mutex. */
+	bool stopping = false;
+	uint16_t *prev = NULL;
+	uint8_t *out = NULL;
+	std::vector<IndexEntry> index;
+
+	pthread_t thread;
+	pthread_mutex_t mutex;
+	pthread_cond_t cond;
+
+	static void *writer_thread(void *arg);
+	void write_frame(Slot &slot);
+	void write_all(const void *data, size_t len);
+	void free_buffers();
+};
+
+#endif /* __INFIRECORDER_H__ */
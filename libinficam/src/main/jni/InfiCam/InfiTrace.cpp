@@ -0,0 +1,120 @@
+#include "InfiTrace.h"
+
+#include <cstdint>
+#include <atomic>
+#include <vector>
+#include <algorithm> /* stable_sort() */
+#include <cstdio> /* fdopen(), fprintf() */
+#include <cstring> /* memcpy() */
+#include <ctime> /* clock_gettime() */
+#include <unistd.h> /* close(), syscall() */
+#include <sys/syscall.h> /* SYS_gettid */
+
+std::atomic<bool> InfiTrace::enabled(false);
+std::atomic<uint64_t> InfiTrace::head(0);
+InfiTrace::Slot InfiTrace::ring[InfiTrace::ring_len];
+
+static const char *type_names[InfiTrace::TYPE_COUNT] = {
+	"frame", "calibration", "shutter", "table", "dropped", "callback", "swap", "backpressure"
+};
+static const char phase_names[] = { 'i', 'B', 'E' };
+
+static uint32_t thread_id() {
+	static thread_local uint32_t tid = 0;
+	if (tid == 0)
+		tid = syscall(SYS_gettid);
+	return tid;
+}
+
+void InfiTrace::record(int type, int phase, uint32_t arg, uint64_t timestamp) {
+	if (type < 0 || type >= TYPE_COUNT || phase < PHASE_INSTANT || phase > PHASE_END)
+		return;
+	if (timestamp == 0) {
+		struct timespec ts;
+		clock_gettime(CLOCK_MONOTONIC, &ts);
+		timestamp = (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+	}
+	uint64_t index = head.fetch_add(1, std::memory_order_relaxed);
+	Slot &slot = ring[index & (ring_len - 1)];
+	slot.seq.store(index * 2 + 1, std::memory_order_relaxed);
+	std::atomic_thread_fence(std::memory_order_release);
+	slot.timestamp.store(timestamp, std::memory_order_relaxed);
+	slot.info.store((uint64_t) thread_id() << 32 | phase << 16 | type, std::memory_order_relaxed);
+	slot.arg.store(arg, std::memory_order_relaxed);
+	slot.seq.store(index * 2 + 2, std::memory_order_release);
+}
+
+int InfiTrace::dump(int fd, int format) {
+	struct Event {
+		uint64_t timestamp;
+		uint64_t info;
+		uint32_t arg;
+	};
+	std::vector<Event> events;
+	events.reserve(ring_len);
+	uint64_t end = head.load(std::memory_order_acquire);
+	for (uint64_t i = (end > ring_len) ? end - ring_len : 0; i < end; ++i) {
+		Slot &slot = ring[i & (ring_len - 1)];
+		uint64_t seq = slot.seq.load(std::memory_order_acquire);
+		if (seq != i * 2 + 2)
+			continue; /* Still being written or already overwritten. */
+		Event ev;
+		ev.timestamp = slot.timestamp.load(std::memory_order_relaxed);
+		ev.info = slot.info.load(std::memory_order_relaxed);
+		ev.arg = slot.arg.load(std::memory_order_relaxed);
+		std::atomic_thread_fence(std::memory_order_acquire);
+		if (slot.seq.load(std::memory_order_relaxed) != seq)
+			continue;
+		events.push_back(ev);
+	}
+	/* Some events are recorded with a time from before, like TYPE_FRAME with the time the frame
+	 *   came in, so the ring isn't quite in time order. Stable so a BEGIN and END with the same
+	 *   time stay the way around they were.
+	 */
+	std::stable_sort(events.begin(), events.end(), [](const Event &a, const Event &b) {
+		return a.timestamp < b.timestamp;
+	});
+
+	FILE *f = fdopen(fd, "w");
+	if (f == NULL) {
+		close(fd);
+		return 1;
+	}
+	int err = 0;
+	if (format == FORMAT_JSON) {
+		/* Microseconds from the oldest event, Chrome doesn't need absolute times. */
+		uint64_t base = events.empty() ? 0 : events[0].timestamp;
+		err |= fprintf(f, "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[") < 0;
+		for (size_t i = 0; i < events.size(); ++i) {
+			Event &ev = events[i];
+			uint64_t us = (ev.timestamp - base) / 1000, frac = (ev.timestamp - base) % 1000;
+			int phase = ev.info >> 16 & 0xFF;
+			err |= fprintf(f, "%s\n{\"name\":\"%s\",\"ph\":\"%c\",%s\"ts\":%llu.%03u,"
+						   "\"pid\":1,\"tid\":%u,\"args\":{\"arg\":%u}}", (i > 0) ? "," : "",
+						   type_names[ev.info & 0xFFFF], phase_names[phase],
+						   (phase == PHASE_INSTANT) ? "\"s\":\"t\"," : "",
+						   (unsigned long long) us, (unsigned) frac,
+						   (unsigned) (ev.info >> 32), ev.arg) < 0;
+		}
+		err |= fprintf(f, "\n]}\n") < 0;
+	} else {
+		uint32_t hdr[2] = { (uint32_t) events.size(), 20 };
+		err |= fwrite("INFITRC1", 8, 1, f) != 1;
+		err |= fwrite(hdr, sizeof(hdr), 1, f) != 1;
+		for (Event &ev : events) {
+			uint8_t rec[20];
+			uint32_t tid = ev.info >> 32;
+			uint16_t type = ev.info & 0xFFFF;
+			memcpy(rec, &ev.timestamp, 8);
+			memcpy(rec + 8, &tid, 4);
+			memcpy(rec + 12, &ev.arg, 4);
+			memcpy(rec + 16, &type, 2);
+			rec[18] = ev.info >> 16 & 0xFF;
+			rec[19] = 0;
+			err |= fwrite(rec, sizeof(rec), 1, f) != 1;
+		}
+	}
+	if (fclose(f))
+		err = 1;
+	return err;
+}
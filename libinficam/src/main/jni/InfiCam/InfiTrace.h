@@ -0,0 +1,80 @@
+#ifndef __INFITRACE_H__
+#define __INFITRACE_H__
+
+#include <cstdint>
+#include <atomic>
+
+/* Timeline of what happened to the last frames, for when something stutters. There is one ring
+ *   of events for the whole process (native and Java write to the same one, see InfiCam.java),
+ *   when it's full the oldest events get overwritten, so it always has the last ring_len.
+ *
+ * Events are written without locks: taking a slot is one atomic increment and the slot has a
+ *   sequence number around the writing so dump() can tell a complete event from one that's being
+ *   overwritten at that moment and skip it. When disabled event() is one relaxed load and a
+ *   branch. Durations are a BEGIN and END of the same type on the same thread.
+ *
+ * dump() writes what's in the ring, oldest first, either as Chrome trace JSON (load it in
+ *   chrome://tracing or ui.perfetto.dev) or the binary format below, and closes the fd. All
+ *   little endian:
+ *
+ *   char magic[8] = "INFITRC1"
+ *   uint32_t count, event_len (20)
+ *   count times:
+ *     uint64_t timestamp (nanoseconds, CLOCK_MONOTONIC, same as System.nanoTime())
+ *     uint32_t tid
+ *     uint32_t arg
+ *     uint16_t type (TYPE_*)
+ *     uint8_t phase (PHASE_*)
+ *     uint8_t reserved (0)
+ */
+class InfiTrace {
+public:
+	enum { /* Keep in sync with InfiCam.java and the names in InfiTrace.cpp. */
+		TYPE_FRAME = 0, /* Frame came in from USB, arg is the frame's sequence number. */
+		TYPE_CALIBRATION, /* Raw sensor calibration, from closing the shutter until done. */
+		TYPE_SHUTTER, /* Shutter closed to recalibrate, arg 1 for the calibration frame. */
+		TYPE_TABLE, /* Rebuilding the temperature table. */
+		TYPE_DROPPED, /* Frame dropped, arg is DROP_*. */
+		TYPE_CALLBACK, /* The Java frame callback. */
+		TYPE_SWAP, /* Screen buffer swap. */
+		TYPE_BACKPRESSURE, /* A recorder couldn't keep up and dropped data, arg is DROP_*. */
+		TYPE_COUNT
+	};
+	enum {
+		DROP_INCOMPLETE = 0, /* Frame from USB was short. */
+		DROP_RENDER = 1, /* Render thread didn't get to it before the next. */
+		DROP_RADIOMETRIC = 2, /* InfiRecorder had no free slot. */
+		DROP_AUDIO = 3 /* SurfaceRecorder's audio queue was full. */
+	};
+	enum { PHASE_INSTANT = 0, PHASE_BEGIN = 1, PHASE_END = 2 };
+	enum { FORMAT_BINARY = 0, FORMAT_JSON = 1 };
+	static const uint32_t ring_len = 4096; /* Power of two. */
+
+	static void set_enabled(bool value) { enabled.store(value, std::memory_order_relaxed); }
+	static bool is_enabled() { return enabled.load(std::memory_order_relaxed); }
+
+	static void event(int type, int phase = PHASE_INSTANT, uint32_t arg = 0) {
+		if (enabled.load(std::memory_order_relaxed))
+			record(type, phase, arg, 0);
+	}
+	static void begin(int type, uint32_t arg = 0) { event(type, PHASE_BEGIN, arg); }
+	static void end(int type, uint32_t arg = 0) { event(type, PHASE_END, arg); }
+	/* Timestamp given, 0 for now. */
+	static void record(int type, int phase, uint32_t arg, uint64_t timestamp);
+
+	/* Returns 0 on success, the fd is closed either way. */
+	static int dump(int fd, int format);
+
+private:
+	struct Slot {
+		std::atomic<uint64_t> seq; /* 2 * index + 1 while writing, 2 * index + 2 when written. */
+		std::atomic<uint64_t> timestamp;
+		std::atomic<uint64_t> info; /* tid << 32 | phase << 16 | type */
+		std::atomic<uint32_t> arg;
+	};
+	static std::atomic<bool> enabled;
+	static std::atomic<uint64_t> head;
+	static Slot ring[ring_len];
+};
+
+#endif /* __INFITRACE_H__ */
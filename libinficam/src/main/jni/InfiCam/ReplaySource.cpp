@@ -0,0 +1,468 @@
+#include "ReplaySource.h"
+#include "SimSource.h" /* The camera layouts. */
+
+#include <cstdint>
+#include <cstdlib> /* NULL, malloc(), free() */
+#include <cstring> /* memcpy(), memcmp(), memset() */
+#include <cstdio>
+#include <ctime> /* clock_gettime() */
+#include <algorithm> /* std::sort() */
+#include <utility> /* std::pair */
+#include <dirent.h>
+#include <sys/stat.h>
+
+/* Infiray cameras put this at the start of every ISO packet, see stream.c. */
+static const uint8_t infiray_tag[] = { 0x0C, 0x8C, 0xEF, 0x21, 0xB1, 0xF0, 0xEF, 0x21, 0xB1, 0xF0 };
+static const size_t packet_header_len = 12; /* The tag and a 16 bit packet counter. */
+
+static uint64_t monotonic_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+/* Sizes of the frames as they come from the cameras we know, data rows included. Those are the
+ *   SimSource layouts, so what it makes and what we read are the same cameras.
+ */
+static bool guess_size(size_t bytes, uint16_t *width, uint16_t *height) {
+	for (int i = 0; i < SimSource::layout_count; ++i) {
+		const SimSource::Layout &l = SimSource::layouts[i];
+		if ((size_t) l.width * l.height * 2 == bytes) {
+			*width = l.width;
+			*height = l.height;
+			return true;
+		}
+	}
+	return false;
+}
+
+static long file_size(const char *path) {
+	struct stat st;
+	if (stat(path, &st))
+		return -1;
+	return st.st_size;
+}
+
+ReplaySource::~ReplaySource() {
+	disconnect();
+}
+
+int ReplaySource::open(const char *path, int width, int height) {
+	disconnect();
+	struct stat st;
+	if (stat(path, &st))
+		return 1;
+	this->width = width;
+	this->height = height;
+	int ret = S_ISDIR(st.st_mode) ? open_dir(path, width, height) : open_irad(path);
+	if (ret == 0 && (frames.empty() || this->width == 0 || this->height == 0))
+		ret = 3;
+	if (ret == 0) {
+		size_t len = (size_t) this->width * this->height;
+		cur = (uint16_t *) malloc(len * sizeof(uint16_t));
+		out = (uint16_t *) malloc(len * sizeof(uint16_t));
+		if (cur == NULL || out == NULL)
+			ret = 1;
+		else memset(out, 0, len * sizeof(uint16_t));
+	}
+	if (ret == 0 && pthread_mutex_init(&mutex, NULL))
+		ret = 1;
+	if (ret == 0) {
+		pthread_condattr_t attr; /* Realtime pacing waits for CLOCK_MONOTONIC deadlines. */
+		pthread_condattr_init(&attr);
+		pthread_condattr_setclock(&attr, CLOCK_MONOTONIC);
+		if (pthread_cond_init(&cond, &attr)) {
+			pthread_mutex_destroy(&mutex);
+			ret = 1;
+		}
+		pthread_condattr_destroy(&attr);
+	}
+	if (ret) {
+		format = FORMAT_NONE; /* So disconnect() doesn't destroy the mutex. */
+		free(cur);
+		cur = NULL;
+		free(out);
+		out = NULL;
+		if (file != NULL)
+			fclose(file);
+		file = NULL;
+		frames.clear();
+		files.clear();
+		packet_data.clear();
+		this->width = this->height = 0;
+		return ret;
+	}
+	pos = 0;
+	done = false;
+	return 0;
+}
+
+int ReplaySource::open_irad(const char *path) {
+	file = fopen(path, "rb");
+	if (file == NULL)
+		return 1;
+	uint8_t header[InfiRecorder::header_size];
+	uint32_t fields[6];
+	if (fread(header, sizeof(header), 1, file) != 1 || memcmp(header, "INFIRAD1", 8))
+		return 2;
+	memcpy(fields, header + 8, sizeof(fields));
+	if (fields[0] != InfiRecorder::VERSION || fields[4] == 0 ||
+			fields[5] < (uint32_t) InfiRecorder::header_size)
+		return 2;
+	raw_sensor = fields[3] & InfiRecorder::FLAG_RAW_SENSOR;
+	p2_pro = fields[3] & InfiRecorder::FLAG_P2_PRO;
+	width = fields[1];
+	height = p2_pro ? fields[2] * 2 : fields[2]; /* Only the thermal half got recorded. */
+	key_interval = fields[4];
+	format = FORMAT_IRAD;
+
+	/* A recording that got cut short has no index, then we go through the chunks. */
+	if (read_irad_index() && scan_irad(fields[5]))
+		return 2;
+	for (size_t i = 1; i < frames.size(); ++i)
+		frames[i].timestamp -= frames[0].timestamp;
+	if (!frames.empty())
+		frames[0].timestamp = 0;
+	return 0;
+}
+
+int ReplaySource::read_irad_index() {
+	uint64_t index_offset;
+	char magic[8];
+	uint32_t head[2];
+	if (fseeko(file, -InfiRecorder::trailer_size, SEEK_END) ||
+			fread(&index_offset, sizeof(index_offset), 1, file) != 1 ||
+			fread(magic, sizeof(magic), 1, file) != 1 || memcmp(magic, "INFIEND1", 8))
+		return 1;
+	if (fseeko(file, index_offset, SEEK_SET) || fread(head, sizeof(head), 1, file) != 1 ||
+			head[0] != InfiRecorder::MAGIC_INDEX)
+		return 1;
+	frames.resize(head[1]);
+	for (uint32_t i = 0; i < head[1]; ++i) {
+		InfiRecorder::IndexEntry ie;
+		if (fread(&ie, sizeof(ie), 1, file) != 1) {
+			frames.clear();
+			return 1;
+		}
+		frames[i].offset = ie.offset;
+		frames[i].timestamp = ie.timestamp;
+	}
+	return 0;
+}
+
+int ReplaySource::scan_irad(uint32_t header_size) {
+	if (fseeko(file, 0, SEEK_END))
+		return 1;
+	uint64_t size = ftello(file), offset = header_size;
+	frames.clear();
+	while (offset + sizeof(InfiRecorder::ChunkHeader) <= size) {
+		InfiRecorder::ChunkHeader ch;
+		if (fseeko(file, offset, SEEK_SET) || fread(&ch, sizeof(ch), 1, file) != 1 ||
+				ch.magic != InfiRecorder::MAGIC_CHUNK)
+			break;
+		uint64_t next = offset + sizeof(ch) + sizeof(InfiRecorder::Params) + ch.payload_len;
+		if (next > size) /* The last one may be incomplete. */
+			break;
+		Frame f;
+		f.offset = offset;
+		f.timestamp = ch.timestamp;
+		frames.push_back(f);
+		offset = next;
+	}
+	return 0;
+}
+
+int ReplaySource::open_dir(const char *path, int width, int height) {
+	DIR *dir = opendir(path);
+	if (dir == NULL)
+		return 1;
+	/* The numbers in the names aren't always padded to the same width, so sort by number. */
+	std::vector<std::pair<long, std::string>> frame_files, packet_files;
+	struct dirent *de;
+	while ((de = readdir(dir)) != NULL) {
+		int id, n = 0;
+		unsigned counter;
+		if (sscanf(de->d_name, "InfiCam.cpp_%d.bin%n", &id, &n) == 1 && de->d_name[n] == 0)
+			frame_files.push_back(std::make_pair(id, std::string(path) + "/" + de->d_name));
+		else if (sscanf(de->d_name, "stream_%d_p%u.bin%n", &id, &counter, &n) == 2 &&
+				de->d_name[n] == 0)
+			packet_files.push_back(std::make_pair(id, std::string(path) + "/" + de->d_name));
+	}
+	closedir(dir);
+	std::sort(frame_files.begin(), frame_files.end());
+	std::sort(packet_files.begin(), packet_files.end());
+
+	if (!frame_files.empty()) {
+		format = FORMAT_FRAMES;
+		long size = file_size(frame_files[0].second.c_str());
+		if ((width == 0 || height == 0) && !guess_size(size, &this->width, &this->height))
+			return 3;
+		size_t bytes = (size_t) this->width * this->height * 2;
+		for (size_t i = 0; i < frame_files.size(); ++i) {
+			if (file_size(frame_files[i].second.c_str()) < (long) bytes)
+				continue; /* Would be ignored by InfiCam anyway. */
+			Frame f;
+			f.offset = 0;
+			f.timestamp = files.size() * dump_frame_interval;
+			frames.push_back(f);
+			files.push_back(frame_files[i].second);
+		}
+		return 0;
+	}
+
+	/* Put the packets together like stream.c does: what's after the header is data, until a
+	 *   packet that's all zeros after the header which marks the end of the frame.
+	 */
+	format = FORMAT_PACKETS;
+	std::vector<std::vector<uint8_t>> assembled;
+	std::vector<uint8_t> frame, packet;
+	size_t bytes = (size_t) width * height * 2; /* Zero if we don't know yet. */
+	for (size_t i = 0; i < packet_files.size(); ++i) {
+		FILE *f = fopen(packet_files[i].second.c_str(), "rb");
+		if (f == NULL)
+			continue;
+		packet.resize(65536);
+		packet.resize(fread(packet.data(), 1, packet.size(), f));
+		fclose(f);
+		if (packet.size() < packet_header_len || memcmp(packet.data(), infiray_tag,
+				sizeof(infiray_tag)))
+			continue;
+		bool zero = packet.size() > packet_header_len;
+		for (size_t j = packet_header_len; j < packet.size() && zero; ++j)
+			zero = packet[j] == 0;
+		if (!zero)
+			frame.insert(frame.end(), packet.begin() + packet_header_len, packet.end());
+		if ((zero || (bytes && frame.size() >= bytes)) && !frame.empty()) {
+			assembled.push_back(frame);
+			frame.clear();
+		}
+	}
+	if (assembled.empty())
+		return 3;
+	if (bytes == 0 && !guess_size(assembled[0].size(), &this->width, &this->height))
+		return 3;
+	bytes = (size_t) this->width * this->height * 2;
+	for (size_t i = 0; i < assembled.size(); ++i) {
+		if (assembled[i].size() < bytes)
+			continue;
+		Frame f;
+		f.offset = packet_data.size();
+		f.timestamp = frames.size() * dump_frame_interval;
+		frames.push_back(f);
+		packet_data.resize(packet_data.size() + bytes / 2);
+		memcpy(packet_data.data() + f.offset, assembled[i].data(), bytes);
+	}
+	return 0;
+}
+
+int ReplaySource::decode_irad(uint32_t n) {
+	size_t len = (size_t) width * height;
+	if (p2_pro) /* The thermal half, see open_irad(). */
+		len /= 2;
+	/* Deltas go from the previous frame, so start at the key frame unless we're already past it. */
+	uint32_t i = n - n % key_interval;
+	if (decoded != UINT32_MAX && decoded >= i && decoded < n)
+		i = decoded + 1;
+	for (; i <= n; ++i) {
+		InfiRecorder::ChunkHeader ch;
+		if (fseeko(file, frames[i].offset, SEEK_SET) || fread(&ch, sizeof(ch), 1, file) != 1 ||
+				ch.magic != InfiRecorder::MAGIC_CHUNK ||
+				fread(&params, sizeof(params), 1, file) != 1)
+			return 1;
+		bool key = ch.flags & InfiRecorder::CHUNK_KEYFRAME;
+		if (!key && decoded != i - 1)
+			return 1;
+		chunk.resize(ch.payload_len);
+		if (fread(chunk.data(), 1, chunk.size(), file) != chunk.size())
+			return 1;
+		decoded = UINT32_MAX; /* In case it fails halfway. */
+		if (InfiRecorder::decode(chunk.data(), chunk.size(), key ? NULL : cur, len, cur) < 0)
+			return 1;
+		decoded = i;
+	}
+	return 0;
+}
+
+int ReplaySource::read_frame(uint32_t n, uint16_t **data) {
+	size_t len = (size_t) width * height;
+	switch (format) {
+		case FORMAT_IRAD:
+			if (decode_irad(n))
+				return 1;
+			if (p2_pro) {
+				/* What got recorded is the thermal half only, InfiCam takes that from the second
+				 *   half of the frame like the P2 Pro sends it, the first half stays zero.
+				 */
+				memcpy(out + len / 2, cur, len / 2 * sizeof(uint16_t));
+				*data = out;
+			} else *data = cur;
+			return 0;
+		case FORMAT_FRAMES: {
+			FILE *f = fopen(files[n].c_str(), "rb");
+			if (f == NULL)
+				return 1;
+			size_t got = fread(cur, sizeof(uint16_t), len, f);
+			fclose(f);
+			*data = cur;
+			return got != len;
+		}
+		case FORMAT_PACKETS:
+			*data = packet_data.data() + frames[n].offset;
+			return 0;
+		default:
+			return 1;
+	}
+}
+
+void ReplaySource::disconnect() {
+	stream_stop();
+	if (format == FORMAT_NONE)
+		return;
+	pthread_cond_destroy(&cond);
+	pthread_mutex_destroy(&mutex);
+	if (file != NULL)
+		fclose(file);
+	file = NULL;
+	free(cur);
+	cur = NULL;
+	free(out);
+	out = NULL;
+	frames.clear();
+	files.clear();
+	packet_data.clear();
+	packet_data.shrink_to_fit();
+	decoded = UINT32_MAX;
+	have_params = false;
+	raw_sensor = p2_pro = false;
+	width = height = 0;
+	format = FORMAT_NONE;
+}
+
+int ReplaySource::stream_start(uvc_frame_callback_t *cb, void *user_ptr) {
+	if (format == FORMAT_NONE || streaming)
+		return 1;
+	callback = cb;
+	callback_arg = user_ptr;
+	stopping = false;
+	done = false;
+	rebase = true;
+	if (pthread_create(&thread, NULL, replay_thread, this))
+		return 2;
+	streaming = true;
+	return 0;
+}
+
+void ReplaySource::stream_stop() {
+	if (!streaming)
+		return;
+	pthread_mutex_lock(&mutex);
+	stopping = true;
+	pthread_cond_signal(&cond);
+	pthread_mutex_unlock(&mutex);
+	pthread_join(thread, NULL);
+	streaming = false;
+}
+
+const InfiRecorder::Params *ReplaySource::frame_params(bool *changed) {
+	if (format != FORMAT_IRAD)
+		return NULL;
+	*changed = !have_params || memcmp(&params, &last_params, sizeof(params));
+	last_params = params;
+	have_params = true;
+	return &params;
+}
+
+void ReplaySource::set_pacing(Pacing p) {
+	if (format == FORMAT_NONE) {
+		pacing = p;
+		return;
+	}
+	pthread_mutex_lock(&mutex);
+	pacing = p;
+	rebase = true;
+	pthread_cond_signal(&cond);
+	pthread_mutex_unlock(&mutex);
+}
+
+void ReplaySource::step() {
+	if (format == FORMAT_NONE)
+		return;
+	pthread_mutex_lock(&mutex);
+	++steps;
+	pthread_cond_signal(&cond);
+	pthread_mutex_unlock(&mutex);
+}
+
+void ReplaySource::seek(uint32_t frame) {
+	if (format == FORMAT_NONE)
+		return;
+	pthread_mutex_lock(&mutex);
+	pos = (frame < frames.size()) ? frame : frames.size();
+	rebase = true;
+	pthread_cond_signal(&cond);
+	pthread_mutex_unlock(&mutex);
+}
+
+void *ReplaySource::replay_thread(void *arg) {
+	ReplaySource *r = (ReplaySource *) arg;
+	uvc_frame_t frame;
+	memset(&frame, 0, sizeof(frame));
+	frame.width = r->width;
+	frame.height = r->height;
+	frame.step = r->width * 2;
+	frame.data_bytes = (size_t) r->width * r->height * 2;
+	uint64_t base_wall = 0, base_ts = 0;
+
+	pthread_mutex_lock(&r->mutex);
+	while (!r->stopping) {
+		if (r->pos >= r->frames.size()) {
+			if (!r->loop)
+				break;
+			r->pos = 0;
+			r->rebase = true;
+		}
+		if (r->pacing == PACE_STEP) {
+			if (r->steps == 0) {
+				pthread_cond_wait(&r->cond, &r->mutex);
+				r->rebase = true;
+				continue;
+			}
+			--r->steps;
+		} else if (r->pacing == PACE_REALTIME) {
+			/* Against the time of the first frame rather than the previous one, so a slow
+			 *   callback doesn't make us drift behind.
+			 */
+			uint64_t ts = r->frames[r->pos].timestamp, now = monotonic_ns();
+			if (r->rebase || ts < base_ts) {
+				base_wall = now;
+				base_ts = ts;
+				r->rebase = false;
+			}
+			uint64_t due = base_wall + (ts - base_ts);
+			if (now < due) {
+				struct timespec t;
+				t.tv_sec = due / 1000000000;
+				t.tv_nsec = due % 1000000000;
+				pthread_cond_timedwait(&r->cond, &r->mutex, &t);
+				continue; /* Could have been stopped, seeked, etc. */
+			}
+		}
+		uint32_t n = r->pos;
+		r->pos = n + 1;
+		pthread_mutex_unlock(&r->mutex);
+
+		uint16_t *data;
+		if (r->read_frame(n, &data)) {
+			pthread_mutex_lock(&r->mutex);
+			break; /* Rather stop than play half a file. */
+		}
+		frame.data = data;
+		frame.sequence = n;
+		r->callback(&frame, r->callback_arg);
+
+		pthread_mutex_lock(&r->mutex);
+	}
+	r->done = !r->stopping;
+	pthread_mutex_unlock(&r->mutex);
+	return NULL;
+}
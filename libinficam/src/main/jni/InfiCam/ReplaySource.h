@@ -0,0 +1,102 @@
+#ifndef __REPLAYSOURCE_H__
+#define __REPLAYSOURCE_H__
+
+#include "FrameSource.h"
+#include "InfiRecorder.h"
+#include <cstdint>
+#include <cstdio>
+#include <string>
+#include <vector>
+#include <pthread.h>
+
+/* Plays back frames from a file through InfiCam as if they came from the camera, give it to
+ *   InfiCam.connect_source() after open(). It reads:
+ *   - Radiometric recordings from InfiRecorder (.irad), which also have the InfiFrame parameters
+ *       for every frame and the raw_sensor/p2_pro flags, set those on InfiCam before connecting.
+ *       The frames in there already had the raw sensor calibration done, so don't calibrate().
+ *   - A directory with the InfiCam.cpp_NNN.bin full frame dumps from the debug code in
+ *       InfiCam::uvc_callback().
+ *   - A directory with the stream_NNNN_pNNNNN.bin ISO packet dumps from libuvc's stream.c, which
+ *       get put together into frames the same way stream.c does for the Infiray cameras.
+ *   The dumps don't say what size the frames are, if width and height aren't given to open() it
+ *   is guessed from the size of the frames.
+ *
+ * The frames get delivered from a thread of our own, at the pace set with set_pacing():
+ *   PACE_REALTIME  as fast as they were recorded, by the timestamps for .irad and 25 FPS for dumps
+ *   PACE_FAST      as fast as the callback returns
+ *   PACE_STEP      one frame for every call to step()
+ * With loop set it starts over at the end, otherwise the thread stops and finished() is true.
+ */
+class ReplaySource : public FrameSource {
+public:
+	enum Pacing { PACE_REALTIME, PACE_FAST, PACE_STEP };
+	static const uint64_t dump_frame_interval = 40000000; /* Nanoseconds, 25 FPS. */
+
+	bool raw_sensor = false, p2_pro = false; /* From the .irad header. */
+	bool loop = false;
+
+	~ReplaySource();
+
+	/* Returns 0 on success, 1 if the file can't be read, 2 if it makes no sense, 3 if there are
+	 *   no frames or the size of them can't be guessed.
+	 */
+	int open(const char *path, int width = 0, int height = 0);
+	void disconnect() override; /* Closes the file, also done by InfiCam.disconnect(). */
+
+	int stream_start(uvc_frame_callback_t *cb, void *user_ptr) override; /* Errors if streaming. */
+	void stream_stop() override;
+	int set_zoom_abs(uint16_t val) override { return 0; } /* No camera to tell anything. */
+	const InfiRecorder::Params *frame_params(bool *changed) override;
+
+	void set_pacing(Pacing p); /* Can be changed while streaming. */
+	void step(); /* Let one more frame through with PACE_STEP. */
+	void seek(uint32_t frame); /* Next frame to play, takes effect on the next frame. */
+
+	uint32_t frame_count() { return frames.size(); }
+	uint32_t frame_number() { return pos; } /* Of the next frame that will be played. */
+	bool finished() { return done; }
+
+private:
+	enum Format { FORMAT_NONE, FORMAT_IRAD, FORMAT_FRAMES, FORMAT_PACKETS };
+
+	struct Frame {
+		uint64_t offset; /* Into the .irad file or packets, unused for frame dumps. */
+		uint64_t timestamp; /* Nanoseconds since the first frame. */
+	};
+
+	Format format = FORMAT_NONE;
+	FILE *file = NULL;
+	uint32_t key_interval = 1;
+	std::vector<Frame> frames;
+	std::vector<std::string> files; /* For FORMAT_FRAMES. */
+	std::vector<uint16_t> packet_data; /* For FORMAT_PACKETS, all the frames one after another. */
+
+	uint16_t *cur = NULL; /* Last decoded frame, .irad frames are relative to it. */
+	uint16_t *out = NULL; /* What goes to the callback if it's not cur. */
+	std::vector<uint8_t> chunk;
+	uint32_t decoded = UINT32_MAX; /* Which frame is in cur. */
+	InfiRecorder::Params params, last_params;
+	bool have_params = false;
+
+	uvc_frame_callback_t *callback = NULL;
+	void *callback_arg = NULL;
+	pthread_t thread;
+	pthread_mutex_t mutex;
+	pthread_cond_t cond;
+	bool streaming = false, stopping = false;
+	volatile bool done = false;
+	Pacing pacing = PACE_REALTIME; /* These four guarded by mutex while streaming. */
+	uint32_t steps = 0;
+	bool rebase = true; /* Realtime pacing starts counting again from the next frame. */
+	volatile uint32_t pos = 0;
+
+	int open_irad(const char *path);
+	int open_dir(const char *path, int width, int height);
+	int read_irad_index();
+	int scan_irad(uint32_t header_size);
+	int read_frame(uint32_t n, uint16_t **data);
+	int decode_irad(uint32_t n);
+	static void *replay_thread(void *arg);
+};
+
+#endif /* __REPLAYSOURCE_H__ */
@@ -0,0 +1,312 @@
+#include "SimSource.h"
+
+#include <cstdint>
+#include <cstdlib> /* NULL, abs() */
+#include <cstring> /* memset(), memcpy(), memmove(), strcmp() */
+#include <cmath>
+#include <ctime> /* clock_gettime() */
+
+const SimSource::Layout SimSource::layouts[] = {
+	{ "640", 640, 516, false, false },
+	{ "384", 384, 292, false, false },
+	{ "256", 256, 196, false, false },
+	{ "240", 240, 184, false, false },
+	{ "256raw", 256, 196, true, false }, /* T2S+ A2, the stats come from scanning the frame. */
+	{ "p2pro", 256, 384, false, true },
+};
+const int SimSource::layout_count = sizeof(layouts) / sizeof(layouts[0]);
+
+static const int data_rows = 4; /* Same as in InfiCam. */
+static const uint16_t cmd_shutter = 0x8000;
+static const uint16_t dead_value = 200; /* Well below anything the scene makes. */
+
+static uint64_t monotonic_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+static void put_float(uint16_t *dst, float val) {
+	memcpy(dst, &val, sizeof(val));
+}
+
+static uint32_t next_random(uint32_t *rnd) {
+	*rnd = *rnd * 1103515245 + 12345;
+	return *rnd >> 16;
+}
+
+const SimSource::Layout *SimSource::find_layout(const char *name) {
+	for (int i = 0; i < layout_count; ++i)
+		if (!strcmp(layouts[i].name, name))
+			return &layouts[i];
+	return NULL;
+}
+
+/* The calibration values are made up so that temp_single() works out to about
+ *   sqrt((x - offset) * 0.5 + 625) for emissivity 1, which spreads 10C to 60C over a few thousand
+ *   pixel values like the real cameras do.
+ */
+void SimSource::synth(const Layout &l, uint16_t *frame, uint32_t n, bool shutter) {
+	size_t len = (size_t) l.width * l.height;
+	memset(frame, 0, len * sizeof(uint16_t));
+	int w = l.width, h = l.p2_pro ? l.height / 2 : l.height - data_rows;
+	const float offset = 6000;
+	float cx = 0.4f + 0.15f * sinf(n * 0.02f), cy = 0.6f + 0.1f * (cosf(n * 0.02f) - 1);
+	uint32_t rnd = 12345 + n * 2654435761u;
+	for (int y = 0; y < h; ++y) {
+		for (int x = 0; x < w; ++x) {
+			float dx = (x - w * cx) / w, dy = (y - h * cy) / h;
+			float t = 22 + 6.0f * y / h + 15 * expf(-(dx * dx + dy * dy) * 20);
+			if (abs(x - w * 3 / 4) < 3 && abs(y - h / 4) < 3)
+				t = 58;
+			if (shutter)
+				t = 25;
+			t += (next_random(&rnd) & 0xFF) / 255.0f * 0.2f - 0.1f;
+			if (l.p2_pro) /* Kelvin * 64, InfiFrame shifts it by 2 and the table is / 16. */
+				frame[y * w + x] = (t + 273.15f) * 64;
+			else frame[y * w + x] = offset + (t * t - 625) / 0.5f;
+		}
+	}
+	if (l.p2_pro)
+		return;
+
+	uint16_t *s1 = frame + w * h;
+	uint16_t *s2 = s1 + ((w == 640 || w == 384) ? w * 3 : w);
+	float fpa_off = 7800, fpa_div = 36.0, corr = 0;
+	if (w == 640) {
+		fpa_off = 6867;
+		fpa_div = 33.8;
+	} else if (w == 256) {
+		fpa_off = 8617;
+		fpa_div = 37.682;
+	}
+	const float t_fpa = 30;
+	s1[1] = fpa_off - (t_fpa - 20) * fpa_div;
+	corr = roundf((w == 256) ? 170 : 390 - t_fpa * 7.05f);
+	s2[0] = offset + corr; /* So the table offset works out to offset. */
+	s2[1] = (25 + 273.15f) * 10; /* Shutter. */
+	s2[2] = (32 + 273.15f) * 10; /* Core. */
+	if (l.raw_sensor)
+		s2[1] = 25 / 0.0625f; /* Raw sensors have it in 1/16ths, and no core temperature. */
+	put_float(s2 + 3, 1.0f); /* cal_01 */
+	put_float(s2 + 5, 0.0f); /* cal_02 */
+	put_float(s2 + 7, 0.0f); /* cal_03 */
+	put_float(s2 + 9, 0.0f); /* cal_04 */
+	put_float(s2 + 11, 0.5f); /* cal_05 */
+	put_float(s2 + 127, 0.0f); /* Correction. */
+	put_float(s2 + 129, 25.0f); /* Reflected. */
+	put_float(s2 + 131, 25.0f); /* Air. */
+	put_float(s2 + 133, 0.5f); /* Humidity. */
+	put_float(s2 + 135, 1.0f); /* Emissivity. */
+	put_float(s2 + 137, 1.0f); /* Distance. */
+	if (l.raw_sensor)
+		return; /* The stats get calculated from the frame. */
+
+	/* What the camera would say about the frame. */
+	uint16_t max = 0, min = UINT16_MAX, max_x = 0, max_y = 0, min_x = 0, min_y = 0;
+	uint64_t sum = 0;
+	for (int y = 0; y < h; ++y) {
+		for (int x = 0; x < w; ++x) {
+			uint16_t v = frame[y * w + x];
+			if (v > max) {
+				max = v;
+				max_x = x;
+				max_y = y;
+			}
+			if (v < min) {
+				min = v;
+				min_x = x;
+				min_y = y;
+			}
+			sum += v;
+		}
+	}
+	s1[2] = max_x;
+	s1[3] = max_y;
+	s1[4] = max;
+	s1[5] = min_x;
+	s1[6] = min_y;
+	s1[7] = min;
+	s1[8] = sum / (w * h);
+	s1[12] = frame[h / 2 * w + w / 2];
+}
+
+SimSource::~SimSource() {
+	disconnect();
+}
+
+int SimSource::open(const char *name) {
+	disconnect();
+	const Layout *l = find_layout(name);
+	if (l == NULL)
+		return 1;
+	if (pthread_mutex_init(&mutex, NULL))
+		return 2;
+	pthread_condattr_t attr; /* The frame times are CLOCK_MONOTONIC deadlines. */
+	pthread_condattr_init(&attr);
+	pthread_condattr_setclock(&attr, CLOCK_MONOTONIC);
+	int err = pthread_cond_init(&cond, &attr);
+	pthread_condattr_destroy(&attr);
+	if (err) {
+		pthread_mutex_destroy(&mutex);
+		return 2;
+	}
+	layout = l;
+	width = l->width;
+	height = l->height;
+	raw_sensor = l->raw_sensor;
+	p2_pro = l->p2_pro;
+	dead_pixels = raw_sensor ? 24 : 0;
+	pos = shutters = skipped = 0;
+	return 0;
+}
+
+void SimSource::disconnect() {
+	stream_stop();
+	if (layout == NULL)
+		return;
+	pthread_cond_destroy(&cond);
+	pthread_mutex_destroy(&mutex);
+	out.clear();
+	out.shrink_to_fit();
+	pattern.clear();
+	pattern.shrink_to_fit();
+	dead.clear();
+	layout = NULL;
+	raw_sensor = p2_pro = false;
+	width = height = 0;
+}
+
+int SimSource::stream_start(uvc_frame_callback_t *cb, void *user_ptr) {
+	if (layout == NULL || streaming)
+		return 1;
+	size_t len = (size_t) width * height;
+	out.resize(len);
+	/* A sensor that hasn't been calibrated has every pixel a bit off and stripes across, both
+	 *   stay the same between frames. Made up again each time, so a different dead_pixels works.
+	 */
+	pattern.clear();
+	dead.clear();
+	if (raw_sensor) {
+		size_t image = (size_t) width * (height - data_rows);
+		uint32_t rnd = 54321;
+		pattern.resize(image);
+		for (size_t i = 0; i < image; ++i)
+			pattern[i] = (int) (next_random(&rnd) % 201) - 100 + (int) (i % width % 7) * 6 - 18;
+		for (uint32_t i = 0; i < dead_pixels && i < image; ++i)
+			dead.push_back(((size_t) next_random(&rnd) << 16 | next_random(&rnd)) % image);
+	}
+	callback = cb;
+	callback_arg = user_ptr;
+	stopping = false;
+	done = false;
+	shutter_until = 0;
+	pos = skipped = 0;
+	if (pthread_create(&thread, NULL, sim_thread, this))
+		return 2;
+	streaming = true;
+	return 0;
+}
+
+void SimSource::stream_stop() {
+	if (!streaming)
+		return;
+	pthread_mutex_lock(&mutex);
+	stopping = true;
+	pthread_cond_signal(&cond);
+	pthread_mutex_unlock(&mutex);
+	pthread_join(thread, NULL);
+	streaming = false;
+}
+
+int SimSource::set_zoom_abs(uint16_t val) {
+	if (layout == NULL)
+		return 1;
+	if (val == cmd_shutter) {
+		pthread_mutex_lock(&mutex);
+		shutter_until = monotonic_ns() + (uint64_t) shutter_ms * 1000000;
+		++shutters;
+		pthread_mutex_unlock(&mutex);
+	}
+	return 0;
+}
+
+/* The frame as it comes over USB, in out. */
+void SimSource::make_frame(uint32_t n, bool shutter) {
+	synth(*layout, out.data(), n, shutter);
+	if (p2_pro) {
+		/* The thermal half goes below the picture the camera makes itself, which is YUYV that
+		 *   InfiCam doesn't look at, so it's just a gray picture of the temperatures.
+		 */
+		size_t half = (size_t) width * height / 2;
+		memmove(out.data() + half, out.data(), half * sizeof(uint16_t));
+		for (size_t i = 0; i < half; ++i) {
+			int y = (out[half + i] / 64 - 273 - 15) * 8;
+			out[i] = 0x8000 | ((y < 0) ? 0 : (y > 255) ? 255 : y);
+		}
+	}
+	if (raw_sensor) {
+		for (size_t i = 0; i < pattern.size(); ++i)
+			out[i] += pattern[i];
+		for (uint32_t i : dead)
+			out[i] = dead_value;
+	}
+}
+
+/* Frames are due at a fixed rate from the first one, if the callback takes longer than that the
+ *   ones that weren't made in time are skipped like a camera would, so frame.sequence has gaps.
+ */
+void *SimSource::sim_thread(void *arg) {
+	SimSource *s = (SimSource *) arg;
+	uvc_frame_t frame;
+	memset(&frame, 0, sizeof(frame));
+	frame.width = s->width;
+	frame.height = s->height;
+	frame.step = s->width * 2;
+	frame.data_bytes = (size_t) s->width * s->height * 2;
+	frame.data = s->out.data();
+	uint64_t interval = (s->fps > 0) ? 1000000000 / s->fps : 0;
+	uint64_t shutter_interval = (uint64_t) s->shutter_interval_ms * 1000000;
+	uint64_t start = monotonic_ns(), next_shutter = start + shutter_interval;
+
+	pthread_mutex_lock(&s->mutex);
+	while (!s->stopping) {
+		uint32_t n = s->pos;
+		if (s->max_frames && n >= s->max_frames)
+			break;
+		uint64_t now = monotonic_ns();
+		if (interval) {
+			uint64_t due = start + n * interval;
+			if (now < due) {
+				struct timespec t;
+				t.tv_sec = due / 1000000000;
+				t.tv_nsec = due % 1000000000;
+				pthread_cond_timedwait(&s->cond, &s->mutex, &t);
+				continue; /* Could have been stopped. */
+			}
+			if (now - due >= interval) {
+				n = (now - start) / interval;
+				s->skipped += n - s->pos;
+			}
+			if (s->max_frames && n >= s->max_frames)
+				break;
+		}
+		if (shutter_interval && now >= next_shutter) {
+			s->shutter_until = now + (uint64_t) s->shutter_ms * 1000000;
+			++s->shutters;
+			next_shutter = now + shutter_interval;
+		}
+		bool shutter = now < s->shutter_until;
+		s->pos = n + 1;
+		pthread_mutex_unlock(&s->mutex);
+
+		s->make_frame(n, shutter);
+		frame.sequence = n;
+		s->callback(&frame, s->callback_arg);
+
+		pthread_mutex_lock(&s->mutex);
+	}
+	s->done = !s->stopping;
+	pthread_mutex_unlock(&s->mutex);
+	return NULL;
+}
@@ -0,0 +1,88 @@
+#ifndef __SIMSOURCE_H__
+#define __SIMSOURCE_H__
+
+#include "FrameSource.h"
+#include <cstdint>
+#include <vector>
+#include <pthread.h>
+
+/* A camera that isn't there, for running the whole pipeline on a host without one: it makes up
+ *   frames the way the Infiray cameras send them, give it to InfiCam.connect_source() after
+ *   open(). The scene is a room with a warm blob slowly going around and a small hot spot, with
+ *   some noise, and data rows that make InfiFrame come up with 21C to 58C or so.
+ *
+ * The layouts are the cameras as InfiCam knows them: 640, 384, 256 and 240 wide with the data
+ *   rows below the image, 256raw for the T2S+ A2 kind that sends the sensor values as they are
+ *   (set raw_sensor on InfiCam, and calibrate() it), and p2pro, twice as high with the thermal
+ *   half at the bottom. The raw sensor ones have a fixed pattern on top of the image and
+ *   dead_pixels stuck low, which is what the calibration has to take out. ReplaySource guesses
+ *   the size of a dump from these too.
+ *
+ * CMD_SHUTTER closes the shutter for shutter_ms, the frames are flat and at the shutter
+ *   temperature then. With shutter_interval_ms the camera also does that by itself, like the real
+ *   ones do every now and then. Everything else sent to the camera is ignored.
+ *
+ * Frames come from a thread of our own at fps, or as fast as the callback returns with fps 0.
+ *   The settings are read by stream_start(), change them before.
+ */
+class SimSource : public FrameSource {
+public:
+	struct Layout {
+		const char *name;
+		uint16_t width, height; /* As the camera sends them, including the data rows. */
+		bool raw_sensor, p2_pro;
+	};
+	static const Layout layouts[];
+	static const int layout_count;
+
+	bool raw_sensor = false, p2_pro = false; /* From the layout, set those on InfiCam. */
+	float fps = 25;
+	uint32_t max_frames = 0; /* Then finished() is true, 0 for no end. */
+	uint32_t shutter_ms = 800; /* InfiCam waits 500ms after closing it to calibrate. */
+	uint32_t shutter_interval_ms = 0;
+	uint32_t dead_pixels = 0; /* Raw sensor only, open() makes it 24 for those. */
+
+	~SimSource();
+
+	static const Layout *find_layout(const char *name); /* NULL if there's no such one. */
+
+	/* Returns 0 on success, 1 if there's no such layout, 2 if out of memory. */
+	int open(const char *layout);
+	void disconnect() override;
+
+	int stream_start(uvc_frame_callback_t *cb, void *user_ptr) override; /* Errors if streaming. */
+	void stream_stop() override;
+	int set_zoom_abs(uint16_t val) override;
+
+	uint32_t frame_number() { return pos; } /* Of the next frame that will be sent. */
+	uint32_t shutter_count() { return shutters; } /* Times the shutter closed. */
+	uint32_t skip_count() { return skipped; } /* Frames the callback was too slow for. */
+	bool finished() { return done; }
+
+	/* Frame n of the scene like InfiFrame sees it, which for the P2 Pro is only the thermal half
+	 *   (InfiCam leaves out the rest), with the data rows, but without the fixed pattern and dead
+	 *   pixels of a raw sensor. Frame is width * height of the layout.
+	 */
+	static void synth(const Layout &l, uint16_t *frame, uint32_t n, bool shutter = false);
+
+private:
+	const Layout *layout = NULL;
+	std::vector<uint16_t> out; /* What goes to the callback. */
+	std::vector<int16_t> pattern; /* Fixed pattern of a raw sensor, per pixel. */
+	std::vector<uint32_t> dead; /* Indices of the dead pixels. */
+
+	uvc_frame_callback_t *callback = NULL;
+	void *callback_arg = NULL;
+	pthread_t thread;
+	pthread_mutex_t mutex;
+	pthread_cond_t cond;
+	bool streaming = false, stopping = false; /* Stopping and shutter_until guarded by mutex. */
+	uint64_t shutter_until = 0;
+	volatile bool done = false;
+	volatile uint32_t pos = 0, shutters = 0, skipped = 0;
+
+	void make_frame(uint32_t n, bool shutter);
+	static void *sim_thread(void *arg);
+};
+
+#endif /* __SIMSOURCE_H__ */
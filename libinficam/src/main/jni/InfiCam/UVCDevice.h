@@ -1,6 +1,7 @@
 #ifndef __UVCDEVICE_H__
 #define __UVCDEVICE_H__
 
+#include "FrameSource.h"
 #include <libusb.h>
 #include <libuvc.h>
 #include <pthread.h>
@@ -9,7 +10,7 @@
 /* A wrapper for libuvc and libusb because connecting to an uvc device on Android gets rather
  *   involved since we need to provide our own thread for handling libusb events, etc.
  */
-class UVCDevice {
+class UVCDevice : public FrameSource {
 	int usb_fd = -1;
 	libusb_context *usb_ctx = NULL;
 	pthread_t usb_thread;
@@ -23,19 +24,19 @@ class UVCDevice {
 	static void *usb_handle_events(void *arg);
 
 public:
-	uint16_t width, height;
 	uvc_frame_format format = UVC_FRAME_FORMAT_ANY;
 
 	~UVCDevice();
 
 	int connect(int fd, bool p2_pro); /* Closes the FD on disconnect. */
-	void disconnect(); /* Opening a new connection will close the previous one if it exists. */
+	/* Opening a new connection will close the previous one if it exists. */
+	void disconnect() override;
 
 	/* The callback gets called from a dedicated thread (it's ok to block in the callback). */
-	int stream_start(uvc_frame_callback_t *cb, void *user_ptr); /* Errors if already streaming. */
-	void stream_stop(); /* Attempting to stop stream is okay even when no stream. */
+	int stream_start(uvc_frame_callback_t *cb, void *user_ptr) override; /* Errors if streaming. */
+	void stream_stop() override; /* Attempting to stop stream is okay even when no stream. */
 
-	int set_zoom_abs(uint16_t val);
+	int set_zoom_abs(uint16_t val) override;
 };
 
 #endif /* __UVCDEVICE_H__ */
@@ -0,0 +1,185 @@
+/* Benchmarks the InfiFrame kernels on a Linux host, for every camera layout on synthetic frames
+ *   or on a frame from a recording, and compares the results to a baseline so a change that makes
+ *   one of them slower doesn't go unnoticed. See the Makefile next to this for building it.
+ *
+ * The baseline is described in timing.h, write one (-w) before changing things and check against
+ *   it (-b) after.
+ */
+
+#include "InfiFrame.h"
+#include "ReplaySource.h"
+#include "SimSource.h"
+#include "timing.h"
+
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <string>
+#include <vector>
+#include <algorithm>
+#include <unistd.h>
+
+/* Data for the recorded frame, gotten from the first frame a ReplaySource plays. */
+struct Recorded {
+	ReplaySource src;
+	std::vector<uint16_t> frame;
+	InfiRecorder::Params params;
+	bool have_params = false, got = false;
+};
+
+static void recorded_callback(uvc_frame_t *frame, void *user_ptr) {
+	Recorded *r = (Recorded *) user_ptr;
+	if (r->got)
+		return;
+	size_t len = (size_t) r->src.width * r->src.height;
+	if (frame->data_bytes < len * sizeof(uint16_t))
+		return;
+	r->frame.assign((uint16_t *) frame->data, (uint16_t *) frame->data + len);
+	if (r->src.p2_pro) /* Like InfiCam does, the thermal half goes first. */
+		memmove(r->frame.data(), r->frame.data() + len / 2, len / 2 * sizeof(uint16_t));
+	bool changed;
+	const InfiRecorder::Params *p = r->src.frame_params(&changed);
+	if (p != NULL) {
+		r->params = *p;
+		r->have_params = true;
+	}
+	r->got = true;
+}
+
+static double min_time = 0.2; /* Seconds per kernel, set by -t. */
+
+static void bench(const char *name, InfiFrame &infi, uint16_t *frame,
+				  std::vector<Result> &results) {
+	size_t pixels = (size_t) infi.width * infi.height;
+	std::vector<float> temp(pixels);
+	std::vector<uint32_t> rgb(pixels);
+	for (int i = 0; i < InfiFrame::palette_len; ++i) {
+		uint32_t v = i * 255 / (InfiFrame::palette_len - 1);
+		infi.palette[i] = 0xFF000000 | v << 16 | v << 8 | v;
+	}
+	InfiRecorder::Params params; /* read_params() may change them, put them back every time. */
+	params.from(infi);
+	infi.update_table(frame);
+	infi.temp(frame, temp.data());
+	float min = infi.temp(infi.temp_min), max = infi.temp(infi.temp_max);
+	if (!(max > min)) { /* The P2 Pro doesn't say, and the frame may be odd. */
+		min = *std::min_element(temp.begin(), temp.end());
+		max = *std::max_element(temp.begin(), temp.end());
+	}
+
+	struct {
+		const char *kernel;
+		double ns;
+	} k[] = {
+		{ "read_params", measure([&] {
+			infi.read_params(frame);
+			params.to(infi);
+		}, min_time) },
+		{ "update", measure([&] { infi.update(frame); }, min_time) },
+		{ "update_table", measure([&] { infi.update_table(frame); }, min_time) },
+		{ "temp", measure([&] { infi.temp(frame, temp.data()); }, min_time) },
+		{ "palette_raw", measure([&] {
+			infi.palette_appy(frame, rgb.data(), min, max);
+		}, min_time) },
+		{ "palette_temp", measure([&] {
+			infi.palette_appy(temp.data(), rgb.data(), min, max);
+		}, min_time) },
+	};
+	for (auto &r : k)
+		results.push_back({ name, r.kernel, r.ns, r.ns / pixels });
+	fprintf(stderr, "%s %dx%d: %.2f..%.2f C\n", name, infi.width, infi.height, min, max);
+}
+
+static void usage(const char *name) {
+	fprintf(stderr,
+			"Usage: %s [options]\n"
+			"  -l LAYOUT  only this layout (640, 384, 256, 240, 256raw, p2pro), default all\n"
+			"  -f FILE    also a frame from a recording or dump (see replay)\n"
+			"  -t SEC     time per kernel, default 0.2\n"
+			"  -w FILE    write the results as baseline to FILE\n"
+			"  -b FILE    compare to the baseline in FILE, exit 1 if something got slower\n"
+			"  -x PCT     how much slower counts, default 15\n", name);
+}
+
+int main(int argc, char **argv) {
+	const char *only = NULL, *file = NULL, *write_path = NULL, *base_path = NULL;
+	double tolerance = 15;
+	int opt;
+	while ((opt = getopt(argc, argv, "l:f:t:w:b:x:")) != -1) {
+		switch (opt) {
+			case 'l': only = optarg; break;
+			case 'f': file = optarg; break;
+			case 't': min_time = atof(optarg); break;
+			case 'w': write_path = optarg; break;
+			case 'b': base_path = optarg; break;
+			case 'x': tolerance = atof(optarg); break;
+			default:
+				usage(argv[0]);
+				return 1;
+		}
+	}
+	if (optind != argc) {
+		usage(argv[0]);
+		return 1;
+	}
+
+	static InfiFrame infi; /* It's large. */
+	std::vector<Result> results;
+	for (int i = 0; i < SimSource::layout_count; ++i) {
+		const SimSource::Layout &l = SimSource::layouts[i];
+		if (only != NULL && strcmp(only, l.name))
+			continue;
+		std::vector<uint16_t> frame((size_t) l.width * l.height);
+		SimSource::synth(l, frame.data(), 0);
+		infi = InfiFrame();
+		infi.raw_sensor = l.raw_sensor;
+		infi.p2_pro = l.p2_pro;
+		if (infi.init(l.width, l.height)) {
+			fprintf(stderr, "Layout %s not supported\n", l.name);
+			return 1;
+		}
+		infi.read_params(frame.data());
+		bench(l.name, infi, frame.data(), results);
+	}
+
+	if (file != NULL) {
+		static Recorded r;
+		if (r.src.open(file)) {
+			fprintf(stderr, "Opening %s failed\n", file);
+			return 1;
+		}
+		r.src.set_pacing(ReplaySource::PACE_FAST);
+		if (r.src.stream_start(recorded_callback, &r)) {
+			fprintf(stderr, "Can't play %s\n", file);
+			return 1;
+		}
+		while (!r.got && !r.src.finished())
+			usleep(1000);
+		r.src.stream_stop();
+		if (!r.got) {
+			fprintf(stderr, "No frames in %s\n", file);
+			return 1;
+		}
+		infi = InfiFrame();
+		infi.raw_sensor = r.src.raw_sensor;
+		infi.p2_pro = r.src.p2_pro;
+		if (infi.init(r.src.width, r.src.height)) {
+			fprintf(stderr, "Frames of %s not supported\n", file);
+			return 1;
+		}
+		infi.read_params(r.frame.data());
+		if (r.have_params)
+			r.params.to(infi);
+		bench("recorded", infi, r.frame.data(), results);
+		r.src.disconnect();
+	}
+
+	print_results(results);
+	if (write_path != NULL && write_baseline(write_path, "InfiFrame kernel baseline of bench",
+											 results))
+		return 1;
+	if (base_path != NULL)
+		return compare_baseline(base_path, results, tolerance);
+	return 0;
+}
@@ -0,0 +1,504 @@
+/* Checks the frame processing against a corpus of golden frames on a Linux host: every golden
+ *   frame is a frame as InfiFrame gets it with what the code made of it when it was added, so a
+ *   change that's supposed to only make things faster can be checked to give exactly the same
+ *   results for every camera without having them around. It times the kernels too, against a
+ *   baseline like bench (see timing.h). See the Makefile next to this for building it.
+ *
+ * A golden frame is one NAME.golden file, gzip compressed (uncompressed works too), little
+ *   endian:
+ *
+ *   char magic[8] = "INFIGLD1"
+ *   uint32_t width, height     of the frame as InfiFrame.init() gets it, data rows included
+ *   uint32_t flags             FLAG_*
+ *   uint32_t stats_len         size of Stats (60)
+ *   InfiRecorder::Params       set after read_params(), as for a recording
+ *   uint16_t frame[width * height]
+ *   Stats                      expected, see below
+ *   float temp[w * h]          expected InfiFrame.temp(), w and h as InfiFrame.init() sets them
+ *   uint16_t palette_temp[w * h]  expected palette entries picked by palette_appy() of temp
+ *   uint16_t palette_raw[w * h]   same for palette_appy() of the frame
+ *
+ * Both palette_appy() get the range InfiAGC comes up with for the frame, starting from reset().
+ *   For the P2 Pro the frame is like InfiCam passes it on, with the thermal half first. Raw
+ *   sensor frames should be calibrated ones, those from .irad recordings are.
+ */
+
+#include "InfiFrame.h"
+#include "InfiAGC.h"
+#include "InfiRecorder.h"
+#include "ReplaySource.h"
+#include "SimSource.h"
+#include "timing.h"
+
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <cmath>
+#include <string>
+#include <vector>
+#include <algorithm>
+#include <unistd.h>
+#include <dirent.h>
+#include <zlib.h>
+
+static const char magic[8] = { 'I', 'N', 'F', 'I', 'G', 'L', 'D', '1' };
+enum { FLAG_RAW_SENSOR = 1, FLAG_P2_PRO = 2 };
+
+struct Stats { /* 60 bytes. */
+	float temp_fpa, temp_shutter, temp_core; /* From InfiFrame.update(). */
+	uint16_t temp_min, temp_min_x, temp_min_y, temp_max, temp_max_x, temp_max_y;
+	uint16_t temp_avg, temp_center;
+	float range_min, range_max, area_min, area_max; /* From InfiAGC.update(). */
+	int32_t area_min_x, area_min_y, area_max_x, area_max_y;
+};
+
+struct Golden {
+	uint32_t width = 0, height = 0, flags = 0;
+	InfiRecorder::Params params;
+	std::vector<uint16_t> frame;
+	Stats stats;
+	std::vector<float> temp;
+	std::vector<uint16_t> palette_temp, palette_raw;
+};
+
+static InfiFrame infi; /* It's large. */
+static InfiAGC agc;
+static double min_time = 0.1; /* Seconds per kernel, set by -t. */
+
+/* Sets up infi for g, returns 0 on success. */
+static int prepare(const Golden &g) {
+	infi = InfiFrame();
+	infi.raw_sensor = g.flags & FLAG_RAW_SENSOR;
+	infi.p2_pro = g.flags & FLAG_P2_PRO;
+	if (infi.init(g.width, g.height))
+		return 1;
+	/* The palette is just the index, so every entry that gets picked differently shows. */
+	for (int i = 0; i < InfiFrame::palette_len; ++i)
+		infi.palette[i] = i;
+	return 0;
+}
+
+/* What the frame processing makes of in.frame, into out, like InfiCam::uvc_callback(). */
+static void process(Golden &in, Golden &out) {
+	uint16_t *frame = in.frame.data();
+	size_t len = (size_t) infi.width * infi.height;
+	infi.read_params(frame);
+	in.params.to(infi);
+	infi.update_table(frame);
+	Stats &s = out.stats;
+	memset(&s, 0, sizeof(s));
+	s.temp_fpa = infi.temp_fpa;
+	s.temp_shutter = infi.temp_shutter;
+	s.temp_core = infi.temp_core;
+	s.temp_min = infi.temp_min;
+	s.temp_min_x = infi.temp_min_x;
+	s.temp_min_y = infi.temp_min_y;
+	s.temp_max = infi.temp_max;
+	s.temp_max_x = infi.temp_max_x;
+	s.temp_max_y = infi.temp_max_y;
+	s.temp_avg = infi.temp_avg;
+	s.temp_center = infi.temp_center;
+
+	out.temp.resize(len);
+	infi.temp(frame, out.temp.data());
+	agc = InfiAGC();
+	agc.update(out.temp.data(), infi.width, infi.height, 0);
+	s.range_min = agc.min;
+	s.range_max = agc.max;
+	s.area_min = agc.area_min;
+	s.area_max = agc.area_max;
+	s.area_min_x = agc.area_min_x;
+	s.area_min_y = agc.area_min_y;
+	s.area_max_x = agc.area_max_x;
+	s.area_max_y = agc.area_max_y;
+
+	std::vector<uint32_t> rgba(len);
+	infi.palette_appy(out.temp.data(), rgba.data(), agc.min, agc.max);
+	out.palette_temp.assign(rgba.begin(), rgba.end());
+	infi.palette_appy(frame, rgba.data(), agc.min, agc.max);
+	out.palette_raw.assign(rgba.begin(), rgba.end());
+}
+
+static void time_kernels(const std::string &name, Golden &g, std::vector<Result> &results) {
+	uint16_t *frame = g.frame.data();
+	size_t len = (size_t) infi.width * infi.height;
+	std::vector<float> temp(len);
+	std::vector<uint32_t> rgba(len);
+	infi.update_table(frame);
+	infi.temp(frame, temp.data());
+	float min = g.stats.range_min, max = g.stats.range_max;
+	struct {
+		const char *kernel;
+		double ns;
+	} k[] = {
+		{ "read_params", measure([&] {
+			infi.read_params(frame);
+			g.params.to(infi);
+		}, min_time) },
+		{ "update", measure([&] { infi.update(frame); }, min_time) },
+		{ "update_table", measure([&] { infi.update_table(frame); }, min_time) },
+		{ "temp", measure([&] { infi.temp(frame, temp.data()); }, min_time) },
+		{ "agc", measure([&] {
+			agc.update(temp.data(), infi.width, infi.height, 0.04f);
+		}, min_time) },
+		{ "palette_raw", measure([&] {
+			infi.palette_appy(frame, rgba.data(), min, max);
+		}, min_time) },
+		{ "palette_temp", measure([&] {
+			infi.palette_appy(temp.data(), rgba.data(), min, max);
+		}, min_time) },
+	};
+	for (auto &r : k)
+		results.push_back({ name, r.kernel, r.ns, r.ns / len });
+}
+
+static bool gz_read(gzFile f, void *buf, size_t len) {
+	return gzread(f, buf, len) == (int) len;
+}
+
+static bool gz_write(gzFile f, const void *buf, size_t len) {
+	return gzwrite(f, buf, len) == (int) len;
+}
+
+/* Returns 0 on success, 1 if it can't be read, 2 if it makes no sense. */
+static int load(const char *path, Golden &g) {
+	gzFile f = gzopen(path, "rb");
+	if (f == NULL)
+		return 1;
+	char m[8];
+	uint32_t hdr[4];
+	int ret = 0;
+	if (!gz_read(f, m, sizeof(m)) || !gz_read(f, hdr, sizeof(hdr)))
+		ret = 1;
+	else if (memcmp(m, magic, sizeof(m)) || hdr[3] != sizeof(Stats))
+		ret = 2;
+	if (ret == 0) {
+		g.width = hdr[0];
+		g.height = hdr[1];
+		g.flags = hdr[2];
+		if (!gz_read(f, &g.params, sizeof(g.params)))
+			ret = 1;
+	}
+	if (ret == 0 && prepare(g))
+		ret = 2;
+	if (ret == 0) {
+		size_t len = (size_t) infi.width * infi.height;
+		g.frame.resize((size_t) g.width * g.height);
+		g.temp.resize(len);
+		g.palette_temp.resize(len);
+		g.palette_raw.resize(len);
+		if (!gz_read(f, g.frame.data(), g.frame.size() * sizeof(uint16_t)) ||
+				!gz_read(f, &g.stats, sizeof(g.stats)) ||
+				!gz_read(f, g.temp.data(), len * sizeof(float)) ||
+				!gz_read(f, g.palette_temp.data(), len * sizeof(uint16_t)) ||
+				!gz_read(f, g.palette_raw.data(), len * sizeof(uint16_t)))
+			ret = 1;
+	}
+	gzclose(f);
+	return ret;
+}
+
+/* Returns 0 on success. */
+static int save(const char *path, const Golden &g) {
+	gzFile f = gzopen(path, "wb9");
+	if (f == NULL)
+		return 1;
+	uint32_t hdr[4] = { g.width, g.height, g.flags, sizeof(Stats) };
+	size_t len = g.temp.size();
+	bool ok = gz_write(f, magic, sizeof(magic)) && gz_write(f, hdr, sizeof(hdr)) &&
+			gz_write(f, &g.params, sizeof(g.params)) &&
+			gz_write(f, g.frame.data(), g.frame.size() * sizeof(uint16_t)) &&
+			gz_write(f, &g.stats, sizeof(g.stats)) &&
+			gz_write(f, g.temp.data(), len * sizeof(float)) &&
+			gz_write(f, g.palette_temp.data(), len * sizeof(uint16_t)) &&
+			gz_write(f, g.palette_raw.data(), len * sizeof(uint16_t));
+	return (gzclose(f) != Z_OK || !ok);
+}
+
+/* Same if bit for bit the same or within tolerance. */
+static bool same(float a, float b, float tolerance) {
+	return !memcmp(&a, &b, sizeof(a)) || fabsf(a - b) <= tolerance ||
+		   (std::isnan(a) && std::isnan(b));
+}
+
+/* Prints what's different, returns how many things are. */
+static int compare(const char *name, const Golden &want, const Golden &got, float tolerance) {
+	int bad = 0;
+	const Stats &w = want.stats, &g = got.stats;
+	struct {
+		const char *field;
+		float want, got;
+	} floats[] = {
+		{ "temp_fpa", w.temp_fpa, g.temp_fpa },
+		{ "temp_shutter", w.temp_shutter, g.temp_shutter },
+		{ "temp_core", w.temp_core, g.temp_core },
+		{ "range_min", w.range_min, g.range_min },
+		{ "range_max", w.range_max, g.range_max },
+		{ "area_min", w.area_min, g.area_min },
+		{ "area_max", w.area_max, g.area_max },
+	};
+	for (auto &f : floats) {
+		if (!same(f.want, f.got, tolerance)) {
+			printf("%s: %s %.6f -> %.6f\n", name, f.field, f.want, f.got);
+			++bad;
+		}
+	}
+	struct {
+		const char *field;
+		int want, got;
+	} ints[] = {
+		{ "temp_min", w.temp_min, g.temp_min },
+		{ "temp_min_x", w.temp_min_x, g.temp_min_x },
+		{ "temp_min_y", w.temp_min_y, g.temp_min_y },
+		{ "temp_max", w.temp_max, g.temp_max },
+		{ "temp_max_x", w.temp_max_x, g.temp_max_x },
+		{ "temp_max_y", w.temp_max_y, g.temp_max_y },
+		{ "temp_avg", w.temp_avg, g.temp_avg },
+		{ "temp_center", w.temp_center, g.temp_center },
+		{ "area_min_x", w.area_min_x, g.area_min_x },
+		{ "area_min_y", w.area_min_y, g.area_min_y },
+		{ "area_max_x", w.area_max_x, g.area_max_x },
+		{ "area_max_y", w.area_max_y, g.area_max_y },
+	};
+	for (auto &i : ints) {
+		if (i.want != i.got) {
+			printf("%s: %s %d -> %d\n", name, i.field, i.want, i.got);
+			++bad;
+		}
+	}
+
+	size_t len = want.temp.size(), diff = 0, worst = 0;
+	float max_diff = 0;
+	for (size_t i = 0; i < len; ++i) {
+		if (same(want.temp[i], got.temp[i], tolerance))
+			continue;
+		float d = fabsf(want.temp[i] - got.temp[i]);
+		if (diff++ == 0 || d > max_diff || std::isnan(d)) {
+			max_diff = d;
+			worst = i;
+		}
+	}
+	if (diff) {
+		printf("%s: temp %zu of %zu differ, most %.6f C at %zu,%zu\n", name, diff, len,
+			   max_diff, worst % infi.width, worst / infi.width);
+		++bad;
+	}
+
+	/* With a tolerance the range can be a bit off too, so the entry next to it is fine. */
+	int palette_tolerance = (tolerance > 0) ? 1 : 0;
+	struct {
+		const char *kernel;
+		const std::vector<uint16_t> &want, &got;
+	} palettes[] = {
+		{ "palette_temp", want.palette_temp, got.palette_temp },
+		{ "palette_raw", want.palette_raw, got.palette_raw },
+	};
+	for (auto &p : palettes) {
+		diff = 0;
+		for (size_t i = 0; i < len; ++i) {
+			if (abs(p.want[i] - p.got[i]) > palette_tolerance) {
+				if (diff++ == 0)
+					worst = i;
+			}
+		}
+		if (diff) {
+			printf("%s: %s %zu of %zu differ, first at %zu,%zu\n", name, p.kernel, diff, len,
+				   worst % infi.width, worst / infi.width);
+			++bad;
+		}
+	}
+	return bad;
+}
+
+/* Frame n from a recording or dump, gotten like bench does. */
+struct Recorded {
+	ReplaySource src;
+	Golden *g;
+	bool have_params = false, got = false;
+};
+
+static void recorded_callback(uvc_frame_t *frame, void *user_ptr) {
+	Recorded *r = (Recorded *) user_ptr;
+	if (r->got)
+		return;
+	size_t len = (size_t) r->src.width * r->src.height;
+	if (frame->data_bytes < len * sizeof(uint16_t))
+		return;
+	r->g->frame.assign((uint16_t *) frame->data, (uint16_t *) frame->data + len);
+	if (r->src.p2_pro) /* Like InfiCam does, the thermal half goes first. */
+		memmove(r->g->frame.data(), r->g->frame.data() + len / 2, len / 2 * sizeof(uint16_t));
+	bool changed;
+	const InfiRecorder::Params *p = r->src.frame_params(&changed);
+	if (p != NULL) {
+		r->g->params = *p;
+		r->have_params = true;
+	}
+	r->got = true;
+}
+
+/* Returns 0 on success. */
+static int add(const char *path, const char *layout, const char *file, uint32_t n,
+			   bool raw_sensor, bool p2_pro, Golden &g) {
+	bool have_params = false;
+	if (layout != NULL) {
+		const SimSource::Layout *l = SimSource::find_layout(layout);
+		if (l == NULL) {
+			fprintf(stderr, "No layout %s\n", layout);
+			return 1;
+		}
+		g.width = l->width;
+		g.height = l->height;
+		g.flags = (l->raw_sensor ? FLAG_RAW_SENSOR : 0) | (l->p2_pro ? FLAG_P2_PRO : 0);
+		g.frame.resize((size_t) g.width * g.height);
+		SimSource::synth(*l, g.frame.data(), n);
+	} else {
+		static Recorded r;
+		r.g = &g;
+		if (r.src.open(file)) {
+			fprintf(stderr, "Opening %s failed\n", file);
+			return 1;
+		}
+		r.src.set_pacing(ReplaySource::PACE_FAST);
+		r.src.seek(n);
+		if (r.src.stream_start(recorded_callback, &r)) {
+			fprintf(stderr, "Can't play %s\n", file);
+			return 1;
+		}
+		while (!r.got && !r.src.finished())
+			usleep(1000);
+		r.src.stream_stop();
+		if (!r.got) {
+			fprintf(stderr, "No frame %u in %s\n", n, file);
+			return 1;
+		}
+		g.width = r.src.width;
+		g.height = r.src.height;
+		raw_sensor = raw_sensor || r.src.raw_sensor;
+		p2_pro = p2_pro || r.src.p2_pro;
+		g.flags = (raw_sensor ? FLAG_RAW_SENSOR : 0) | (p2_pro ? FLAG_P2_PRO : 0);
+		have_params = r.have_params;
+		r.src.disconnect();
+	}
+	if (prepare(g)) {
+		fprintf(stderr, "Frames of %ux%u not supported\n", g.width, g.height);
+		return 1;
+	}
+	if (!have_params) { /* What the camera says and InfiFrame's defaults for the rest. */
+		infi.read_params(g.frame.data());
+		g.params.from(infi);
+	}
+	process(g, g);
+	if (save(path, g)) {
+		fprintf(stderr, "Can't write %s\n", path);
+		return 1;
+	}
+	fprintf(stderr, "%s: %ux%u%s%s, %.2f..%.2f C\n", path, g.width, g.height,
+			(g.flags & FLAG_RAW_SENSOR) ? ", raw sensor" : "",
+			(g.flags & FLAG_P2_PRO) ? ", P2 Pro" : "", g.stats.range_min, g.stats.range_max);
+	return 0;
+}
+
+static void usage(const char *name) {
+	fprintf(stderr,
+			"Usage: %s [options] DIR\n"
+			"       %s -a NAME -S LAYOUT | -f FILE [-n N] DIR\n"
+			"Checks every .golden file in DIR, or with -a adds one made by the code as it is.\n"
+			"  -a NAME    write DIR/NAME.golden rather than checking\n"
+			"  -S LAYOUT  from a SimSource frame: 640, 384, 256, 240, 256raw or p2pro\n"
+			"  -f FILE    from a recording or dump (see replay)\n"
+			"  -r         raw sensor camera (for dumps)\n"
+			"  -p         P2 Pro (for dumps)\n"
+			"  -n N       frame number, default 0\n"
+			"  -d DEG     temperatures this close count as the same, default 0 (bit exact)\n"
+			"  -t SEC     time per kernel, default 0.1, 0 to not time them\n"
+			"  -w FILE    write the timing as baseline to FILE\n"
+			"  -b FILE    compare the timing to the baseline in FILE\n"
+			"  -x PCT     how much slower counts, default 15\n", name, name);
+}
+
+int main(int argc, char **argv) {
+	const char *name = NULL, *layout = NULL, *file = NULL;
+	const char *write_path = NULL, *base_path = NULL;
+	double tolerance = 15;
+	float deg = 0;
+	uint32_t n = 0;
+	bool raw_sensor = false, p2_pro = false;
+	int opt;
+	while ((opt = getopt(argc, argv, "a:S:f:rpn:d:t:w:b:x:")) != -1) {
+		switch (opt) {
+			case 'a': name = optarg; break;
+			case 'S': layout = optarg; break;
+			case 'f': file = optarg; break;
+			case 'r': raw_sensor = true; break;
+			case 'p': p2_pro = true; break;
+			case 'n': n = strtoul(optarg, NULL, 10); break;
+			case 'd': deg = atof(optarg); break;
+			case 't': min_time = atof(optarg); break;
+			case 'w': write_path = optarg; break;
+			case 'b': base_path = optarg; break;
+			case 'x': tolerance = atof(optarg); break;
+			default:
+				usage(argv[0]);
+				return 1;
+		}
+	}
+	if (optind != argc - 1 || (name != NULL && (layout == NULL) == (file == NULL))) {
+		usage(argv[0]);
+		return 1;
+	}
+	std::string dir = argv[optind];
+	static Golden g, got;
+
+	if (name != NULL)
+		return add((dir + "/" + name + ".golden").c_str(), layout, file, n, raw_sensor, p2_pro,
+				   g);
+
+	std::vector<std::string> names;
+	DIR *d = opendir(dir.c_str());
+	if (d == NULL) {
+		fprintf(stderr, "Can't read %s\n", dir.c_str());
+		return 1;
+	}
+	struct dirent *de;
+	while ((de = readdir(d)) != NULL) {
+		size_t len = strlen(de->d_name);
+		if (len > 7 && !strcmp(de->d_name + len - 7, ".golden"))
+			names.push_back(std::string(de->d_name, len - 7));
+	}
+	closedir(d);
+	std::sort(names.begin(), names.end());
+	if (names.empty()) {
+		fprintf(stderr, "No golden frames in %s\n", dir.c_str());
+		return 1;
+	}
+
+	int failed = 0;
+	std::vector<Result> results;
+	for (const std::string &gn : names) {
+		std::string path = dir + "/" + gn + ".golden";
+		int ret = load(path.c_str(), g);
+		if (ret) {
+			printf("%s: can't %s\n", gn.c_str(), (ret == 1) ? "read it" : "make sense of it");
+			++failed;
+			continue;
+		}
+		process(g, got);
+		int bad = compare(gn.c_str(), g, got, deg);
+		if (bad == 0)
+			printf("%s: %dx%d same\n", gn.c_str(), infi.width, infi.height);
+		failed += bad != 0;
+		if (min_time > 0)
+			time_kernels(gn, g, results);
+	}
+	printf("%d of %zu golden frames differ\n", failed, names.size());
+
+	if (!results.empty())
+		print_results(results);
+	if (write_path != NULL && write_baseline(write_path, "InfiFrame kernel baseline of golden",
+											 results))
+		return 1;
+	if (base_path != NULL && compare_baseline(base_path, results, tolerance))
+		return 1;
+	return failed != 0;
+}
@@ -0,0 +1,48 @@
+#ifndef __HOST_ANDROID_LOG_H__
+#define __HOST_ANDROID_LOG_H__
+
+/* Stand-in for the NDK's android/log.h so the native code builds on a Linux host, the logging
+ *   goes to stderr. Only warnings and errors unless HOST_LOG_LEVEL is set lower, libuvc is chatty.
+ */
+
+#include <stdio.h>
+#include <stdarg.h>
+
+#ifndef HOST_LOG_LEVEL
+#define HOST_LOG_LEVEL ANDROID_LOG_WARN
+#endif
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+typedef enum android_LogPriority {
+	ANDROID_LOG_UNKNOWN = 0,
+	ANDROID_LOG_DEFAULT,
+	ANDROID_LOG_VERBOSE,
+	ANDROID_LOG_DEBUG,
+	ANDROID_LOG_INFO,
+	ANDROID_LOG_WARN,
+	ANDROID_LOG_ERROR,
+	ANDROID_LOG_FATAL,
+	ANDROID_LOG_SILENT
+} android_LogPriority;
+
+static inline int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+	va_list ap;
+	int ret;
+	if (prio < HOST_LOG_LEVEL)
+		return 0;
+	fprintf(stderr, "%s: ", tag);
+	va_start(ap, fmt);
+	ret = vfprintf(stderr, fmt, ap);
+	va_end(ap);
+	fputc('\n', stderr);
+	return ret;
+}
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif /* __HOST_ANDROID_LOG_H__ */
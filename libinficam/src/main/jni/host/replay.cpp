@@ -0,0 +1,279 @@
+/* Plays a radiometric recording or frame dump through InfiCam on a Linux host, for looking at
+ *   recordings again without a camera and for profiling the pipeline with the same input every
+ *   time. With -S it gets frames from a SimSource instead, to load test the whole pipeline for a
+ *   camera that isn't there. See the Makefile next to this for building it.
+ */
+
+#include "InfiCam.h"
+#include "ReplaySource.h"
+#include "SimSource.h"
+#include "InfiTrace.h"
+
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <string>
+#include <ctime>
+#include <unistd.h>
+#include <fcntl.h> /* open() */
+
+std::string g_dump_dir; /* InfiCam.cpp wants this, normally it's in InfiCamJNI.cpp. */
+
+struct Replay {
+	InfiCam cam;
+	ReplaySource src;
+	SimSource sim;
+	bool simulate = false;
+	const char *out_dir = NULL;
+	bool quiet = false;
+	uint32_t max_frames = 0;
+	uint32_t *rgba = NULL;
+	uint32_t frames = 0;
+	uint64_t first_ns = 0, last_ns = 0, max_interval_ns = 0;
+	volatile bool got_frame = false;
+};
+
+static uint64_t monotonic_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+/* Of the frame that's in the callback right now. */
+static uint32_t frame_number(Replay *r) {
+	return (r->simulate ? r->sim.frame_number() : r->src.frame_number()) - 1;
+}
+
+static bool finished(Replay *r) {
+	return r->simulate ? r->sim.finished() : r->src.finished();
+}
+
+static void write_ppm(const char *dir, uint32_t n, const uint32_t *rgba, int width, int height) {
+	char path[512];
+	snprintf(path, sizeof(path), "%s/frame_%05u.ppm", dir, n);
+	FILE *f = fopen(path, "wb");
+	if (f == NULL) {
+		fprintf(stderr, "Can't write %s\n", path);
+		return;
+	}
+	fprintf(f, "P6\n%d %d\n255\n", width, height);
+	for (int i = 0; i < width * height; ++i) {
+		uint8_t rgb[3] = { (uint8_t) rgba[i], (uint8_t) (rgba[i] >> 8), (uint8_t) (rgba[i] >> 16) };
+		fwrite(rgb, sizeof(rgb), 1, f);
+	}
+	fclose(f);
+}
+
+static void frame_callback(InfiCam *cam, float *temp, uint16_t *raw, void *user_ptr) {
+	Replay *r = (Replay *) user_ptr;
+	InfiFrame &infi = cam->infi;
+	if (r->max_frames && r->frames >= r->max_frames)
+		return; /* Still coming while we stop. */
+	uint64_t now = monotonic_ns();
+	if (r->frames == 0)
+		r->first_ns = now;
+	else if (now - r->last_ns > r->max_interval_ns)
+		r->max_interval_ns = now - r->last_ns;
+	r->last_ns = now;
+
+	float min = infi.temp_single(infi.temp_min), max = infi.temp_single(infi.temp_max);
+	if (!r->quiet) {
+		printf("frame %u: min %.2f at %d,%d max %.2f at %d,%d center %.2f avg %.2f fpa %.2f "
+			   "motion %.3f range %.2f..%.2f\n", frame_number(r), min, infi.temp_min_x,
+			   infi.temp_min_y, max, infi.temp_max_x, infi.temp_max_y,
+			   infi.temp_single(infi.temp_center), infi.temp_single(infi.temp_avg), infi.temp_fpa,
+			   cam->frame_motion, cam->range_min, cam->range_max);
+	}
+	if (r->out_dir != NULL) {
+		infi.palette_appy(temp, r->rgba, cam->range_min, cam->range_max);
+		write_ppm(r->out_dir, frame_number(r), r->rgba, infi.width, infi.height);
+	}
+	++r->frames;
+	r->got_frame = true;
+}
+
+static void usage(const char *name) {
+	fprintf(stderr,
+			"Usage: %s [options] <file.irad | dump dir>\n"
+			"       %s -S LAYOUT [options]\n"
+			"  -m realtime|fast|step  pacing, default realtime, step reads a line from stdin per frame\n"
+			"  -S LAYOUT              simulated camera rather than a file: 640, 384, 256, 240, 256raw\n"
+			"                           or p2pro (see SimSource.h), fast pacing is -f 0\n"
+			"  -f FPS                 frame rate of the simulated camera, default 25\n"
+			"  -u SECONDS             simulated camera closes the shutter by itself this often\n"
+			"  -c SECONDS             calibrate() this often, like the app does\n"
+			"  -s WxH                 frame size of dumps including data rows, guessed if not given\n"
+			"  -r                     raw sensor camera (for dumps, .irad files say so themselves)\n"
+			"  -p                     P2 Pro (for dumps)\n"
+			"  -l                     loop, stop with -n or ctrl+c\n"
+			"  -n N                   stop after N frames\n"
+			"  -t N                   time-lapse, average every N frames into one\n"
+			"  -T N                   time-lapse, maximum of every N frames\n"
+			"  -o DIR                 write every frame as a grayscale PPM to DIR\n"
+			"  -q                     don't print every frame\n"
+			"  -e FILE                write the event trace to FILE at the end, Chrome trace JSON\n"
+			"                           if it ends in .json, otherwise binary (see InfiTrace.h)\n",
+			name, name);
+}
+
+int main(int argc, char **argv) {
+	static Replay r; /* InfiFrame is large. */
+	ReplaySource::Pacing pacing = ReplaySource::PACE_REALTIME;
+	int width = 0, height = 0, stack = 1, stack_mode = InfiCam::STACK_AVERAGE, opt;
+	bool raw_sensor = false, p2_pro = false;
+	const char *trace_file = NULL, *layout = NULL;
+	float fps = 25, calibrate = 0, shutter = 0;
+
+	while ((opt = getopt(argc, argv, "m:S:f:u:c:s:rpln:t:T:o:qe:")) != -1) {
+		switch (opt) {
+			case 'm':
+				if (!strcmp(optarg, "realtime"))
+					pacing = ReplaySource::PACE_REALTIME;
+				else if (!strcmp(optarg, "fast"))
+					pacing = ReplaySource::PACE_FAST;
+				else if (!strcmp(optarg, "step"))
+					pacing = ReplaySource::PACE_STEP;
+				else {
+					usage(argv[0]);
+					return 1;
+				}
+				break;
+			case 'S': layout = optarg; break;
+			case 'f': fps = atof(optarg); break;
+			case 'u': shutter = atof(optarg); break;
+			case 'c': calibrate = atof(optarg); break;
+			case 's':
+				if (sscanf(optarg, "%dx%d", &width, &height) != 2) {
+					usage(argv[0]);
+					return 1;
+				}
+				break;
+			case 'r': raw_sensor = true; break;
+			case 'p': p2_pro = true; break;
+			case 'l': r.src.loop = true; break;
+			case 'n': r.max_frames = strtoul(optarg, NULL, 10); break;
+			case 't':
+			case 'T':
+				stack = atoi(optarg);
+				stack_mode = (opt == 'T') ? InfiCam::STACK_MAX : InfiCam::STACK_AVERAGE;
+				break;
+			case 'o': r.out_dir = optarg; break;
+			case 'q': r.quiet = true; break;
+			case 'e':
+				trace_file = optarg;
+				InfiTrace::set_enabled(true);
+				break;
+			default:
+				usage(argv[0]);
+				return 1;
+		}
+	}
+	r.simulate = layout != NULL;
+	if (optind != argc - !r.simulate || (r.simulate && pacing == ReplaySource::PACE_STEP)) {
+		usage(argv[0]);
+		return 1;
+	}
+
+	FrameSource *source;
+	if (r.simulate) {
+		if (r.sim.open(layout)) {
+			fprintf(stderr, "No layout %s\n", layout);
+			return 1;
+		}
+		r.sim.fps = (pacing == ReplaySource::PACE_FAST) ? 0 : fps;
+		r.sim.max_frames = r.max_frames;
+		r.sim.shutter_interval_ms = shutter * 1000;
+		raw_sensor = r.sim.raw_sensor;
+		p2_pro = r.sim.p2_pro;
+		fprintf(stderr, "Simulated %s at ", layout);
+		if (r.sim.fps > 0)
+			fprintf(stderr, "%.1f FPS", r.sim.fps);
+		else fprintf(stderr, "full speed");
+		fprintf(stderr, ", %dx%d%s%s\n", r.sim.width, r.sim.height,
+				raw_sensor ? ", raw sensor" : "", p2_pro ? ", P2 Pro" : "");
+		source = &r.sim;
+	} else {
+		int ret = r.src.open(argv[optind], width, height);
+		if (ret) {
+			fprintf(stderr, "Opening %s failed (%d)\n", argv[optind], ret);
+			return 1;
+		}
+		raw_sensor = raw_sensor || r.src.raw_sensor;
+		p2_pro = p2_pro || r.src.p2_pro;
+		fprintf(stderr, "%u frames of %dx%d%s%s\n", r.src.frame_count(), r.src.width,
+				r.src.height, raw_sensor ? ", raw sensor" : "", p2_pro ? ", P2 Pro" : "");
+		source = &r.src;
+	}
+	/* Same as the JNI end does, InfiFrame needs to know before connecting. */
+	r.cam.set_raw_sensor(raw_sensor);
+	r.cam.infi.raw_sensor = raw_sensor;
+	r.cam.set_p2_pro(p2_pro);
+	r.cam.infi.p2_pro = p2_pro;
+
+	if (r.cam.connect_source(source)) {
+		fprintf(stderr, "Connecting failed\n");
+		return 1;
+	}
+	r.rgba = (uint32_t *) malloc(r.cam.infi.width * r.cam.infi.height * sizeof(uint32_t));
+	uint32_t palette[InfiCam::palette_len];
+	for (int i = 0; i < InfiCam::palette_len; ++i) {
+		uint32_t v = i * 255 / (InfiCam::palette_len - 1);
+		palette[i] = 0xFF000000 | v << 16 | v << 8 | v;
+	}
+	r.cam.set_palette(palette);
+	if (!r.simulate)
+		r.src.set_pacing(pacing);
+	r.cam.set_timelapse(stack, stack_mode);
+
+	uint64_t start = monotonic_ns();
+	if (r.cam.stream_start(frame_callback, &r)) {
+		fprintf(stderr, "Starting stream failed\n");
+		return 1;
+	}
+	if (raw_sensor && r.simulate)
+		r.cam.calibrate(); /* The app does that when it connects, recordings are calibrated. */
+	uint64_t next_calibrate = start + (uint64_t) (calibrate * 1e9);
+	char line[64];
+	while (!finished(&r) && (r.max_frames == 0 || r.frames < r.max_frames)) {
+		if (calibrate > 0 && monotonic_ns() >= next_calibrate) {
+			r.cam.calibrate();
+			next_calibrate += calibrate * 1e9;
+		}
+		if (pacing == ReplaySource::PACE_STEP) {
+			if (fgets(line, sizeof(line), stdin) == NULL || line[0] == 'q')
+				break;
+			r.got_frame = false;
+			r.src.step();
+			while (!r.got_frame && !finished(&r))
+				usleep(1000);
+		} else usleep(1000);
+	}
+	r.cam.stream_stop();
+	uint64_t elapsed = monotonic_ns() - start;
+
+	double span = (r.last_ns - r.first_ns) / 1e9;
+	fprintf(stderr, "%u frames in %.3f s, %.1f FPS, longest gap %.2f ms\n", r.frames,
+			elapsed / 1e9, (r.frames > 1 && span > 0) ? (r.frames - 1) / span : 0.0,
+			r.max_interval_ns / 1e6);
+	if (r.simulate)
+		fprintf(stderr, "%u frames too slow for the camera, shutter closed %u times\n",
+				r.sim.skip_count(), r.sim.shutter_count());
+	if (r.cam.latency.count(InfiLatency::STAGE_CONVERSION) > 0)
+		fprintf(stderr, "conversion p50 %u us p99 %u us\n",
+				r.cam.latency.percentile(InfiLatency::STAGE_CONVERSION, 0.5f),
+				r.cam.latency.percentile(InfiLatency::STAGE_CONVERSION, 0.99f));
+	r.cam.disconnect();
+	free(r.rgba);
+	if (trace_file != NULL) {
+		size_t len = strlen(trace_file);
+		bool json = len >= 5 && !strcmp(trace_file + len - 5, ".json");
+		int fd = open(trace_file, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+		if (fd < 0 || InfiTrace::dump(fd, json ? InfiTrace::FORMAT_JSON :
+									  InfiTrace::FORMAT_BINARY)) {
+			fprintf(stderr, "Can't write %s\n", trace_file);
+			return 1;
+		}
+	}
+	return 0;
+}
@@ -0,0 +1,63 @@
+#include "timing.h"
+
+#include <cstdio>
+#include <ctime> /* clock_gettime() */
+
+uint64_t monotonic_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+void print_results(const std::vector<Result> &results) {
+	printf("%-12s %-13s %12s %10s\n", "name", "kernel", "ns/frame", "ns/pixel");
+	for (const Result &r : results)
+		printf("%-12s %-13s %12.0f %10.3f\n", r.name.c_str(), r.kernel.c_str(), r.ns_frame,
+			   r.ns_pixel);
+}
+
+int write_baseline(const char *path, const char *what, const std::vector<Result> &results) {
+	FILE *f = fopen(path, "w");
+	if (f == NULL) {
+		fprintf(stderr, "Can't write %s\n", path);
+		return 1;
+	}
+	fprintf(f, "# %s, name kernel ns/frame ns/pixel (see timing.h).\n", what);
+	for (const Result &r : results)
+		fprintf(f, "%s %s %.1f %.4f\n", r.name.c_str(), r.kernel.c_str(), r.ns_frame, r.ns_pixel);
+	if (fclose(f)) {
+		fprintf(stderr, "Can't write %s\n", path);
+		return 1;
+	}
+	return 0;
+}
+
+int compare_baseline(const char *path, const std::vector<Result> &results, double tolerance) {
+	FILE *f = fopen(path, "r");
+	if (f == NULL) {
+		fprintf(stderr, "Can't read %s\n", path);
+		return 1;
+	}
+	char line[256], name[64], kernel[64];
+	double ns;
+	int regressed = 0, compared = 0;
+	while (fgets(line, sizeof(line), f) != NULL) {
+		if (line[0] == '#' || sscanf(line, "%63s %63s %lf", name, kernel, &ns) != 3)
+			continue;
+		for (const Result &r : results) {
+			if (r.name != name || r.kernel != kernel)
+				continue;
+			++compared;
+			double change = (ns > 0) ? (r.ns_frame - ns) / ns * 100 : 0;
+			if (change > tolerance && r.ns_frame - ns > slow_ns) {
+				printf("SLOWER %s %s: %.0f -> %.0f ns/frame (%+.1f%%)\n", name, kernel, ns,
+					   r.ns_frame, change);
+				++regressed;
+			}
+		}
+	}
+	fclose(f);
+	printf("%d of %d compared results got slower by more than %.0f%%\n", regressed, compared,
+		   tolerance);
+	return regressed != 0;
+}
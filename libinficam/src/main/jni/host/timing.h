@@ -0,0 +1,58 @@
+#ifndef __TIMING_H__
+#define __TIMING_H__
+
+/* Timing of the InfiFrame kernels for bench and golden, and the baselines to compare that to.
+ *
+ * A baseline is a text file with a line per result, "name kernel ns_per_frame ns_per_pixel",
+ *   lines that start with # are ignored. It's only meaningful on the machine that wrote it, so
+ *   write one before changing things and check against it after. Kernels that take only a few
+ *   nanoseconds are too noisy to judge, so being slower only counts from slow_ns up.
+ */
+
+#include <cstdint>
+#include <cmath> /* INFINITY */
+#include <string>
+#include <vector>
+#include <algorithm>
+
+struct Result {
+	std::string name, kernel; /* Name of the layout or the golden frame. */
+	double ns_frame, ns_pixel;
+};
+
+static const double slow_ns = 50; /* Less difference than this per frame doesn't count. */
+
+uint64_t monotonic_ns();
+
+/* Runs fn in batches until min_time seconds have passed, returns the nanoseconds per call of the
+ *   fastest batch, whatever else runs on the machine only ever makes it slower.
+ */
+template <typename F> double measure(F fn, double min_time) {
+	fn(); /* Warm the caches, and the table for the ones that need it. */
+	uint64_t t = monotonic_ns();
+	fn();
+	uint64_t one = monotonic_ns() - t;
+	const int batches = 10;
+	uint64_t per_batch = (uint64_t) (min_time * 1e9 / batches);
+	uint32_t iters = (one > 0 && one < per_batch) ? per_batch / one : 1;
+	double best = INFINITY;
+	for (int b = 0; b < batches; ++b) {
+		t = monotonic_ns();
+		for (uint32_t i = 0; i < iters; ++i)
+			fn();
+		best = std::min(best, (double) (monotonic_ns() - t) / iters);
+	}
+	return best;
+}
+
+void print_results(const std::vector<Result> &results);
+
+/* Returns 0 on success, what goes in the comment line at the top, 1 if it can't be written. */
+int write_baseline(const char *path, const char *what, const std::vector<Result> &results);
+
+/* Prints what got slower by more than tolerance percent, returns 1 if anything did or the file
+ *   can't be read.
+ */
+int compare_baseline(const char *path, const std::vector<Result> &results, double tolerance);
+
+#endif /* __TIMING_H__ */